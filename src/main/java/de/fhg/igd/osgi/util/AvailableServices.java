@@ -0,0 +1,103 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * <p>Title: AvailableServices</p>
+ * <p>Description: The result of waiting for a number of service types,
+ * holds the services that were available and the types that were still
+ * missing when the wait ended</p>
+ */
+public class AvailableServices {
+	
+	/**
+	 * The available services mapped by type
+	 */
+	private final Map<Class<?>, Object> services;
+	
+	/**
+	 * The service types no service was available for
+	 */
+	private final Set<Class<?>> missingTypes;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param services the available services mapped by type
+	 * @param missingTypes the service types no service was available for
+	 */
+	AvailableServices(Map<Class<?>, Object> services, Set<Class<?>> missingTypes) {
+		this.services = Collections.unmodifiableMap(
+				new LinkedHashMap<Class<?>, Object>(services));
+		this.missingTypes = Collections.unmodifiableSet(
+				new LinkedHashSet<Class<?>>(missingTypes));
+	}
+	
+	/**
+	 * Get the service of the given type
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the service instance or <code>null</code> if no service of
+	 *   that type was available
+	 */
+	public <T> T getService(Class<T> serviceType) {
+		return serviceType.cast(services.get(serviceType));
+	}
+	
+	/**
+	 * @return the available services mapped by type, in the order the
+	 *   types were requested
+	 */
+	public Map<Class<?>, Object> getServices() {
+		return services;
+	}
+
+	/**
+	 * @return the service types no service was available for, in the order
+	 *   the types were requested
+	 */
+	public Set<Class<?>> getMissingTypes() {
+		return missingTypes;
+	}
+	
+	/**
+	 * @return if services for all requested types were available
+	 */
+	public boolean isComplete() {
+		return missingTypes.isEmpty();
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return "AvailableServices [available=" + services.keySet() + 
+				", missing=" + missingTypes + "]";
+	}
+
+}
@@ -0,0 +1,86 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * <p>Title: BackgroundExecutor</p>
+ * <p>Description: Shared pool of daemon threads for work that may block,
+ * like stopping trackers or notifying listeners, and thus must not run on
+ * the {@link TimerWheel} thread. Threads are created on demand and
+ * terminate when they have been idle for a minute. The pool is created on
+ * first use and shut down by {@link #shutdownDefault()} when the bundle is
+ * stopped.</p>
+ */
+final class BackgroundExecutor {
+	
+	/**
+	 * The default executor, <code>null</code> if not yet created or shut
+	 * down
+	 */
+	private static volatile ExecutorService defaultExecutor;
+	
+	private BackgroundExecutor() {
+		// utility class
+	}
+	
+	/**
+	 * @return the default background executor, created if needed
+	 */
+	public static Executor getDefault() {
+		ExecutorService executor = defaultExecutor;
+		if (executor == null) {
+			synchronized (BackgroundExecutor.class) {
+				executor = defaultExecutor;
+				if (executor == null) {
+					executor = Executors.newCachedThreadPool(
+							new ThreadFactoryBuilder()
+								.setNameFormat("osgi-util-worker-%d")
+								.setDaemon(true)
+								.build());
+					defaultExecutor = executor;
+				}
+			}
+		}
+		return executor;
+	}
+	
+	/**
+	 * Shut down the default executor, tasks already submitted are still
+	 * executed but no new tasks are accepted. A new default executor is
+	 * created on the next call to {@link #getDefault()}.
+	 */
+	public static void shutdownDefault() {
+		ExecutorService executor;
+		synchronized (BackgroundExecutor.class) {
+			executor = defaultExecutor;
+			defaultExecutor = null;
+		}
+		if (executor != null) {
+			executor.shutdown();
+		}
+	}
+
+}
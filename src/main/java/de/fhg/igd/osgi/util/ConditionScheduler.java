@@ -0,0 +1,201 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.fhg.igd.osgi.util.OsgiUtils.Condition;
+
+/**
+ * <p>Title: ConditionScheduler</p>
+ * <p>Description: Schedules the evaluation of waiting {@link Condition}s on
+ * the shared {@link TimerWheel} instead of blocking a thread per condition.
+ * Each condition is re-evaluated with an adaptive backoff, starting with
+ * short intervals that grow up to one second. The conditions are evaluated
+ * on the {@link BackgroundExecutor}, so a slow condition does not delay
+ * the timer thread.</p>
+ * 
+ * <p>The futures of pending waits are cancelled by {@link #cancelAll()}
+ * when the bundle is stopped, as the timer wheel discards their scheduled
+ * evaluations.</p>
+ */
+final class ConditionScheduler {
+	
+	/**
+	 * The initial interval between evaluations in milliseconds
+	 */
+	private static final long INITIAL_INTERVAL = 10;
+	
+	/**
+	 * The maximum interval between evaluations in milliseconds
+	 */
+	private static final long MAX_INTERVAL = 1000;
+	
+	/**
+	 * The futures of the pending waits
+	 */
+	private static final Set<Future<?>> pending = Collections.newSetFromMap(
+			new ConcurrentHashMap<Future<?>, Boolean>());
+	
+	private ConditionScheduler() {
+		// static access only
+	}
+	
+	/**
+	 * Schedule the evaluation of a condition
+	 * 
+	 * @param condition the condition, it is evaluated on the calling thread
+	 *   first and then on the background executor
+	 * @param timeout the timeout after which the future is completed with
+	 *   <code>false</code>, a negative value to wait infinitely
+	 * @param unit the time unit of the timeout
+	 * @return the future that is completed with <code>true</code> as soon
+	 *   as the condition evaluated to <code>true</code> or with
+	 *   <code>false</code> when the timeout has elapsed
+	 */
+	public static ListenableFuture<Boolean> schedule(Condition condition, long timeout,
+			TimeUnit unit) {
+		ScheduledCondition scheduled = new ScheduledCondition(condition, timeout >= 0,
+				System.nanoTime() + unit.toNanos(Math.max(0, timeout)));
+		scheduled.run();
+		register(scheduled.future);
+		return scheduled.future;
+	}
+	
+	/**
+	 * Register the future of a pending wait, so it is cancelled by
+	 * {@link #cancelAll()}. It is removed again when it is done.
+	 * 
+	 * @param future the future
+	 */
+	public static void register(final ListenableFuture<?> future) {
+		pending.add(future);
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				pending.remove(future);
+			}
+		}, MoreExecutors.sameThreadExecutor());
+	}
+	
+	/**
+	 * Cancel the futures of all pending waits, called when the bundle is
+	 * stopped
+	 */
+	public static void cancelAll() {
+		for (Future<?> future : pending) {
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * A condition that is evaluated periodically
+	 */
+	private static class ScheduledCondition implements Runnable {
+		
+		private final Condition condition;
+		
+		private final boolean limited;
+		
+		private final long deadline;
+		
+		private final SettableFuture<Boolean> future = SettableFuture.create();
+		
+		private long interval = INITIAL_INTERVAL;
+		
+		private volatile TimerWheel.Timeout timeout;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param condition the condition
+		 * @param limited if the deadline applies
+		 * @param deadline the deadline as {@link System#nanoTime()} value
+		 */
+		public ScheduledCondition(Condition condition, boolean limited, long deadline) {
+			this.condition = condition;
+			this.limited = limited;
+			this.deadline = deadline;
+			
+			// stop evaluating when the future is cancelled
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					TimerWheel.Timeout current = timeout;
+					if (current != null) {
+						current.cancel();
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+
+		/**
+		 * Evaluate the condition and schedule the next evaluation if needed
+		 */
+		@Override
+		public void run() {
+			if (future.isDone()) {
+				return;
+			}
+			
+			boolean value;
+			try {
+				value = condition.evaluate();
+			} catch (Throwable e) {
+				future.setException(e);
+				return;
+			}
+			
+			if (value) {
+				future.set(true);
+				return;
+			}
+			
+			long delay = TimeUnit.MILLISECONDS.toNanos(interval);
+			if (limited) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					future.set(false);
+					return;
+				}
+				// evaluate a last time at the deadline
+				delay = Math.min(delay, remaining);
+			}
+			interval = Math.min(interval * 2, MAX_INTERVAL);
+			
+			timeout = TimerWheel.getDefault().schedule(this, delay, TimeUnit.NANOSECONDS,
+					BackgroundExecutor.getDefault());
+			if (future.isDone()) {
+				// cancelled while scheduling
+				timeout.cancel();
+			}
+		}
+		
+	}
+
+}
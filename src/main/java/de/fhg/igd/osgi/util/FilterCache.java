@@ -0,0 +1,83 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * <p>Title: FilterCache</p>
+ * <p>Description: Cache of compiled LDAP filters, so filters used over and
+ * over again are only parsed once and the same {@link Filter} instance is
+ * shared between callers.</p>
+ */
+public final class FilterCache {
+	
+	/**
+	 * The maximum number of cached filters
+	 */
+	private static final int MAX_SIZE = 1024;
+	
+	/**
+	 * The compiled filters mapped by filter string
+	 */
+	private static final ConcurrentMap<String, Filter> filters = 
+			new ConcurrentHashMap<String, Filter>();
+	
+	private FilterCache() {
+		// static access only
+	}
+	
+	/**
+	 * Get the compiled filter for the given filter string
+	 * 
+	 * @param filter the LDAP filter string, may be <code>null</code>
+	 * @return the compiled filter or <code>null</code> if the filter string
+	 *   was <code>null</code>
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public static Filter get(String filter) {
+		if (filter == null) {
+			return null;
+		}
+		
+		Filter compiled = filters.get(filter);
+		if (compiled == null) {
+			try {
+				compiled = FrameworkUtil.createFilter(filter);
+			} catch (InvalidSyntaxException e) {
+				throw new IllegalArgumentException("Invalid service filter: " + filter, e);
+			}
+			
+			if (filters.size() < MAX_SIZE) {
+				Filter existing = filters.putIfAbsent(filter, compiled);
+				if (existing != null) {
+					compiled = existing;
+				}
+			}
+		}
+		return compiled;
+	}
+
+}
@@ -0,0 +1,423 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceReference;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.fhg.igd.osgi.util.OsgiUtils.Condition;
+import de.fhg.igd.osgi.util.extender.BundleTracker;
+import de.fhg.igd.osgi.util.extender.BundleTracker.TrackingMode;
+
+/**
+ * <p>Title: FrameworkCondition</p>
+ * <p>Description: A condition that declares the services and bundle states
+ * it depends on. When waiting for it with
+ * {@link OsgiUtils#waitUntil(Condition, long, TimeUnit)} or
+ * {@link OsgiUtils#asyncWaitUntil(Condition, long, TimeUnit)} it is not
+ * polled, but only re-evaluated when a matching service or bundle event
+ * arrives. The condition is re-evaluated on a background thread after the
+ * event has been delivered to all trackers of the {@link OsgiUtilsActivator},
+ * so the service trackers used by {@link OsgiUtils} have already seen the
+ * event.</p>
+ * 
+ * Example:
+ * <pre>
+ * Condition condition = new FrameworkCondition() {
+ *     public boolean evaluate() {
+ *         return OsgiUtils.getServices(Worker.class).size() &gt;= 4;
+ *     }
+ * }.dependsOnService(Worker.class);
+ * </pre>
+ */
+public abstract class FrameworkCondition implements Condition {
+	
+	/**
+	 * The service types the condition depends on, mapped to the filters
+	 * declared for them, a <code>null</code> filter matches all services
+	 */
+	private final Map<Class<?>, List<Filter>> serviceTypes = 
+			new LinkedHashMap<Class<?>, List<Filter>>();
+	
+	/**
+	 * The bundle states the condition depends on
+	 */
+	private final Set<TrackingMode> bundleModes = new LinkedHashSet<TrackingMode>();
+	
+	/**
+	 * Declare that the condition depends on services of the given type. The
+	 * condition is re-evaluated when such a service is registered or
+	 * unregistered.
+	 * 
+	 * @param serviceType the service type
+	 * @return this condition
+	 */
+	public FrameworkCondition dependsOnService(Class<?> serviceType) {
+		return dependsOnService(serviceType, null);
+	}
+	
+	/**
+	 * Declare that the condition depends on services of the given type that
+	 * match the given filter. The condition is re-evaluated when such a
+	 * service is registered or unregistered.
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the LDAP filter the services must match, may be
+	 *   <code>null</code>
+	 * @return this condition
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public FrameworkCondition dependsOnService(Class<?> serviceType, String filter) {
+		Filter compiled = FilterCache.get(filter);
+		
+		synchronized (serviceTypes) {
+			List<Filter> filters = serviceTypes.get(serviceType);
+			if (filters == null) {
+				filters = new ArrayList<Filter>();
+				serviceTypes.put(serviceType, filters);
+			}
+			filters.add(compiled);
+		}
+		return this;
+	}
+	
+	/**
+	 * Declare that the condition depends on bundle states. The condition is
+	 * re-evaluated when a bundle enters or leaves the state tracked with the
+	 * given mode.
+	 * 
+	 * @param mode the tracking mode, {@link TrackingMode#Active} for
+	 *   bundles being started or stopped, {@link TrackingMode#Resolved} for
+	 *   bundles being resolved or unresolved
+	 * @return this condition
+	 */
+	public FrameworkCondition dependsOnBundles(TrackingMode mode) {
+		synchronized (bundleModes) {
+			bundleModes.add(mode);
+		}
+		return this;
+	}
+	
+	/**
+	 * @return if the condition declares any dependencies
+	 */
+	boolean hasDependencies() {
+		synchronized (serviceTypes) {
+			if (!serviceTypes.isEmpty()) {
+				return true;
+			}
+		}
+		synchronized (bundleModes) {
+			return !bundleModes.isEmpty();
+		}
+	}
+	
+	/**
+	 * Determines if a service matches any of the given filters
+	 * 
+	 * @param filters the filters, a <code>null</code> filter matches all
+	 *   services
+	 * @param service the service reference
+	 * @return if the service matches
+	 */
+	private static boolean matches(List<Filter> filters, ServiceReference<?> service) {
+		for (Filter filter : filters) {
+			if (filter == null || filter.match(service)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Watch the condition, re-evaluating it on matching framework events
+	 * 
+	 * @param context the bundle context to use for listening to events
+	 * @param multiplexer the multiplexer delivering service events, 
+	 *   <code>null</code> to register service listeners with the framework
+	 * @param timeout the timeout after which the future is completed with
+	 *   <code>false</code>, a negative value to wait infinitely
+	 * @param unit the time unit of the timeout
+	 * @return the future that is completed with the condition value
+	 */
+	ListenableFuture<Boolean> watch(BundleContext context, ServiceEventMultiplexer multiplexer,
+			long timeout, TimeUnit unit) {
+		Watcher watcher = new Watcher();
+		watcher.start(context, multiplexer, timeout, unit);
+		ConditionScheduler.register(watcher.future);
+		return watcher.future;
+	}
+	
+	/**
+	 * Re-evaluates the condition on framework events
+	 */
+	private class Watcher {
+		
+		private final SettableFuture<Boolean> future = SettableFuture.create();
+		
+		private final List<ServiceTracker<?>> serviceTrackers = new ArrayList<ServiceTracker<?>>();
+		
+		private final List<BundleTracker> bundleTrackers = new ArrayList<BundleTracker>();
+		
+		private TimerWheel.Timeout timeout;
+		
+		/**
+		 * The multiplexer delivering service events, may be <code>null</code>
+		 */
+		private ServiceEventMultiplexer multiplexer;
+		
+		/**
+		 * If events are to be ignored, guarded by this
+		 */
+		private boolean ignoreEvents = true;
+		
+		/**
+		 * If a re-evaluation is scheduled, guarded by this
+		 */
+		private boolean reevaluationScheduled = false;
+		
+		/**
+		 * If the trackers were stopped, guarded by this
+		 */
+		private boolean stopped = false;
+		
+		/**
+		 * Start watching the condition. The trackers are started without
+		 * holding the lock of the watcher, events they report while starting
+		 * are ignored, as the condition is evaluated once they are started.
+		 * 
+		 * @param context the bundle context
+		 * @param multiplexer the multiplexer delivering service events, may
+		 *   be <code>null</code>
+		 * @param timeout the timeout
+		 * @param unit the time unit of the timeout
+		 */
+		@SuppressWarnings("unchecked")
+		public void start(BundleContext context, ServiceEventMultiplexer multiplexer,
+				long timeout, TimeUnit unit) {
+			this.multiplexer = multiplexer;
+			
+			synchronized (serviceTypes) {
+				for (Map.Entry<Class<?>, List<Filter>> entry : serviceTypes.entrySet()) {
+					final List<Filter> filters = new ArrayList<Filter>(entry.getValue());
+					serviceTrackers.add(new ServiceTracker<Object>((Class<Object>) entry.getKey()) {
+						
+						@Override
+						protected void register(ServiceReference<Object> service) {
+							if (matches(filters, service)) {
+								scheduleReevaluation();
+							}
+						}
+						
+						@Override
+						protected void deregister(ServiceReference<Object> service) {
+							if (matches(filters, service)) {
+								scheduleReevaluation();
+							}
+						}
+						
+						@Override
+						protected void modified(ServiceReference<Object> service) {
+							// the service may have started or stopped matching the filter
+							scheduleReevaluation();
+						}
+						
+					});
+				}
+			}
+			
+			synchronized (bundleModes) {
+				for (TrackingMode mode : bundleModes) {
+					bundleTrackers.add(new BundleTracker(mode) {
+						
+						@Override
+						protected void register(Bundle bundle) {
+							scheduleReevaluation();
+						}
+						
+						@Override
+						protected void deregister(Bundle bundle) {
+							scheduleReevaluation();
+						}
+						
+					});
+				}
+			}
+			
+			// events are ignored while starting the trackers
+			for (ServiceTracker<?> tracker : serviceTrackers) {
+				tracker.start(context, multiplexer);
+			}
+			for (BundleTracker tracker : bundleTrackers) {
+				tracker.start(context);
+			}
+			
+			// stop watching when the future is cancelled
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					stop();
+				}
+			}, MoreExecutors.sameThreadExecutor());
+			
+			synchronized (this) {
+				if (timeout >= 0) {
+					this.timeout = TimerWheel.getDefault().schedule(new Runnable() {
+						@Override
+						public void run() {
+							check(true);
+						}
+					}, timeout, unit, BackgroundExecutor.getDefault());
+				}
+				
+				ignoreEvents = false;
+			}
+			reevaluate();
+		}
+		
+		/**
+		 * Schedule re-evaluating the condition after the current event has
+		 * been delivered. With a multiplexer the condition is evaluated once
+		 * the event has been delivered to all of its trackers, otherwise at
+		 * the earliest on the next timer tick. It is evaluated on the
+		 * background executor, further events until then do not schedule
+		 * additional evaluations.
+		 */
+		private synchronized void scheduleReevaluation() {
+			if (ignoreEvents || reevaluationScheduled) {
+				return;
+			}
+			
+			reevaluationScheduled = true;
+			final Runnable reevaluation = new Runnable() {
+				@Override
+				public void run() {
+					synchronized (Watcher.this) {
+						reevaluationScheduled = false;
+					}
+					reevaluate();
+				}
+			};
+			
+			if (multiplexer != null) {
+				// trackers registered after ours may not have seen the event yet
+				multiplexer.afterDispatch(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							BackgroundExecutor.getDefault().execute(reevaluation);
+						} catch (RejectedExecutionException e) {
+							// the executor was shut down together with the bundle
+						}
+					}
+				});
+			}
+			else {
+				TimerWheel.getDefault().schedule(reevaluation, 0, TimeUnit.MILLISECONDS,
+						BackgroundExecutor.getDefault());
+			}
+		}
+		
+		/**
+		 * Re-evaluate the condition
+		 */
+		private void reevaluate() {
+			check(false);
+		}
+		
+		/**
+		 * Evaluate the condition and complete the future if it is met, the
+		 * evaluation fails or the timeout has elapsed. The trackers are
+		 * stopped before the future is completed, outside the lock of the
+		 * watcher as they call into the framework.
+		 * 
+		 * @param timedOut if the timeout has elapsed
+		 */
+		private void check(boolean timedOut) {
+			boolean value;
+			RuntimeException error = null;
+			synchronized (this) {
+				if (ignoreEvents) {
+					return;
+				}
+				
+				try {
+					value = evaluate();
+				} catch (RuntimeException e) {
+					value = false;
+					error = e;
+				}
+				
+				if (error == null && !value && !timedOut) {
+					return;
+				}
+				ignoreEvents = true;
+			}
+			
+			stop();
+			if (error != null) {
+				future.setException(error);
+			}
+			else {
+				future.set(value);
+			}
+		}
+		
+		/**
+		 * Stop the trackers and the timeout
+		 */
+		private void stop() {
+			synchronized (this) {
+				ignoreEvents = true;
+				if (timeout != null) {
+					timeout.cancel();
+				}
+				if (stopped) {
+					return;
+				}
+				stopped = true;
+			}
+			
+			for (ServiceTracker<?> tracker : serviceTrackers) {
+				tracker.stop();
+			}
+			for (BundleTracker tracker : bundleTrackers) {
+				tracker.stop();
+			}
+		}
+		
+	}
+
+}
@@ -0,0 +1,170 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>Title: LatencyHistogram</p>
+ * <p>Description: Concurrent histogram of latencies in nanoseconds with
+ * log-linear buckets: each power of two range is split into 16 linear
+ * sub-buckets, so recorded values are resolved with a relative error of at
+ * most 1/16. Recording does not lock and does not allocate.</p>
+ */
+final class LatencyHistogram {
+	
+	/**
+	 * The number of bits used for the linear sub-buckets
+	 */
+	private static final int SUB_BUCKET_BITS = 4;
+	
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	
+	/**
+	 * The number of buckets needed to cover all positive long values
+	 */
+	private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+	
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	
+	private final StripedCounter count = new StripedCounter();
+	
+	private final StripedCounter total = new StripedCounter();
+	
+	private final AtomicLong max = new AtomicLong();
+	
+	/**
+	 * Record a value
+	 * 
+	 * @param nanos the value in nanoseconds, negative values are recorded
+	 *   as zero
+	 */
+	public void record(long nanos) {
+		long value = Math.max(0, nanos);
+		counts.incrementAndGet(bucketIndex(value));
+		count.increment();
+		total.add(value);
+		
+		long current;
+		while (value > (current = max.get())) {
+			if (max.compareAndSet(current, value)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * @return the number of recorded values
+	 */
+	public long getCount() {
+		return count.sum();
+	}
+	
+	/**
+	 * @return the sum of the recorded values in nanoseconds
+	 */
+	public long getTotal() {
+		return total.sum();
+	}
+	
+	/**
+	 * @return the largest recorded value in nanoseconds
+	 */
+	public long getMax() {
+		return max.get();
+	}
+	
+	/**
+	 * Get the value below or at which the given percentage of the recorded
+	 * values lies. The result is the upper bound of the bucket the
+	 * percentile falls into, but never larger than the maximum.
+	 * 
+	 * @param percentile the percentile, between 0 and 100
+	 * @return the value in nanoseconds, zero if no values were recorded
+	 */
+	public long getValueAtPercentile(double percentile) {
+		long[] snapshot = new long[BUCKETS];
+		long recorded = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			snapshot[i] = counts.get(i);
+			recorded += snapshot[i];
+		}
+		if (recorded == 0) {
+			return 0;
+		}
+		
+		double p = Math.min(100.0, Math.max(0.0, percentile));
+		long rank = Math.max(1, (long) Math.ceil(p / 100.0 * recorded));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += snapshot[i];
+			if (seen >= rank) {
+				return Math.min(upperBound(i), getMax());
+			}
+		}
+		return getMax();
+	}
+	
+	/**
+	 * Reset all recorded values. Values recorded concurrently may be
+	 * partially reset.
+	 */
+	public void reset() {
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0);
+		}
+		count.reset();
+		total.reset();
+		max.set(0);
+	}
+	
+	/**
+	 * Get the index of the bucket for the given value
+	 * 
+	 * @param value the non-negative value
+	 * @return the bucket index
+	 */
+	static int bucketIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int exponent = 63 - Long.numberOfLeadingZeros(value);
+		int shift = exponent - SUB_BUCKET_BITS;
+		int subBucket = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + subBucket;
+	}
+	
+	/**
+	 * Get the largest value that falls into the bucket with the given index
+	 * 
+	 * @param index the bucket index
+	 * @return the upper bound of the bucket
+	 */
+	static long upperBound(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lower = ((long) (SUB_BUCKETS + index % SUB_BUCKETS)) << shift;
+		return lower + (1L << shift) - 1;
+	}
+
+}
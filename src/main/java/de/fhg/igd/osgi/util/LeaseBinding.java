@@ -0,0 +1,142 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: LeaseBinding</p>
+ * <p>Description: A bound service instance with the number of active
+ * {@link ServiceLease}s on it. Acquiring and releasing leases is lock-free,
+ * only retiring the binding waits for the active leases to be released.</p>
+ * 
+ * @param <T> the service type
+ */
+final class LeaseBinding<T> {
+	
+	private final ServiceReference<T> reference;
+	
+	private final T service;
+	
+	/**
+	 * The number of active leases
+	 */
+	private final AtomicInteger leases = new AtomicInteger();
+	
+	/**
+	 * If the binding is retired, no leases can be acquired any more
+	 */
+	private volatile boolean retired = false;
+
+	/**
+	 * Create a binding
+	 * 
+	 * @param reference the service reference
+	 * @param service the service instance
+	 */
+	public LeaseBinding(ServiceReference<T> reference, T service) {
+		this.reference = reference;
+		this.service = service;
+	}
+	
+	/**
+	 * Try to acquire a lease
+	 * 
+	 * @return the lease or <code>null</code> if the binding is retired
+	 */
+	public ServiceLease<T> acquire() {
+		leases.incrementAndGet();
+		if (retired) {
+			// the binding is being replaced, back off
+			release();
+			return null;
+		}
+		return new ServiceLease<T>(this);
+	}
+	
+	/**
+	 * Release a lease
+	 */
+	void release() {
+		if (leases.decrementAndGet() == 0 && retired) {
+			synchronized (this) {
+				notifyAll();
+			}
+		}
+	}
+	
+	/**
+	 * Retire the binding, so no more leases can be acquired, and wait for
+	 * the active leases to be released
+	 * 
+	 * @param timeout the maximum time to wait
+	 * @param unit the time unit of the timeout
+	 * @return if all leases were released, <code>false</code> if the
+	 *   timeout elapsed or the thread was interrupted
+	 */
+	public boolean retire(long timeout, TimeUnit unit) {
+		retired = true;
+		if (leases.get() == 0) {
+			return true;
+		}
+		
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		synchronized (this) {
+			while (leases.get() > 0) {
+				long remaining = deadline - System.nanoTime();
+				if (remaining <= 0) {
+					return false;
+				}
+				try {
+					TimeUnit.NANOSECONDS.timedWait(this, remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * @return the number of active leases
+	 */
+	public int getLeaseCount() {
+		return leases.get();
+	}
+
+	/**
+	 * @return the service reference
+	 */
+	public ServiceReference<T> getReference() {
+		return reference;
+	}
+
+	/**
+	 * @return the service instance
+	 */
+	public T getService() {
+		return service;
+	}
+
+}
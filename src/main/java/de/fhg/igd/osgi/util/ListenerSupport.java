@@ -0,0 +1,315 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ListenerSupport</p>
+ * <p>Description: Thread safe listener list for the service trackers.
+ * Adding and removing listeners is lock-free and may happen concurrently to
+ * notifications. Notifications are either delivered on the notifying
+ * thread or, if an executor is set, asynchronously. Asynchronous
+ * notifications of a listener are delivered one after another in the order
+ * they were dispatched. This also holds when the executor is changed, a
+ * notification is never delivered to a listener before those dispatched to
+ * it earlier.</p>
+ * 
+ * @param <L> the listener type
+ */
+final class ListenerSupport<L> {
+	
+	private static final Logger log = LoggerFactory.getLogger(ListenerSupport.class);
+	
+	/**
+	 * A notification of a listener
+	 * 
+	 * @param <L> the listener type
+	 */
+	public interface Notification<L> {
+		
+		/**
+		 * Notify the listener
+		 * 
+		 * @param listener the listener
+		 */
+		public void notify(L listener);
+		
+	}
+	
+	/**
+	 * The registered listeners, replaced on each change
+	 */
+	private final AtomicReference<Registration[]> registrations = 
+			new AtomicReference<Registration[]>(newRegistrations(0));
+	
+	/**
+	 * The executor for asynchronous notifications, <code>null</code> for
+	 * synchronous notifications
+	 */
+	private volatile Executor executor;
+	
+	/**
+	 * The metrics to record notifications in, may be <code>null</code>
+	 */
+	private final TrackerMetrics metrics;
+	
+	/**
+	 * Create listener support without recording metrics
+	 */
+	public ListenerSupport() {
+		this(null);
+	}
+	
+	/**
+	 * Create listener support
+	 * 
+	 * @param metrics the metrics to record notifications in, may be
+	 *   <code>null</code>
+	 */
+	public ListenerSupport(TrackerMetrics metrics) {
+		this.metrics = metrics;
+	}
+	
+	/**
+	 * Add a listener, does nothing if it is already registered
+	 * 
+	 * @param listener the listener
+	 */
+	public void add(L listener) {
+		while (true) {
+			Registration[] current = registrations.get();
+			if (indexOf(current, listener) >= 0) {
+				return;
+			}
+			
+			Registration[] changed = Arrays.copyOf(current, current.length + 1);
+			changed[current.length] = new Registration(listener);
+			if (registrations.compareAndSet(current, changed)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * Remove a listener
+	 * 
+	 * @param listener the listener
+	 */
+	public void remove(L listener) {
+		while (true) {
+			Registration[] current = registrations.get();
+			int index = indexOf(current, listener);
+			if (index < 0) {
+				return;
+			}
+			
+			Registration[] changed = newRegistrations(current.length - 1);
+			System.arraycopy(current, 0, changed, 0, index);
+			System.arraycopy(current, index + 1, changed, index, changed.length - index);
+			if (registrations.compareAndSet(current, changed)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * @return if no listeners are registered
+	 */
+	public boolean isEmpty() {
+		return registrations.get().length == 0;
+	}
+	
+	/**
+	 * Set the executor for notifications. Notifications still queued for
+	 * a listener are delivered before any notification dispatched
+	 * afterwards, so after switching to synchronous delivery a notification
+	 * may be delivered by the thread draining the queue instead of the
+	 * notifying thread.
+	 * 
+	 * @param executor the executor to deliver notifications asynchronously,
+	 *   <code>null</code> to deliver them on the notifying thread
+	 */
+	public void setExecutor(Executor executor) {
+		this.executor = executor;
+	}
+	
+	/**
+	 * @return the executor for notifications, <code>null</code> if they
+	 *   are delivered on the notifying thread
+	 */
+	public Executor getExecutor() {
+		return executor;
+	}
+	
+	/**
+	 * Notify all listeners
+	 * 
+	 * @param notification the notification
+	 */
+	public void dispatch(Notification<L> notification) {
+		Executor executor = this.executor;
+		for (Registration registration : registrations.get()) {
+			if (executor == null) {
+				registration.deliverInOrder(notification);
+			}
+			else {
+				registration.enqueue(notification, executor);
+			}
+		}
+	}
+	
+	/**
+	 * Create an empty registration array
+	 * 
+	 * @param length the array length
+	 * @return the registration array
+	 */
+	@SuppressWarnings("unchecked")
+	private Registration[] newRegistrations(int length) {
+		return new ListenerSupport.Registration[length];
+	}
+	
+	/**
+	 * Find the index of the registration of the given listener
+	 * 
+	 * @param registrations the registrations
+	 * @param listener the listener
+	 * @return the index or <code>-1</code>
+	 */
+	private int indexOf(Registration[] registrations, L listener) {
+		for (int i = 0; i < registrations.length; i++) {
+			if (registrations[i].listener.equals(listener)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * A registered listener with its queue of pending asynchronous
+	 * notifications
+	 */
+	private class Registration implements Runnable {
+		
+		private final L listener;
+		
+		private final Queue<Notification<L>> pending = new ConcurrentLinkedQueue<Notification<L>>();
+		
+		/**
+		 * If a thread is draining the queue or about to do so
+		 */
+		private final AtomicBoolean scheduled = new AtomicBoolean(false);
+
+		/**
+		 * Constructor
+		 * 
+		 * @param listener the listener
+		 */
+		public Registration(L listener) {
+			this.listener = listener;
+		}
+		
+		/**
+		 * Deliver a notification on the current thread
+		 * 
+		 * @param notification the notification
+		 */
+		public void deliver(Notification<L> notification) {
+			long start = (metrics != null && TrackerMetrics.isEnabled()) ? System.nanoTime() : 0;
+			try {
+				notification.notify(listener);
+			} catch (RuntimeException e) {
+				log.error("Error notifying service listener", e);
+			}
+			if (start != 0) {
+				metrics.dispatched(System.nanoTime() - start);
+			}
+		}
+		
+		/**
+		 * Deliver a notification on the current thread unless asynchronous
+		 * notifications are still pending. In that case it is queued behind
+		 * them and the queue is drained on the current thread, unless
+		 * another thread is already draining it.
+		 * 
+		 * @param notification the notification
+		 */
+		public void deliverInOrder(Notification<L> notification) {
+			if (pending.isEmpty() && !scheduled.get()) {
+				deliver(notification);
+				return;
+			}
+			
+			pending.add(notification);
+			if (scheduled.compareAndSet(false, true)) {
+				run();
+			}
+		}
+		
+		/**
+		 * Queue a notification for asynchronous delivery
+		 * 
+		 * @param notification the notification
+		 * @param executor the executor to drain the queue with if it is not
+		 *   drained yet
+		 */
+		public void enqueue(Notification<L> notification, Executor executor) {
+			pending.add(notification);
+			if (scheduled.compareAndSet(false, true)) {
+				try {
+					executor.execute(this);
+				} catch (RuntimeException e) {
+					scheduled.set(false);
+					log.error("Could not schedule listener notification", e);
+				}
+			}
+		}
+
+		/**
+		 * Deliver the pending notifications, only one thread at a time does
+		 * this for a listener
+		 */
+		@Override
+		public void run() {
+			do {
+				try {
+					Notification<L> notification;
+					while ((notification = pending.poll()) != null) {
+						deliver(notification);
+					}
+				} finally {
+					scheduled.set(false);
+				}
+				// notifications may have been queued after polling the last one
+			} while (!pending.isEmpty() && scheduled.compareAndSet(false, true));
+		}
+		
+	}
+
+}
@@ -0,0 +1,46 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Collection;
+
+/**
+ * <p>Title: MultiServiceBatchListener</p>
+ * <p>Description: Listener for {@link MultiServiceTracker}s that coalesce
+ * service changes. Instead of being notified about each change, the
+ * listener is notified once about all changes within the coalescing window.
+ * If changes are not coalesced, the methods of {@link MultiServiceListener}
+ * are called as usual.</p>
+ * @param <T> the service type
+ * @see MultiServiceTracker#setCoalescingWindow(long, java.util.concurrent.TimeUnit)
+ */
+public interface MultiServiceBatchListener<T> extends MultiServiceListener<T> {
+	
+	/**
+	 * Called once for all services added and removed within the coalescing
+	 * window. Services that were registered and unregistered again within
+	 * the window are not reported at all.
+	 * 
+	 * @param added the added service instances, may be empty
+	 * @param removed the removed service instances, may be empty
+	 */
+	public void servicesChanged(Collection<T> added, Collection<T> removed);
+
+}
@@ -19,13 +19,33 @@
 
 package de.fhg.igd.osgi.util;
 
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
 import org.osgi.framework.ServiceReference;
 
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+
 /**
  * <p>Title: MultiServiceTracker</p>
  * <p>Description: Tracks service instances</p>
@@ -34,9 +54,88 @@ import org.osgi.framework.ServiceReference;
  */
 public class MultiServiceTracker<T> extends ServiceTracker<T> {
 	
-	private final Map<ServiceReference<T>, T> services = new HashMap<ServiceReference<T>, T>();
+	private final Map<ServiceReference<T>, ServiceHolder<T>> services = 
+			new HashMap<ServiceReference<T>, ServiceHolder<T>>();
+	
+	/**
+	 * If service instances are only obtained on first access
+	 */
+	private final boolean lazy;
+	
+	/**
+	 * The time in nanoseconds after which lazily obtained services that were
+	 * not accessed are released, zero if they are kept
+	 */
+	private volatile long idleTimeout = 0;
+	
+	/**
+	 * The scheduled sweep releasing idle services, guarded by
+	 * {@link #services}
+	 */
+	private TimerWheel.Timeout idleSweep;
+	
+	/**
+	 * The window in nanoseconds to coalesce service changes in, zero if
+	 * changes are applied right away
+	 */
+	private volatile long coalescingWindow = 0;
+	
+	/**
+	 * Services registered within the current coalescing window, guarded by
+	 * {@link #services}
+	 */
+	private final Set<ServiceReference<T>> pendingAdded = new LinkedHashSet<ServiceReference<T>>();
+	
+	/**
+	 * Services removed within the current coalescing window whose removal
+	 * is still to be reported to the listeners, guarded by {@link #services}
+	 */
+	private final List<T> pendingRemoved = new ArrayList<T>();
+	
+	/**
+	 * If service properties were modified within the current coalescing
+	 * window, guarded by {@link #services}
+	 */
+	private boolean pendingModified = false;
+	
+	/**
+	 * The scheduled application of the pending changes, guarded by
+	 * {@link #services}
+	 */
+	private TimerWheel.Timeout pendingFlush;
+	
+	/**
+	 * Lock held while applying pending changes and changes that are not
+	 * coalesced, so they are applied and reported in order
+	 */
+	private final Object flushLock = new Object();
+	
+	/**
+	 * The current snapshot of the services, rebuilt when services change
+	 */
+	private volatile ServiceSnapshot<T> snapshot = ServiceSnapshot.empty();
+	
+	/**
+	 * The names of the indexed service properties in lower case, guarded by
+	 * {@link #services}
+	 */
+	private final Set<String> indexedProperties = new HashSet<String>();
+	
+	/**
+	 * The property indexes, mapping lower case property names to property
+	 * values and the services with that value. Rebuilt together with the
+	 * snapshot and never modified afterwards.
+	 */
+	private volatile Map<String, Map<Object, ServiceSnapshot<T>>> indexes = 
+			Collections.emptyMap();
+	
+	private final ListenerSupport<MultiServiceListener<T>> listeners = 
+			new ListenerSupport<MultiServiceListener<T>>(getMetrics());
 	
-	private final Set<MultiServiceListener<T>> listeners = new HashSet<MultiServiceListener<T>>();
+	/**
+	 * Futures waiting for a number of services to be available
+	 */
+	private final Set<QuorumWaiter> waiters = new HashSet<QuorumWaiter>();
 
 	/**
 	 * Constructor
@@ -44,7 +143,43 @@ public class MultiServiceTracker<T> extends ServiceTracker<T> {
 	 * @param serviceClass the service type to track
 	 */
 	public MultiServiceTracker(Class<T> serviceClass) {
-		super(serviceClass);
+		this(serviceClass, null);
+	}
+	
+	/**
+	 * Create a tracker for the services of the given type that match the
+	 * given filter
+	 * 
+	 * @param serviceClass the service type to track
+	 * @param filter the filter services must match, may be <code>null</code>
+	 */
+	public MultiServiceTracker(Class<T> serviceClass, Filter filter) {
+		this(serviceClass, filter, false);
+	}
+	
+	/**
+	 * Create a tracker for the services of the given type that match the
+	 * given filter. In lazy mode a service instance is only obtained from
+	 * the framework when it is first accessed, e.g. through the snapshot
+	 * returned by {@link #getServices()}, so tracking a large number of
+	 * services that are rarely used does not activate all of them. Note that
+	 * in lazy mode an instance registered under several references is not
+	 * de-duplicated in the snapshot.
+	 * 
+	 * @param serviceClass the service type to track
+	 * @param filter the filter services must match, may be <code>null</code>
+	 * @param lazy if service instances are to be obtained on first access
+	 */
+	public MultiServiceTracker(Class<T> serviceClass, Filter filter, boolean lazy) {
+		super(serviceClass, filter);
+		this.lazy = lazy;
+	}
+	
+	/**
+	 * @return if service instances are only obtained on first access
+	 */
+	public boolean isLazy() {
+		return lazy;
 	}
 
 	/**
@@ -52,20 +187,59 @@ public class MultiServiceTracker<T> extends ServiceTracker<T> {
 	 */
 	@Override
 	protected void deregister(ServiceReference<T> service) {
-		T serviceInstance; 
+		// removals are never delayed, applied in order with pending changes
+		synchronized (flushLock) {
+			removeService(service);
+		}
+	}
+	
+	/**
+	 * Remove a service right away and release it, so an unregistered
+	 * service is neither in the snapshot nor in use after the event. Only
+	 * the notification of the listeners is coalesced. Must be called while
+	 * holding the {@link #flushLock}.
+	 * 
+	 * @param service the service reference
+	 */
+	private void removeService(ServiceReference<T> service) {
+		ServiceHolder<T> holder;
+		boolean coalesce;
 		
 		synchronized (services) {
-			serviceInstance = services.get(service);
-			if (serviceInstance == null) {
+			coalesce = coalescingWindow > 0;
+			if (coalesce && pendingAdded.remove(service)) {
+				// registered and unregistered within the window, never obtained
+				return;
+			}
+			
+			holder = services.remove(service);
+			if (holder == null) {
 				return;
 			}
 			else {
-				services.remove(service);
+				updateSnapshot();
 			}
 		}
 		
-		for (MultiServiceListener<T> listener : listeners) {
-			listener.serviceRemoved(serviceInstance);
+		// only services that were actually obtained are reported as removed
+		final T removed = holder.dispose();
+		if (removed == null) {
+			return;
+		}
+		
+		if (coalesce) {
+			synchronized (services) {
+				pendingRemoved.add(removed);
+				scheduleFlush();
+			}
+		}
+		else {
+			listeners.dispatch(new ListenerSupport.Notification<MultiServiceListener<T>>() {
+				@Override
+				public void notify(MultiServiceListener<T> listener) {
+					listener.serviceRemoved(removed);
+				}
+			});
 		}
 	}
 
@@ -74,35 +248,633 @@ public class MultiServiceTracker<T> extends ServiceTracker<T> {
 	 */
 	@Override
 	protected void register(ServiceReference<T> service) {
-		T serviceInstance = getContext().getService(service);
+		if (enqueue(service)) {
+			return;
+		}
 		
-		if (serviceInstance != null) {
+		// applied in order with pending changes, see #setCoalescingWindow
+		synchronized (flushLock) {
+			if (!enqueue(service)) {
+				addService(service);
+			}
+		}
+	}
+	
+	/**
+	 * Add a service right away, must be called while holding the
+	 * {@link #flushLock}
+	 * 
+	 * @param service the service reference
+	 */
+	private void addService(ServiceReference<T> service) {
+		ServiceHolder<T> holder = new ServiceHolder<T>(service, getContext(), this, lazy);
+		
+		if (lazy || holder.peek() != null) {
 			synchronized (services) {
-				services.put(service, serviceInstance);
+				services.put(service, holder);
+				updateSnapshot();
 			}
 			
-			for (MultiServiceListener<T> listener : listeners) {
-				listener.serviceAdded(serviceInstance);
+			// in lazy mode the service is only obtained if there are listeners
+			if (!listeners.isEmpty()) {
+				final T added = holder.get();
+				if (added != null) {
+					listeners.dispatch(new ListenerSupport.Notification<MultiServiceListener<T>>() {
+						@Override
+						public void notify(MultiServiceListener<T> listener) {
+							listener.serviceAdded(added);
+						}
+					});
+				}
 			}
+			
+			checkWaiters();
 		}
 
 	}
 	
 	/**
-	 * Get the currently available service instances
+	 * Rebuilds the snapshot for a service whose properties were modified, as
+	 * its ranking may have changed. The service instance is kept.
 	 * 
-	 * @return the set of currently available service instances
+	 * @see ServiceTracker#modified(ServiceReference)
 	 */
-	public Set<T> getServices() {
-		Set<T> result;
+	@Override
+	protected void modified(ServiceReference<T> service) {
+		if (enqueueModified()) {
+			return;
+		}
+		
+		// applied in order with pending changes, see #setCoalescingWindow
+		synchronized (flushLock) {
+			if (enqueueModified()) {
+				return;
+			}
+			synchronized (services) {
+				if (!services.containsKey(service)) {
+					return;
+				}
+				updateSnapshot();
+			}
+			
+			// the service may now match the filter of a waiter
+			checkWaiters();
+		}
+	}
+	
+	/**
+	 * Record a modification to be applied when the coalescing window has
+	 * elapsed
+	 * 
+	 * @return if the modification was recorded, <code>false</code> if
+	 *   changes are not coalesced
+	 */
+	private boolean enqueueModified() {
+		synchronized (services) {
+			if (coalescingWindow <= 0) {
+				return false;
+			}
+			pendingModified = true;
+			scheduleFlush();
+			return true;
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#stop()
+	 */
+	@Override
+	public void stop() {
+		synchronized (services) {
+			if (idleSweep != null) {
+				idleSweep.cancel();
+				idleSweep = null;
+			}
+		}
+		
+		super.stop();
+		
+		// report the removals of the stopped tracker
+		flush();
+		
+		// nobody will complete the pending futures any more
+		List<QuorumWaiter> pending;
+		synchronized (waiters) {
+			pending = new ArrayList<QuorumWaiter>(waiters);
+			waiters.clear();
+		}
+		for (QuorumWaiter waiter : pending) {
+			waiter.future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Set the window to coalesce service changes in. Services registered
+	 * within the window are added together when the window has elapsed,
+	 * resulting in a single snapshot rebuild and, for
+	 * {@link MultiServiceBatchListener}s, a single notification that also
+	 * reports the services removed within the window. Unregistered services
+	 * are removed from the snapshot and released right away like without
+	 * coalescing, only their notification is delayed. Services that are
+	 * registered and unregistered again within the window cancel out and
+	 * are never obtained. When coalescing is disabled, the pending changes
+	 * are applied before any change that follows.
+	 * 
+	 * @param window the coalescing window, zero or less to apply each
+	 *   change right away
+	 * @param unit the time unit of the window
+	 */
+	public void setCoalescingWindow(long window, TimeUnit unit) {
+		long nanos = Math.max(0, unit.toNanos(window));
+		synchronized (flushLock) {
+			synchronized (services) {
+				coalescingWindow = nanos;
+			}
+			if (nanos == 0) {
+				// changes not enqueued from now on wait for the flush lock
+				flushPending();
+			}
+		}
+	}
+	
+	/**
+	 * Record a registered service to be added when the coalescing window
+	 * has elapsed
+	 * 
+	 * @param service the service reference
+	 * @return if the service was recorded, <code>false</code> if changes
+	 *   are not coalesced
+	 */
+	private boolean enqueue(ServiceReference<T> service) {
+		synchronized (services) {
+			if (coalescingWindow <= 0) {
+				return false;
+			}
+			
+			pendingAdded.add(service);
+			scheduleFlush();
+			return true;
+		}
+	}
+	
+	/**
+	 * Schedule applying the pending changes if not yet scheduled, must be
+	 * called while holding the lock on {@link #services}. The changes are
+	 * applied on the background executor, as obtaining services and
+	 * notifying listeners must not block the timer thread.
+	 */
+	private void scheduleFlush() {
+		if (pendingFlush == null) {
+			pendingFlush = TimerWheel.getDefault().schedule(new Runnable() {
+				@Override
+				public void run() {
+					flush();
+				}
+			}, coalescingWindow, TimeUnit.NANOSECONDS, BackgroundExecutor.getDefault());
+		}
+	}
+	
+	/**
+	 * Apply the pending service changes and notify the listeners
+	 */
+	private void flush() {
+		synchronized (flushLock) {
+			flushPending();
+		}
+	}
+	
+	/**
+	 * Apply the pending service changes and notify the listeners, must be
+	 * called while holding the {@link #flushLock}
+	 */
+	private void flushPending() {
+		List<ServiceReference<T>> toAdd;
+		final List<T> removed;
+		boolean modified;
+		synchronized (services) {
+			if (pendingFlush != null) {
+				pendingFlush.cancel();
+				pendingFlush = null;
+			}
+			toAdd = new ArrayList<ServiceReference<T>>(pendingAdded);
+			removed = new ArrayList<T>(pendingRemoved);
+			modified = pendingModified;
+			pendingAdded.clear();
+			pendingRemoved.clear();
+			pendingModified = false;
+		}
+		
+		if (toAdd.isEmpty() && removed.isEmpty() && !modified) {
+			return;
+		}
+		
+		// obtain the added services outside the lock
+		List<ServiceHolder<T>> addedHolders = new ArrayList<ServiceHolder<T>>(toAdd.size());
+		BundleContext context = getContext();
+		if (context != null) {
+			for (ServiceReference<T> service : toAdd) {
+				ServiceHolder<T> holder = new ServiceHolder<T>(service, context, this, lazy);
+				if (lazy || holder.peek() != null) {
+					addedHolders.add(holder);
+				}
+			}
+		}
+		
+		if (!addedHolders.isEmpty() || modified) {
+			synchronized (services) {
+				for (ServiceHolder<T> holder : addedHolders) {
+					services.put(holder.getReference(), holder);
+				}
+				updateSnapshot();
+			}
+		}
 		
+		// in lazy mode the services are only obtained if there are listeners
+		final List<T> added = new ArrayList<T>(addedHolders.size());
+		if (!listeners.isEmpty()) {
+			for (ServiceHolder<T> holder : addedHolders) {
+				T service = holder.get();
+				if (service != null) {
+					added.add(service);
+				}
+			}
+		}
+		
+		if (!added.isEmpty() || !removed.isEmpty()) {
+			final Collection<T> addedView = Collections.unmodifiableList(added);
+			final Collection<T> removedView = Collections.unmodifiableList(removed);
+			listeners.dispatch(new ListenerSupport.Notification<MultiServiceListener<T>>() {
+				@Override
+				public void notify(MultiServiceListener<T> listener) {
+					if (listener instanceof MultiServiceBatchListener<?>) {
+						((MultiServiceBatchListener<T>) listener).servicesChanged(
+								addedView, removedView);
+					}
+					else {
+						for (T service : removedView) {
+							listener.serviceRemoved(service);
+						}
+						for (T service : addedView) {
+							listener.serviceAdded(service);
+						}
+					}
+				}
+			});
+		}
+		
+		checkWaiters();
+	}
+	
+	/**
+	 * Set the time after which lazily obtained services that have not been
+	 * accessed are released again. They are obtained anew on the next
+	 * access. Has no effect if the tracker is not lazy.
+	 * 
+	 * @param timeout the idle timeout, zero or less to keep services until
+	 *   they are unregistered
+	 * @param unit the time unit of the timeout
+	 */
+	public void setIdleTimeout(long timeout, TimeUnit unit) {
 		synchronized (services) {
-			result = new HashSet<T>(services.values());
+			idleTimeout = Math.max(0, unit.toNanos(timeout));
+			if (idleSweep != null) {
+				idleSweep.cancel();
+				idleSweep = null;
+			}
+			scheduleIdleSweep();
+		}
+	}
+	
+	/**
+	 * Schedule the next sweep releasing idle services, must be called while
+	 * holding the lock on {@link #services}. Releasing a service calls into
+	 * the framework, so the sweep is executed on the background executor
+	 * rather than the timer thread.
+	 */
+	private void scheduleIdleSweep() {
+		final long timeout = idleTimeout;
+		if (!lazy || timeout <= 0) {
+			return;
 		}
 		
+		idleSweep = TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				ServiceSnapshot<T> current = snapshot;
+				for (int i = 0; i < current.getReferenceCount(); i++) {
+					current.getHolder(i).releaseIfIdle(timeout);
+				}
+				
+				synchronized (services) {
+					if (idleTimeout == timeout) {
+						scheduleIdleSweep();
+					}
+				}
+			}
+		}, Math.max(timeout / 2, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS,
+				BackgroundExecutor.getDefault());
+	}
+	
+	/**
+	 * Get the currently available service instances. The returned set is an
+	 * immutable snapshot ordered by service ranking, it is only rebuilt when
+	 * services are registered, unregistered or modified and thus cheap to
+	 * retrieve.
+	 * 
+	 * @return the set of currently available service instances
+	 */
+	public ServiceSnapshot<T> getServices() {
+		ServiceSnapshot<T> result = snapshot;
+		getMetrics().lookup(result.getReferenceCount() > 0);
 		return result;
 	}
 	
+	/**
+	 * Maintain an index on the service property with the given name, so
+	 * services can be looked up by property value in constant time using
+	 * {@link #getServices(String, Object)}. For multi-valued properties
+	 * (arrays or collections) the service is indexed under each value. The
+	 * index is kept up to date when services are registered, unregistered
+	 * or modified.
+	 * 
+	 * @param property the property name
+	 */
+	public void addIndex(String property) {
+		synchronized (services) {
+			if (indexedProperties.add(property.toLowerCase(Locale.ENGLISH))) {
+				updateSnapshot();
+			}
+		}
+	}
+	
+	/**
+	 * Get the currently available services that have the given value for
+	 * the given property. If the property is indexed (see
+	 * {@link #addIndex(String)}), this is a constant time lookup, otherwise
+	 * all services are checked. Property values are compared using
+	 * {@link Object#equals(Object)}, so the type of the value must match the
+	 * type of the property, e.g. {@link Integer} for
+	 * {@link org.osgi.framework.Constants#SERVICE_RANKING}.
+	 * 
+	 * @param property the property name
+	 * @param value the property value
+	 * @return the matching services as immutable snapshot ordered by service
+	 *   ranking
+	 */
+	public ServiceSnapshot<T> getServices(String property, Object value) {
+		Map<Object, ServiceSnapshot<T>> index = indexes.get(
+				property.toLowerCase(Locale.ENGLISH));
+		if (index != null) {
+			ServiceSnapshot<T> result = index.get(value);
+			return (result == null) ? ServiceSnapshot.<T>empty() : result;
+		}
+		
+		ServiceSnapshot<T> current = snapshot;
+		List<ServiceHolder<?>> matching = new ArrayList<ServiceHolder<?>>();
+		List<Object> values = new ArrayList<Object>();
+		for (int i = 0; i < current.getReferenceCount(); i++) {
+			values.clear();
+			collectValues(current.getReference(i).getProperty(property), values);
+			if (values.contains(value)) {
+				matching.add(current.getHolder(i));
+			}
+		}
+		return new ServiceSnapshot<T>(current.getVersion(),
+				matching.toArray(new ServiceHolder<?>[matching.size()]));
+	}
+	
+	/**
+	 * Get the highest ranked available service that has the given value for
+	 * the given property.
+	 * 
+	 * @param property the property name
+	 * @param value the property value
+	 * @return the service or <code>null</code> if there is no such service
+	 * @see #getServices(String, Object)
+	 */
+	public T getService(String property, Object value) {
+		ServiceSnapshot<T> matching = getServices(property, value);
+		for (int i = 0; i < matching.getReferenceCount(); i++) {
+			T service = matching.get(i);
+			if (service != null) {
+				return service;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Add the values of a service property to the given collection, the
+	 * elements of arrays and collections are added individually
+	 * 
+	 * @param value the property value, may be <code>null</code>
+	 * @param values the collection to add the values to
+	 */
+	private static void collectValues(Object value, Collection<Object> values) {
+		if (value == null) {
+			return;
+		}
+		
+		if (value instanceof Collection<?>) {
+			values.addAll((Collection<?>) value);
+		}
+		else if (value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			for (int i = 0; i < length; i++) {
+				values.add(Array.get(value, i));
+			}
+		}
+		else {
+			values.add(value);
+		}
+	}
+	
+	/**
+	 * Rebuild the snapshot and the property indexes from the current
+	 * services, must be called while holding the lock on {@link #services}
+	 */
+	private void updateSnapshot() {
+		List<ServiceReference<T>> references = new ArrayList<ServiceReference<T>>(
+				services.keySet());
+		// highest ranking first
+		Collections.sort(references, Collections.reverseOrder());
+		
+		List<ServiceHolder<T>> holders = new ArrayList<ServiceHolder<T>>(references.size());
+		Set<T> added = Collections.newSetFromMap(new IdentityHashMap<T, Boolean>());
+		for (ServiceReference<T> reference : references) {
+			ServiceHolder<T> holder = services.get(reference);
+			// the same instance may be registered more than once
+			if (lazy || added.add(ServiceInstrumentation.unwrap(holder.peek()))) {
+				holders.add(holder);
+			}
+		}
+		
+		long version = snapshot.getVersion() + 1;
+		
+		if (!indexedProperties.isEmpty()) {
+			Map<String, Map<Object, ServiceSnapshot<T>>> newIndexes = 
+					new HashMap<String, Map<Object, ServiceSnapshot<T>>>();
+			Set<Object> values = new HashSet<Object>();
+			for (String property : indexedProperties) {
+				// services per value, in ranking order
+				Map<Object, List<ServiceHolder<?>>> byValue = 
+						new HashMap<Object, List<ServiceHolder<?>>>();
+				for (ServiceHolder<T> holder : holders) {
+					values.clear();
+					collectValues(holder.getReference().getProperty(property), values);
+					for (Object value : values) {
+						List<ServiceHolder<?>> list = byValue.get(value);
+						if (list == null) {
+							list = new ArrayList<ServiceHolder<?>>();
+							byValue.put(value, list);
+						}
+						list.add(holder);
+					}
+				}
+				
+				Map<Object, ServiceSnapshot<T>> index = new HashMap<Object, ServiceSnapshot<T>>();
+				for (Map.Entry<Object, List<ServiceHolder<?>>> entry : byValue.entrySet()) {
+					index.put(entry.getKey(), new ServiceSnapshot<T>(version,
+							entry.getValue().toArray(new ServiceHolder<?>[entry.getValue().size()])));
+				}
+				newIndexes.put(property, index);
+			}
+			indexes = newIndexes;
+		}
+		
+		snapshot = new ServiceSnapshot<T>(version,
+				holders.toArray(new ServiceHolder<?>[holders.size()]));
+		getMetrics().rebind();
+	}
+	
+	/**
+	 * Asynchronously wait for at least the given number of services to be
+	 * available. The returned future is completed directly when the service
+	 * that fulfills the quorum is registered, no thread is blocked while
+	 * waiting. Cancelling the future removes it from the waiting futures,
+	 * stopping the tracker cancels it.
+	 * 
+	 * @param count the minimum number of services
+	 * @param filter the filter services must match to be counted, may be
+	 *   <code>null</code>
+	 * @param executor the executor to complete the future with, and thus
+	 *   to run its listeners, <code>null</code> to complete it on the thread
+	 *   delivering the service event
+	 * @return the future that will contain the matching services
+	 */
+	public ListenableFuture<Set<T>> asyncWaitForServices(int count, Filter filter,
+			Executor executor) {
+		final SettableFuture<Set<T>> future = SettableFuture.create();
+		final QuorumWaiter waiter = new QuorumWaiter(future, count, filter, executor);
+		
+		synchronized (waiters) {
+			waiters.add(waiter);
+		}
+		
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					synchronized (waiters) {
+						waiters.remove(waiter);
+					}
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		
+		// the quorum may already be fulfilled
+		checkWaiters();
+		
+		return future;
+	}
+	
+	/**
+	 * Wait for at least the given number of services to be available. The
+	 * waiting thread is woken up as soon as the service that fulfills the
+	 * quorum is registered.
+	 * 
+	 * @param count the minimum number of services
+	 * @param filter the filter services must match to be counted, may be
+	 *   <code>null</code>
+	 * @param timeout the maximum time to wait
+	 * @param unit the time unit of the timeout
+	 * @return the matching services or <code>null</code> if the timeout has
+	 *   elapsed or the tracker was stopped before enough services were
+	 *   available
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public Set<T> waitForServices(int count, Filter filter, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		ListenableFuture<Set<T>> future = asyncWaitForServices(count, filter, null);
+		try {
+			return future.get(timeout, unit);
+		} catch (TimeoutException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Complete the waiters whose quorum is fulfilled. The quorum is checked
+	 * against the service references while holding the lock, the services
+	 * are only dereferenced for the waiters that are completed, outside the
+	 * lock. If a lazily obtained service turns out not to be available any
+	 * more, the waiter keeps waiting.
+	 */
+	private void checkWaiters() {
+		List<QuorumWaiter> fulfilled = new ArrayList<QuorumWaiter>();
+		List<List<ServiceHolder<T>>> results = new ArrayList<List<ServiceHolder<T>>>();
+		
+		synchronized (waiters) {
+			if (waiters.isEmpty()) {
+				return;
+			}
+			
+			ServiceSnapshot<T> current = snapshot;
+			for (QuorumWaiter waiter : waiters) {
+				List<ServiceHolder<T>> matching = new ArrayList<ServiceHolder<T>>();
+				for (int i = 0; i < current.getReferenceCount(); i++) {
+					if (waiter.filter == null || waiter.filter.match(current.getReference(i))) {
+						matching.add(current.getHolder(i));
+					}
+				}
+				
+				if (matching.size() >= waiter.count) {
+					fulfilled.add(waiter);
+					results.add(matching);
+				}
+			}
+			
+			waiters.removeAll(fulfilled);
+		}
+		
+		for (int i = 0; i < fulfilled.size(); i++) {
+			QuorumWaiter waiter = fulfilled.get(i);
+			Set<T> services = new HashSet<T>();
+			for (ServiceHolder<T> holder : results.get(i)) {
+				T service = holder.get();
+				if (service != null) {
+					services.add(service);
+				}
+			}
+			
+			if (services.size() >= waiter.count) {
+				waiter.complete(services);
+			}
+			else if (!waiter.future.isCancelled()) {
+				// services went away in the meantime, wait for the next change
+				synchronized (waiters) {
+					waiters.add(waiter);
+				}
+			}
+		}
+	}
+	
 	/**
 	 * Adds a {@link MultiServiceListener}
 	 * 
@@ -120,5 +892,101 @@ public class MultiServiceTracker<T> extends ServiceTracker<T> {
 	public void removeListener(MultiServiceListener<T> listener) {
 		listeners.remove(listener);
 	}
+	
+	/**
+	 * @see ServiceTracker#getPendingWaits()
+	 */
+	@Override
+	int getPendingWaits() {
+		synchronized (waiters) {
+			return waiters.size();
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#isInUse()
+	 */
+	@Override
+	boolean isInUse() {
+		if (!listeners.isEmpty()) {
+			return true;
+		}
+		synchronized (waiters) {
+			return !waiters.isEmpty();
+		}
+	}
+	
+	/**
+	 * Set the executor to notify listeners with. By default listeners are
+	 * notified on the thread delivering the service event. If an executor is
+	 * set, listeners are notified asynchronously, so slow listeners do not
+	 * block the delivery of framework events. The notifications of each
+	 * listener are still delivered one after another in order. Note that in
+	 * this case {@link MultiServiceListener#serviceRemoved(Object)} may be
+	 * called after the service has already been released.
+	 * 
+	 * @param executor the executor, <code>null</code> to notify listeners
+	 *   synchronously
+	 */
+	public void setListenerExecutor(Executor executor) {
+		listeners.setExecutor(executor);
+	}
+	
+	/**
+	 * A future waiting for a number of services
+	 */
+	private class QuorumWaiter {
+		
+		private final SettableFuture<Set<T>> future;
+		
+		private final int count;
+		
+		private final Filter filter;
+		
+		private final Executor executor;
+		
+		private final long created = System.nanoTime();
+
+		/**
+		 * Create a quorum waiter
+		 * 
+		 * @param future the future to complete
+		 * @param count the minimum number of services
+		 * @param filter the filter services must match, may be
+		 *   <code>null</code>
+		 * @param executor the executor to complete the future with, may be
+		 *   <code>null</code>
+		 */
+		public QuorumWaiter(SettableFuture<Set<T>> future, int count, Filter filter,
+				Executor executor) {
+			this.future = future;
+			this.count = count;
+			this.filter = filter;
+			this.executor = executor;
+		}
+		
+		/**
+		 * Record the wait and complete the future with the given services,
+		 * only called by the thread that removed the waiter from the
+		 * waiting futures
+		 * 
+		 * @param services the matching services
+		 */
+		public void complete(final Set<T> services) {
+			getMetrics().waited(System.nanoTime() - created);
+			if (executor == null) {
+				future.set(services);
+			}
+			else {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						future.set(services);
+					}
+				});
+			}
+		}
+		
+	}
 
 }
@@ -27,21 +27,37 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Dictionary;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.concurrent.Callable;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
 import org.osgi.framework.FrameworkUtil;
 
+import com.google.common.base.Function;
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * Utilities for OSGI
@@ -73,8 +89,12 @@ public final class OsgiUtils {
 	}
 
 	/**
-	 * Wait until the condition is <code>true</code>, the condition
-	 * will be checked every second
+	 * Wait until the condition is <code>true</code>. The condition is
+	 * evaluated on a shared scheduler, first in short intervals that grow
+	 * up to one second.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
 	 * 
 	 * @param condition the condition
 	 * @param timeout the timeout in seconds after which to return even
@@ -83,56 +103,108 @@ public final class OsgiUtils {
 	 * @return the condition value
 	 */
 	public static boolean waitUntil(final Condition condition, final int timeout) {
-		if (timeout <= 0) {
+		try {
+			return waitUntil(condition, Math.max(0, timeout), TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
 			return condition.evaluate();
 		}
-		
-		if (condition.evaluate()) {
-			return true;
-		}
-		else {
-			for (int i = 0; i < timeout; i++) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					// ignore
-				}
-				if (condition.evaluate()) {
-					return true;
-				}
-			}
-			
-			return false;
-		}
 	}
 	
 	/**
-	 * Wait infinitely until the condition is <code>true</code>, the condition
-	 * will be checked every second
+	 * Wait infinitely until the condition is <code>true</code>. The
+	 * condition is evaluated on a shared scheduler, first in short intervals
+	 * that grow up to one second.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
 	 * 
 	 * ATTENTION: Please be absolute sure what you are doing before calling this
-	 * method, since it uses an infinite loop internally.
+	 * method, since it may block forever.
 	 * 
 	 * @param condition the condition
 	 *   
 	 * @return the condition value
 	 */
 	public static boolean waitUntil(final Condition condition) {
-		if (condition.evaluate()) {
-			return true;
+		try {
+			return waitUntil(condition, -1, TimeUnit.SECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return condition.evaluate();
 		}
-		else {
-			while (true) {
-				try {
-					Thread.sleep(1000);
-				} catch (InterruptedException e) {
-					// ignore
-				}
-				if (condition.evaluate()) {
-					return true;
-				}
+	}
+	
+	/**
+	 * Wait until the condition is <code>true</code>. The condition is
+	 * evaluated on a shared scheduler, first in short intervals that grow
+	 * up to one second, and a last time when the timeout elapses. The
+	 * condition is evaluated on a shared pool of background threads, so it
+	 * should be fast to evaluate. A
+	 * {@link FrameworkCondition} that declares its dependencies is not
+	 * polled, but re-evaluated on the framework events it depends on. If
+	 * the bundle is stopped while waiting, the method returns early with the
+	 * current condition value.
+	 * 
+	 * @param condition the condition
+	 * @param timeout the timeout after which to return even if the
+	 *   condition is <code>false</code>, a negative value to wait infinitely
+	 * @param unit the time unit of the timeout
+	 * @return the condition value
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public static boolean waitUntil(final Condition condition, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		ListenableFuture<Boolean> future = asyncWaitUntil(condition, timeout, unit);
+		try {
+			// don't rely on the scheduler alone to honor the timeout
+			return (timeout < 0) ? future.get() : future.get(timeout, unit);
+		} catch (InterruptedException e) {
+			future.cancel(false);
+			throw e;
+		} catch (TimeoutException e) {
+			future.cancel(false);
+			return condition.evaluate();
+		} catch (CancellationException e) {
+			// the pending waits were cancelled as the bundle is stopped
+			return condition.evaluate();
+		} catch (ExecutionException e) {
+			Throwables.propagateIfPossible(e.getCause());
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	
+	/**
+	 * Asynchronously wait until the condition is <code>true</code>. The
+	 * condition is evaluated on a shared scheduler, first in short intervals
+	 * that grow up to one second, and a last time when the timeout elapses.
+	 * The condition is evaluated on a shared pool of background threads, so
+	 * it should be fast to evaluate. A
+	 * {@link FrameworkCondition} that declares its dependencies is not
+	 * polled, but re-evaluated on the framework events it depends on.
+	 * Cancelling the future stops the evaluation, the future is cancelled
+	 * when the bundle is stopped.
+	 * 
+	 * @param condition the condition
+	 * @param timeout the timeout after which the future is completed even
+	 *   if the condition is <code>false</code>, a negative value to wait
+	 *   infinitely
+	 * @param unit the time unit of the timeout
+	 * @return the future that is completed with the condition value
+	 */
+	public static ListenableFuture<Boolean> asyncWaitUntil(final Condition condition,
+			long timeout, TimeUnit unit) {
+		if (condition instanceof FrameworkCondition
+				&& ((FrameworkCondition) condition).hasDependencies()) {
+			OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+			BundleContext context = (instance == null) ? null : instance.getContext();
+			if (context != null) {
+				return ((FrameworkCondition) condition).watch(context, instance.getMultiplexer(),
+						timeout, unit);
 			}
 		}
+		
+		return ConditionScheduler.schedule(condition, timeout, unit);
 	}
 	
 	/**
@@ -151,6 +223,89 @@ public final class OsgiUtils {
 		return instance.getService(serviceType);
 	}
 	
+	/**
+	 * Get the highest ranked service with the given type that matches the
+	 * given LDAP filter. The filter is compiled once and the service is
+	 * tracked by a tracker dedicated to the combination of type and filter,
+	 * so repeated calls do not query the service registry. Only use the
+	 * returned instance while you are sure it is still valid.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the LDAP filter the service must match, may be
+	 *   <code>null</code>
+	 * @return the available service of this type or null
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public static <T> T getService(Class<T> serviceType, String filter) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance == null) {
+			return null;
+		}
+		return instance.getService(serviceType, FilterCache.get(filter));
+	}
+	
+	/**
+	 * Get a proxy for the service with the given interface. The proxy
+	 * always delegates to the currently bound service, so it can be kept
+	 * instead of looking up the service for each call. Calls are dispatched
+	 * through call sites linked to the bound service, which are only
+	 * relinked when another service is bound. Calling a method while no
+	 * service is bound throws an {@link IllegalStateException}.
+	 * The proxy is created once per interface and stays valid until the
+	 * bundle is stopped.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service interface
+	 * @return the proxy or <code>null</code> if the bundle is not started
+	 * @throws IllegalArgumentException if the service type is not a public
+	 *   interface
+	 * @see ServiceProxy
+	 */
+	public static <T> T getServiceProxy(Class<T> serviceType) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance == null) {
+			return null;
+		}
+		return instance.getServiceProxy(serviceType);
+	}
+	
+	/**
+	 * Get the instrumentation recording per method call statistics of the
+	 * services obtained through this class. It is disabled by default and
+	 * may be enabled with the
+	 * {@link OsgiUtilsActivator#PROPERTY_INSTRUMENTATION} framework property.
+	 * 
+	 * @return the service instrumentation or <code>null</code> if the bundle
+	 *   is not started
+	 */
+	public static ServiceInstrumentation getInstrumentation() {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance == null) {
+			return null;
+		}
+		return instance.getInstrumentation();
+	}
+	
+	/**
+	 * Lease the service with the given type. While the lease is open the
+	 * service instance is not released, even if it is unregistered or
+	 * replaced in the meantime, so it can be used safely until the lease is
+	 * closed. Leases should be short lived, see {@link ServiceLease}.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the lease on the available service of this type, which must
+	 *   be closed, or <code>null</code> if no service is available
+	 */
+	public static <T> ServiceLease<T> leaseService(Class<T> serviceType) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance == null) {
+			return null;
+		}
+		return instance.leaseService(serviceType);
+	}
+	
 	/**
 	 * Waits for the service with the given type to be available and then
 	 * returns it. Only use the returned instance while you are sure it is
@@ -163,73 +318,388 @@ public final class OsgiUtils {
 	 * @return the service or null if the timeout has occurred
 	 */
 	public static <T> T waitForService(final Class<T> serviceType, int timeout) {
-		T result = getService(serviceType);
-		if (result == null) {
-			waitUntil(new Condition() {
-				@Override
-				public boolean evaluate() {
-					return getService(serviceType) != null;
-				}
-			}, timeout);
-			result = getService(serviceType);
+		return waitForService(serviceType, timeout, TimeUnit.SECONDS);
+	}
+	
+	/**
+	 * Waits for the service with the given type to be available and then
+	 * returns it. The calling thread is woken up as soon as the service is
+	 * registered. Only use the returned instance while you are sure it is
+	 * still valid.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param timeout the timeout after which to return even if the service
+	 * is not available
+	 * @param unit the time unit of the timeout
+	 * @return the service or null if the timeout has occurred
+	 */
+	public static <T> T waitForService(final Class<T> serviceType, long timeout,
+			TimeUnit unit) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		try {
+			if (instance == null) {
+				// activator not available (yet), fall back to polling
+				waitUntil(new Condition() {
+					@Override
+					public boolean evaluate() {
+						return getService(serviceType) != null;
+					}
+				}, Math.max(0, timeout), unit);
+				return getService(serviceType);
+			}
+			
+			return instance.waitForService(serviceType, timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return getService(serviceType);
 		}
-		return result;
 	}
 	
 	/**
 	 * Infinitely waits for the service with the given type to be available and
-	 * then returns it. Only use the returned instance while you are sure it is
+	 * then returns it. The calling thread is woken up as soon as the service
+	 * is registered. Only use the returned instance while you are sure it is
 	 * still valid.
 	 * 
 	 * ATTENTION: Please be absolute sure what you are doing before calling this
-	 * method, since it uses an infinite loop internally.
+	 * method, since it may block forever.
 	 * 
 	 * @param <T> the service type
 	 * @param serviceType the service type
-	 * @return the service or null if the timeout has occurred
+	 * @return the service or null if the waiting thread was interrupted
 	 */
 	public static <T> T waitForService(final Class<T> serviceType) {
-		T result = getService(serviceType);
-		if (result == null) {
-			waitUntil(new Condition() {
-				@Override
-				public boolean evaluate() {
-					return getService(serviceType) != null;
-				}
-			});
-			result = getService(serviceType);
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		try {
+			if (instance == null) {
+				// activator not available (yet), fall back to polling
+				waitUntil(new Condition() {
+					@Override
+					public boolean evaluate() {
+						return getService(serviceType) != null;
+					}
+				}, -1, TimeUnit.SECONDS);
+				return getService(serviceType);
+			}
+			
+			return instance.waitForService(serviceType);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return getService(serviceType);
 		}
-		return result;
 	}
 	
 	/**
 	 * Asynchronously waits for the service with the given type to be available.
 	 * Immediately returns a {@link Future} object that can be used to get
-	 * the service later.
+	 * the service later. The future is completed by the service event that
+	 * supplies the service, its listeners are executed on the thread
+	 * delivering the event.
 	 * 
-	 * ATTENTION: The future may run infinitely if the service is not available
+	 * ATTENTION: The future may never complete if the service is not available
 	 * at all. Use {@link Future#get(long, java.util.concurrent.TimeUnit)} if
-	 * you want to limit the time to wait.
+	 * you want to limit the time to wait, cancel the future if you are no
+	 * longer interested in the service.
 	 * 
 	 * @param <T> the service type
 	 * @param serviceType the service type
 	 * @return a future that will eventually contain the service instance
 	 */
 	public static <T> ListenableFuture<T> asyncWaitForService(final Class<T> serviceType) {
-		ListenableFutureTask<T> task = ListenableFutureTask.create(new Callable<T>() {
+		return asyncWaitForService(serviceType, null);
+	}
+	
+	/**
+	 * Asynchronously waits for the service with the given type to be available.
+	 * Immediately returns a {@link Future} object that can be used to get
+	 * the service later. The future is completed by the service event that
+	 * supplies the service, no thread is blocked while waiting.
+	 * 
+	 * ATTENTION: The future may never complete if the service is not available
+	 * at all. Use {@link Future#get(long, java.util.concurrent.TimeUnit)} if
+	 * you want to limit the time to wait, cancel the future if you are no
+	 * longer interested in the service.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param executor the executor to complete the future with, and thus to
+	 *   run its listeners, <code>null</code> to complete it on the thread
+	 *   delivering the service event
+	 * @return a future that will eventually contain the service instance
+	 */
+	public static <T> ListenableFuture<T> asyncWaitForService(final Class<T> serviceType,
+			Executor executor) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance != null) {
+			ListenableFuture<T> future = instance.asyncWaitForService(serviceType, executor);
+			if (future != null) {
+				return future;
+			}
+		}
+		
+		// activator not available (yet), fall back to polling
+		ListenableFuture<Boolean> available = asyncWaitUntil(new Condition() {
 			@Override
-			public T call() throws Exception {
-				return waitForService(serviceType);
+			public boolean evaluate() {
+				return getService(serviceType) != null;
 			}
-		});
-		Executor exe = Executors.newCachedThreadPool();
-		exe.execute(task);
-		return task;
+		}, -1, TimeUnit.SECONDS);
+		return Futures.transform(available, new Function<Boolean, T>() {
+			@Override
+			public T apply(Boolean input) {
+				return getService(serviceType);
+			}
+		}, executor == null ? MoreExecutors.sameThreadExecutor() : executor);
+	}
+	
+	/**
+	 * Asynchronously waits for services of all the given types to be
+	 * available. The waits for the individual types run concurrently, the
+	 * returned future is completed as soon as the last service type is
+	 * available. Cancelling the future cancels all pending waits.
+	 * 
+	 * @param serviceTypes the service types
+	 * @return a future that will eventually contain the services of all
+	 *   given types
+	 */
+	public static ListenableFuture<AvailableServices> asyncWaitForAllServices(
+			Class<?>... serviceTypes) {
+		final Map<Class<?>, ListenableFuture<?>> futures = startServiceWaits(serviceTypes);
+		final SettableFuture<AvailableServices> result = SettableFuture.create();
+		
+		if (futures.isEmpty()) {
+			result.set(collectServices(futures));
+			return result;
+		}
+		
+		final AtomicInteger remaining = new AtomicInteger(futures.size());
+		for (ListenableFuture<?> future : futures.values()) {
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					if (remaining.decrementAndGet() == 0) {
+						result.set(collectServices(futures));
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+		
+		cancelOnCancel(result, futures.values());
+		return result;
+	}
+	
+	/**
+	 * Asynchronously waits for a service of any of the given types to be
+	 * available. The returned future is completed as soon as the first
+	 * service is available, the waits for the other types are cancelled
+	 * then. Cancelling the future cancels all pending waits.
+	 * 
+	 * @param serviceTypes the service types
+	 * @return a future that will eventually contain the first available
+	 *   service, the other types are reported as missing
+	 */
+	public static ListenableFuture<AvailableServices> asyncWaitForAnyService(
+			Class<?>... serviceTypes) {
+		final Map<Class<?>, ListenableFuture<?>> futures = startServiceWaits(serviceTypes);
+		final SettableFuture<AvailableServices> result = SettableFuture.create();
+		
+		if (futures.isEmpty()) {
+			result.set(collectServices(futures));
+			return result;
+		}
+		
+		for (final ListenableFuture<?> future : futures.values()) {
+			future.addListener(new Runnable() {
+				@Override
+				public void run() {
+					if (!future.isCancelled() && !result.isDone()) {
+						Map<Class<?>, ListenableFuture<?>> first = 
+								new LinkedHashMap<Class<?>, ListenableFuture<?>>();
+						for (Entry<Class<?>, ListenableFuture<?>> entry : futures.entrySet()) {
+							first.put(entry.getKey(),
+									entry.getValue() == future ? future : null);
+						}
+						result.set(collectServices(first));
+					}
+				}
+			}, MoreExecutors.sameThreadExecutor());
+		}
+		
+		// cancel the other waits when done
+		result.addListener(new Runnable() {
+			@Override
+			public void run() {
+				for (ListenableFuture<?> future : futures.values()) {
+					future.cancel(false);
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		return result;
+	}
+	
+	/**
+	 * Waits for services of all the given types to be available. The waits
+	 * for the individual types run concurrently, so the time waited is that
+	 * of the longest single wait.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
+	 * 
+	 * @param timeout the timeout after which to return even if not all
+	 *   services are available
+	 * @param unit the time unit of the timeout
+	 * @param serviceTypes the service types
+	 * @return the available services, check
+	 *   {@link AvailableServices#getMissingTypes()} for the types that were
+	 *   still missing when the timeout occurred
+	 */
+	public static AvailableServices waitForAllServices(long timeout, TimeUnit unit,
+			Class<?>... serviceTypes) {
+		return awaitAvailableServices(asyncWaitForAllServices(serviceTypes), timeout, unit,
+				serviceTypes);
+	}
+	
+	/**
+	 * Waits for a service of any of the given types to be available.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
+	 * 
+	 * @param timeout the timeout after which to return even if no service
+	 *   is available
+	 * @param unit the time unit of the timeout
+	 * @param serviceTypes the service types
+	 * @return the first available service, or no service if the timeout
+	 *   has occurred
+	 */
+	public static AvailableServices waitForAnyService(long timeout, TimeUnit unit,
+			Class<?>... serviceTypes) {
+		return awaitAvailableServices(asyncWaitForAnyService(serviceTypes), timeout, unit,
+				serviceTypes);
+	}
+	
+	/**
+	 * Wait for the given future to complete, on timeout or interruption
+	 * report the services available at that moment
+	 * 
+	 * @param future the future to wait for
+	 * @param timeout the timeout
+	 * @param unit the time unit of the timeout
+	 * @param serviceTypes the service types the future waits for
+	 * @return the available services
+	 */
+	private static AvailableServices awaitAvailableServices(
+			ListenableFuture<AvailableServices> future,
+			long timeout, TimeUnit unit, Class<?>... serviceTypes) {
+		try {
+			return future.get(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (TimeoutException e) {
+			// report missing services
+		} catch (CancellationException e) {
+			// a tracker was stopped, report missing services
+		} catch (ExecutionException e) {
+			log.log(Level.WARNING, "Error waiting for services", e);
+		}
+		
+		future.cancel(false);
+		
+		Map<Class<?>, Object> services = new LinkedHashMap<Class<?>, Object>();
+		Set<Class<?>> missing = new LinkedHashSet<Class<?>>();
+		for (Class<?> serviceType : serviceTypes) {
+			Object service = getService(serviceType);
+			if (service != null) {
+				services.put(serviceType, service);
+			}
+			else {
+				missing.add(serviceType);
+			}
+		}
+		return new AvailableServices(services, missing);
+	}
+	
+	/**
+	 * Start waiting for each of the given service types
+	 * 
+	 * @param serviceTypes the service types
+	 * @return the futures waiting for the services, mapped by service type
+	 */
+	private static Map<Class<?>, ListenableFuture<?>> startServiceWaits(
+			Class<?>... serviceTypes) {
+		Map<Class<?>, ListenableFuture<?>> futures = new LinkedHashMap<Class<?>, ListenableFuture<?>>();
+		for (Class<?> serviceType : serviceTypes) {
+			if (!futures.containsKey(serviceType)) {
+				futures.put(serviceType, asyncWaitForService(serviceType));
+			}
+		}
+		return futures;
+	}
+	
+	/**
+	 * Collect the services from the given futures
+	 * 
+	 * @param futures the futures mapped by service type, a future may be
+	 *   <code>null</code> if the service type is to be reported as missing
+	 * @return the available services
+	 */
+	private static AvailableServices collectServices(
+			Map<Class<?>, ListenableFuture<?>> futures) {
+		Map<Class<?>, Object> services = new LinkedHashMap<Class<?>, Object>();
+		Set<Class<?>> missing = new LinkedHashSet<Class<?>>();
+		for (Entry<Class<?>, ListenableFuture<?>> entry : futures.entrySet()) {
+			ListenableFuture<?> future = entry.getValue();
+			Object service = null;
+			if (future != null && future.isDone() && !future.isCancelled()) {
+				try {
+					service = future.get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				} catch (ExecutionException e) {
+					log.log(Level.WARNING, "Error waiting for service " + 
+							entry.getKey().getName(), e);
+				}
+			}
+			
+			if (service != null) {
+				services.put(entry.getKey(), service);
+			}
+			else {
+				missing.add(entry.getKey());
+			}
+		}
+		return new AvailableServices(services, missing);
+	}
+	
+	/**
+	 * Cancel the given futures if the source future is cancelled
+	 * 
+	 * @param source the source future
+	 * @param futures the futures to cancel with the source
+	 */
+	private static void cancelOnCancel(final ListenableFuture<?> source,
+			final Collection<? extends Future<?>> futures) {
+		source.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (source.isCancelled()) {
+					for (Future<?> future : futures) {
+						future.cancel(false);
+					}
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
 	}
 	
 	/**
 	 * Get the services with the given type. Only use the returned instance
 	 * while you are sure it is still valid.
+	 * The returned collection is an immutable snapshot ordered by service
+	 * ranking.
 	 * 
 	 * @param <T> the service type
 	 * @param serviceType the service type
@@ -243,6 +713,132 @@ public final class OsgiUtils {
 		return instance.getServices(serviceType);
 	}
 	
+	/**
+	 * Get the services with the given type that match the given LDAP filter.
+	 * The filter is compiled once and the services are tracked by a tracker
+	 * dedicated to the combination of type and filter, so repeated calls do
+	 * not query the service registry. Only use the returned instances while
+	 * you are sure they are still valid. The returned collection is an
+	 * immutable snapshot ordered by service ranking.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the LDAP filter the services must match, may be
+	 *   <code>null</code>
+	 * @return the available services of this type or null
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public static <T> Collection<T> getServices(Class<T> serviceType, String filter) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance == null) {
+			return null;
+		}
+		return instance.getServices(serviceType, FilterCache.get(filter));
+	}
+	
+	/**
+	 * Waits for at least the given number of services with the given type
+	 * to be available. The calling thread is woken up as soon as the service
+	 * that fulfills the quorum is registered. Only use the returned
+	 * instances while you are sure they are still valid.
+	 * 
+	 * If the calling thread is interrupted while waiting, the method returns
+	 * early and the interrupted status of the thread is restored.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param count the minimum number of services
+	 * @param filter the LDAP filter services must match to be counted, may
+	 *   be <code>null</code>
+	 * @param timeout the timeout after which to return even if not enough
+	 *   services are available
+	 * @param unit the time unit of the timeout
+	 * @return the matching services or null if the timeout has occurred
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public static <T> Collection<T> waitForServices(Class<T> serviceType, int count,
+			String filter, long timeout, TimeUnit unit) {
+		ListenableFuture<Set<T>> future = asyncWaitForServices(serviceType, count, filter,
+				null);
+		try {
+			return future.get(timeout, unit);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (TimeoutException e) {
+			return null;
+		} catch (CancellationException e) {
+			return null;
+		} catch (ExecutionException e) {
+			throw Throwables.propagate(e.getCause());
+		} finally {
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Asynchronously waits for at least the given number of services with
+	 * the given type to be available. The returned future is completed by
+	 * the service event that fulfills the quorum, no thread is blocked while
+	 * waiting. Cancel the future if you are no longer interested in the
+	 * services.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param count the minimum number of services
+	 * @param filter the LDAP filter services must match to be counted, may
+	 *   be <code>null</code>
+	 * @param executor the executor to complete the future with, and thus to
+	 *   run its listeners, <code>null</code> to complete it on the thread
+	 *   delivering the service event
+	 * @return a future that will eventually contain the matching services
+	 * @throws IllegalArgumentException if the filter is not valid
+	 */
+	public static <T> ListenableFuture<Set<T>> asyncWaitForServices(Class<T> serviceType,
+			int count, String filter, Executor executor) {
+		return asyncWaitForServices(serviceType, count, FilterCache.get(filter), executor);
+	}
+	
+	/**
+	 * Asynchronously waits for at least the given number of services with
+	 * the given type to be available, once the activator is started.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param count the minimum number of services
+	 * @param filter the filter services must match to be counted, may be
+	 *   <code>null</code>
+	 * @param executor the executor to complete the future with, may be
+	 *   <code>null</code>
+	 * @return a future that will eventually contain the matching services
+	 */
+	private static <T> ListenableFuture<Set<T>> asyncWaitForServices(
+			final Class<T> serviceType, final int count, final Filter filter,
+			final Executor executor) {
+		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+		if (instance != null) {
+			ListenableFuture<Set<T>> future = instance.asyncWaitForServices(serviceType,
+					count, filter, executor);
+			if (future != null) {
+				return future;
+			}
+		}
+		
+		// activator not available (yet), wait for it to be started
+		ListenableFuture<Boolean> started = asyncWaitUntil(new Condition() {
+			@Override
+			public boolean evaluate() {
+				return OsgiUtilsActivator.getInstance() != null;
+			}
+		}, -1, TimeUnit.SECONDS);
+		return Futures.transform(started, new AsyncFunction<Boolean, Set<T>>() {
+			@Override
+			public ListenableFuture<Set<T>> apply(Boolean input) {
+				return asyncWaitForServices(serviceType, count, filter, executor);
+			}
+		});
+	}
+	
 	/**
 	 * Register a service
 	 * 
@@ -19,15 +19,30 @@
 
 package de.fhg.igd.osgi.util;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Collection;
-import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.IdentityHashMap;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 
 import org.osgi.framework.BundleActivator;
 import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
 import org.osgi.framework.ServiceRegistration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
 
 /**
  * <p>Title: OsgiUtilsActivator</p>
@@ -37,16 +52,95 @@ import org.osgi.framework.ServiceRegistration;
  */
 public class OsgiUtilsActivator extends AbstractBundleActivator {
 	
+	/**
+	 * Framework property specifying the time in seconds after which unused
+	 * service trackers are stopped and removed
+	 */
+	public static final String PROPERTY_TRACKER_IDLE_TIMEOUT = 
+			"de.fhg.igd.osgi.util.tracker.idleTimeout";
+	
+	/**
+	 * Framework property specifying the maximum number of service trackers
+	 * of each kind, the least recently used are removed if exceeded
+	 */
+	public static final String PROPERTY_TRACKER_MAX = "de.fhg.igd.osgi.util.tracker.max";
+	
+	/**
+	 * Framework property that enables recording service tracker statistics
+	 * on start if set to <code>true</code>, see {@link ServiceTrackersMXBean}
+	 */
+	public static final String PROPERTY_TRACKER_METRICS = "de.fhg.igd.osgi.util.tracker.metrics";
+	
+	/**
+	 * Framework property that enables recording per method call statistics
+	 * of the services obtained through {@link OsgiUtils} if set to
+	 * <code>true</code>, see {@link ServiceInstrumentation}
+	 */
+	public static final String PROPERTY_INSTRUMENTATION = 
+			"de.fhg.igd.osgi.util.tracker.instrumentation";
+	
+	/**
+	 * Framework property specifying a file the per method call statistics
+	 * are written to when the bundle is stopped
+	 */
+	public static final String PROPERTY_INSTRUMENTATION_DUMP = 
+			"de.fhg.igd.osgi.util.tracker.instrumentation.dump";
+	
+	private static final Logger log = LoggerFactory.getLogger(OsgiUtilsActivator.class);
+	
 	/**
 	 * The singleton instance of this activator
 	 */
 	private static OsgiUtilsActivator instance;
 	
-	private final Map<Class<?>, SingleServiceTracker<?>> trackers
-		= new HashMap<Class<?>, SingleServiceTracker<?>>();
+	/**
+	 * The instrumentation of the services obtained by the trackers, disabled
+	 * unless configured otherwise
+	 */
+	private final ServiceInstrumentation instrumentation = new ServiceInstrumentation();
+	
+	private final TrackerRegistry<SingleServiceTracker<?>> trackers
+		= new TrackerRegistry<SingleServiceTracker<?>>() {
+		
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			protected SingleServiceTracker<?> createTracker(Class<?> serviceType, Filter filter) {
+				SingleServiceTracker<?> tracker = new SingleServiceTracker(serviceType, filter);
+				tracker.setInstrumentation(instrumentation);
+				return tracker;
+			}
+			
+		};
+	
+	private final TrackerRegistry<MultiServiceTracker<?>> multiTrackers
+		= new TrackerRegistry<MultiServiceTracker<?>>() {
+		
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			protected MultiServiceTracker<?> createTracker(Class<?> serviceType, Filter filter) {
+				MultiServiceTracker<?> tracker = new MultiServiceTracker(serviceType, filter);
+				tracker.setInstrumentation(instrumentation);
+				return tracker;
+			}
+			
+		};
+	
+	/**
+	 * Delivers service events to all trackers of the activator
+	 */
+	private volatile ServiceEventMultiplexer multiplexer;
+	
+	/**
+	 * The name of the registered management bean, <code>null</code> if it
+	 * is not registered
+	 */
+	private ObjectName mbeanName;
 	
-	private final Map<Class<?>, MultiServiceTracker<?>> multiTrackers
-		= new HashMap<Class<?>, MultiServiceTracker<?>>();
+	/**
+	 * The service proxies per service interface
+	 */
+	private final ConcurrentMap<Class<?>, ServiceProxy<?>> proxies = 
+			new ConcurrentHashMap<Class<?>, ServiceProxy<?>>();
 	
 	private final Map<Object, ServiceRegistration<?>> registrations
 		= new IdentityHashMap<Object, ServiceRegistration<?>>();
@@ -57,6 +151,38 @@ public class OsgiUtilsActivator extends AbstractBundleActivator {
 	@Override
 	public void start(BundleContext context) throws Exception {
 		super.start(context);
+		
+		// a single service listener for all trackers
+		multiplexer = new ServiceEventMultiplexer(context);
+		multiplexer.open();
+		
+		trackers.open(context, multiplexer);
+		multiTrackers.open(context, multiplexer);
+		
+		long idleTimeout = 0;
+		int maxTrackers = 0;
+		try {
+			String value = context.getProperty(PROPERTY_TRACKER_IDLE_TIMEOUT);
+			if (value != null) {
+				idleTimeout = Long.parseLong(value.trim());
+			}
+			value = context.getProperty(PROPERTY_TRACKER_MAX);
+			if (value != null) {
+				maxTrackers = Integer.parseInt(value.trim());
+			}
+		} catch (NumberFormatException e) {
+			log.error("Invalid service tracker eviction setting", e);
+		}
+		if (idleTimeout > 0 || maxTrackers > 0) {
+			setTrackerEviction(idleTimeout, TimeUnit.SECONDS, maxTrackers);
+		}
+		
+		if (Boolean.parseBoolean(context.getProperty(PROPERTY_TRACKER_METRICS))) {
+			TrackerMetrics.setEnabled(true);
+		}
+		instrumentation.setEnabled(Boolean.parseBoolean(
+				context.getProperty(PROPERTY_INSTRUMENTATION)));
+		registerManagementBean();
 
 		instance = this;
 	}
@@ -68,23 +194,114 @@ public class OsgiUtilsActivator extends AbstractBundleActivator {
 	public void stop(BundleContext context) throws Exception {
 		instance = null;
 		
+		// threads waiting for conditions return, the timer discards their timeouts
+		ConditionScheduler.cancelAll();
+		
+		// proxies handed out are no longer usable
+		for (ServiceProxy<?> proxy : proxies.values()) {
+			proxy.dispose();
+		}
+		proxies.clear();
+		
 		// stop and remove all trackers
-		synchronized (trackers) {
-			for (SingleServiceTracker<?> tracker : trackers.values()) {
-				tracker.stop();
+		trackers.close();
+		
+		// stop and remove all multi service trackers
+		multiTrackers.close();
+		
+		multiplexer.close();
+		multiplexer = null;
+		
+		unregisterManagementBean();
+		
+		String dumpFile = context.getProperty(PROPERTY_INSTRUMENTATION_DUMP);
+		if (dumpFile != null) {
+			try {
+				instrumentation.dump(new File(dumpFile));
+			} catch (IOException e) {
+				log.error("Could not write service call statistics to " + dumpFile, e);
 			}
-			trackers.clear();
 		}
 		
-		// stop and remove all multi service trackers
-		synchronized (trackers) {
-			for (MultiServiceTracker<?> tracker : multiTrackers.values()) {
-				tracker.stop();
+		// terminate the shared threads, they are created again when needed
+		TimerWheel.shutdownDefault();
+		BackgroundExecutor.shutdownDefault();
+	}
+	
+	/**
+	 * Register the {@link ServiceTrackersMXBean} with the platform MBean
+	 * server
+	 */
+	private void registerManagementBean() {
+		try {
+			ObjectName name = new ObjectName(ServiceTrackersMXBean.OBJECT_NAME);
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			if (!server.isRegistered(name)) {
+				server.registerMBean(new ServiceTrackers(instrumentation, trackers, multiTrackers), name);
+				mbeanName = name;
+			}
+		} catch (Exception e) {
+			log.warn("Could not register service tracker management bean", e);
+		}
+	}
+	
+	/**
+	 * Unregister the {@link ServiceTrackersMXBean} if it was registered
+	 */
+	private void unregisterManagementBean() {
+		if (mbeanName != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(mbeanName);
+			} catch (Exception e) {
+				log.warn("Could not unregister service tracker management bean", e);
 			}
-			multiTrackers.clear();
+			mbeanName = null;
 		}
 	}
 	
+	/**
+	 * Configure the eviction of unused service trackers. A tracker is
+	 * created for each service type (and filter) passed to the service
+	 * lookup methods and listens to service events until it is evicted or
+	 * the bundle is stopped. An evicted tracker is created anew on the next
+	 * lookup. Trackers that have listeners attached or futures waiting are
+	 * never evicted. By default trackers are kept, eviction may also be
+	 * configured with the {@link #PROPERTY_TRACKER_IDLE_TIMEOUT} and
+	 * {@link #PROPERTY_TRACKER_MAX} framework properties.
+	 * 
+	 * @param idleTimeout the time after which an unused tracker is evicted,
+	 *   zero or less to keep unused trackers
+	 * @param unit the time unit of the idle timeout
+	 * @param maxTrackers the maximum number of single and multi service
+	 *   trackers each, zero or less for no limit
+	 */
+	public void setTrackerEviction(long idleTimeout, TimeUnit unit, int maxTrackers) {
+		trackers.setEviction(idleTimeout, unit, maxTrackers);
+		multiTrackers.setEviction(idleTimeout, unit, maxTrackers);
+	}
+	
+	/**
+	 * Get the instrumentation recording the calls to the services obtained
+	 * through the activator's trackers. It is disabled unless enabled with
+	 * the {@link #PROPERTY_INSTRUMENTATION} framework property or
+	 * {@link ServiceInstrumentation#setEnabled(boolean)}, services already
+	 * bound when it is enabled are only instrumented once they are obtained
+	 * again.
+	 * 
+	 * @return the service instrumentation
+	 */
+	public ServiceInstrumentation getInstrumentation() {
+		return instrumentation;
+	}
+	
+	/**
+	 * @return the multiplexer delivering service events to the trackers of
+	 *   this activator, <code>null</code> if the activator is not started
+	 */
+	ServiceEventMultiplexer getMultiplexer() {
+		return multiplexer;
+	}
+	
 	/**
 	 * @return the singleton instance of this activator
 	 */
@@ -100,54 +317,241 @@ public class OsgiUtilsActivator extends AbstractBundleActivator {
 	 * @param serviceType the service type
 	 * @return the available service of this type or null
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> T getService(Class<T> serviceType) {
-		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
-		if (instance == null) {
+		SingleServiceTracker<T> tracker = getTracker(serviceType);
+		if (tracker == null) {
 			return null;
 		}
 		
-		BundleContext context = instance.getContext();
-		
-		SingleServiceTracker<T> tracker;
+		return tracker.getService();
+	}
+	
+	/**
+	 * Get the highest ranked service with the given type that matches the
+	 * given filter. The service is tracked by a tracker dedicated to the
+	 * combination of type and filter. Only use the returned instance while
+	 * you are sure it is still valid.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the filter the service must match, may be
+	 *   <code>null</code>
+	 * @return the available service of this type or null
+	 */
+	public <T> T getService(Class<T> serviceType, Filter filter) {
+		SingleServiceTracker<T> tracker = getTracker(serviceType, filter);
+		if (tracker == null) {
+			return null;
+		}
 		
-		synchronized (trackers) {
-			tracker = (SingleServiceTracker<T>) trackers.get(serviceType);
+		return tracker.getService();
+	}
+	
+	/**
+	 * Get a proxy for the service with the given interface, which always
+	 * delegates to the currently available service. Calling a method on the
+	 * proxy while no service is available results in an
+	 * {@link IllegalStateException}.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service interface
+	 * @return the proxy or null if the activator is not started
+	 * @throws IllegalArgumentException if the service type is not a public
+	 *   interface
+	 */
+	public <T> T getServiceProxy(Class<T> serviceType) {
+		ServiceProxy<?> proxy = proxies.get(serviceType);
+		if (proxy == null) {
+			SingleServiceTracker<T> tracker = pinTracker(serviceType);
 			if (tracker == null) {
-				tracker = new SingleServiceTracker<T>(serviceType);
-				trackers.put(serviceType, tracker);
-				tracker.start(context);
+				return null;
+			}
+			
+			try {
+				proxy = ServiceProxy.create(serviceType, tracker);
+			} finally {
+				// the proxy is registered as listener, keeping the tracker
+				trackers.unpin(serviceType, null, tracker);
+			}
+			ServiceProxy<?> existing = proxies.putIfAbsent(serviceType, proxy);
+			if (existing != null) {
+				// another proxy was created concurrently
+				proxy.dispose();
+				proxy = existing;
 			}
 		}
 		
-		return tracker.getService();
+		return serviceType.cast(proxy.getProxy());
 	}
 	
 	/**
-	 * Add a service listener
+	 * Lease the service with the given type, the service is not released
+	 * while the lease is open
 	 * 
 	 * @param <T> the service type
-	 * @param listener the listener
 	 * @param serviceType the service type
+	 * @return the lease on the available service of this type, which must
+	 *   be closed, or null if no service is available
+	 * @see SingleServiceTracker#leaseService()
 	 */
-	@SuppressWarnings("unchecked")
-	public <T> void addServiceListener(SingleServiceListener<T> listener, Class<T> serviceType) {
-		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
+	public <T> ServiceLease<T> leaseService(Class<T> serviceType) {
+		SingleServiceTracker<T> tracker = getTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
 		
-		BundleContext context = instance.getContext();
+		return tracker.leaseService();
+	}
+	
+	/**
+	 * Waits for the service with the given type to be available and then
+	 * returns it. The calling thread is woken up as soon as the service is
+	 * registered. Only use the returned instance while you are sure it is
+	 * still valid.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param timeout the maximum time to wait
+	 * @param unit the time unit of the timeout
+	 * @return the service or null if the timeout has occurred
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> T waitForService(Class<T> serviceType, long timeout, TimeUnit unit)
+			throws InterruptedException {
+		SingleServiceTracker<T> tracker = pinTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
 		
-		SingleServiceTracker<T> tracker;
+		try {
+			return tracker.waitForService(timeout, unit);
+		} finally {
+			trackers.unpin(serviceType, null, tracker);
+		}
+	}
+	
+	/**
+	 * Infinitely waits for the service with the given type to be available
+	 * and then returns it. The calling thread is woken up as soon as the
+	 * service is registered. Only use the returned instance while you are
+	 * sure it is still valid.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the service or null if the activator has been stopped
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> T waitForService(Class<T> serviceType) throws InterruptedException {
+		SingleServiceTracker<T> tracker = pinTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
 		
-		synchronized (trackers) {
-			tracker = (SingleServiceTracker<T>) trackers.get(serviceType);
-			if (tracker == null) {
-				tracker = new SingleServiceTracker<T>(serviceType);
-				trackers.put(serviceType, tracker);
-				tracker.start(context);
-			}
+		try {
+			return tracker.waitForService();
+		} finally {
+			trackers.unpin(serviceType, null, tracker);
+		}
+	}
+	
+	/**
+	 * Asynchronously waits for the service with the given type to be
+	 * available. The returned future is completed by the service event that
+	 * supplies the service, no thread is blocked while waiting.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param executor the executor to complete the future with, may be
+	 *   <code>null</code> to complete it on the thread delivering the
+	 *   service event
+	 * @return a future that will eventually contain the service instance or
+	 *   <code>null</code> if the activator is not started
+	 */
+	public <T> ListenableFuture<T> asyncWaitForService(Class<T> serviceType,
+			Executor executor) {
+		SingleServiceTracker<T> tracker = pinTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
+		
+		try {
+			// the pending future keeps the tracker once registered
+			return tracker.asyncWaitForService(executor);
+		} finally {
+			trackers.unpin(serviceType, null, tracker);
+		}
+	}
+	
+	/**
+	 * Get the tracker for the given service type, creates and starts the
+	 * tracker if needed
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the service tracker or <code>null</code> if the activator
+	 *   is not started
+	 */
+	private <T> SingleServiceTracker<T> getTracker(Class<T> serviceType) {
+		return getTracker(serviceType, null);
+	}
+	
+	/**
+	 * Get the tracker for the given service type and filter, creates and
+	 * starts the tracker if needed
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the filter services must match, may be <code>null</code>
+	 * @return the service tracker or <code>null</code> if the activator
+	 *   is not started
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> SingleServiceTracker<T> getTracker(Class<T> serviceType, Filter filter) {
+		if (OsgiUtilsActivator.getInstance() == null) {
+			return null;
 		}
 		
-		tracker.addListener(listener);
+		return (SingleServiceTracker<T>) trackers.get(serviceType, filter);
+	}
+	
+	/**
+	 * Get the tracker for the given service type and pin it, so it is not
+	 * evicted before a wait or listener is registered with it. The tracker
+	 * must be unpinned afterwards.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the pinned service tracker or <code>null</code> if the
+	 *   activator is not started
+	 * @see TrackerRegistry#pin(Class, Filter)
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> SingleServiceTracker<T> pinTracker(Class<T> serviceType) {
+		if (OsgiUtilsActivator.getInstance() == null) {
+			return null;
+		}
+		
+		return (SingleServiceTracker<T>) trackers.pin(serviceType, null);
+	}
+	
+	/**
+	 * Add a service listener
+	 * 
+	 * @param <T> the service type
+	 * @param listener the listener
+	 * @param serviceType the service type
+	 */
+	public <T> void addServiceListener(SingleServiceListener<T> listener, Class<T> serviceType) {
+		SingleServiceTracker<T> tracker = pinTracker(serviceType);
+		if (tracker == null) {
+			return;
+		}
+		
+		try {
+			tracker.addListener(listener);
+		} finally {
+			trackers.unpin(serviceType, null, tracker);
+		}
 	}
 	
 	/**
@@ -159,13 +563,10 @@ public class OsgiUtilsActivator extends AbstractBundleActivator {
 	 */
 	@SuppressWarnings("unchecked")
 	public <T> void removeServiceListener(SingleServiceListener<T> listener, Class<T> serviceType) {
-		SingleServiceTracker<T> tracker;
-		
-		synchronized (trackers) {
-			tracker = (SingleServiceTracker<T>) trackers.get(serviceType);
-			if (tracker == null) {
-				return;
-			}
+		SingleServiceTracker<T> tracker = (SingleServiceTracker<T>) trackers.peek(
+				serviceType, null);
+		if (tracker == null) {
+			return;
 		}
 		
 		tracker.removeListener(listener);
@@ -174,32 +575,155 @@ public class OsgiUtilsActivator extends AbstractBundleActivator {
 	/**
 	 * Get the services with the given type. Only use the returned instances
 	 * while you are sure it is still valid.
+	 * The returned collection is an immutable snapshot ordered by service
+	 * ranking.
 	 * 
 	 * @param <T> the service type
 	 * @param serviceType the service type
 	 * @return the available services of this type or null
 	 */
-	@SuppressWarnings("unchecked")
 	public <T> Collection<T> getServices(Class<T> serviceType) {
-		OsgiUtilsActivator instance = OsgiUtilsActivator.getInstance();
-		if (instance == null) {
+		MultiServiceTracker<T> tracker = getMultiTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
+		
+		return tracker.getServices();
+	}
+	
+	/**
+	 * Get the services with the given type that match the given filter. The
+	 * services are tracked by a tracker dedicated to the combination of type
+	 * and filter. Only use the returned instances while you are sure they
+	 * are still valid. The returned collection is an immutable snapshot
+	 * ordered by service ranking.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the filter the services must match, may be
+	 *   <code>null</code>
+	 * @return the available services of this type or null
+	 */
+	public <T> Collection<T> getServices(Class<T> serviceType, Filter filter) {
+		MultiServiceTracker<T> tracker = getMultiTracker(serviceType, filter);
+		if (tracker == null) {
 			return null;
 		}
 		
-		BundleContext context = instance.getContext();
+		return tracker.getServices();
+	}
+	
+	/**
+	 * Waits for at least the given number of services with the given type
+	 * to be available. The calling thread is woken up as soon as the service
+	 * that fulfills the quorum is registered. Only use the returned instances
+	 * while you are sure they are still valid.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param count the minimum number of services
+	 * @param filter the filter services must match to be counted, may be
+	 *   <code>null</code>
+	 * @param timeout the maximum time to wait
+	 * @param unit the time unit of the timeout
+	 * @return the matching services or null if the timeout has occurred
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public <T> Collection<T> waitForServices(Class<T> serviceType, int count, Filter filter,
+			long timeout, TimeUnit unit) throws InterruptedException {
+		MultiServiceTracker<T> tracker = pinMultiTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
 		
-		MultiServiceTracker<T> tracker;
+		try {
+			return tracker.waitForServices(count, filter, timeout, unit);
+		} finally {
+			multiTrackers.unpin(serviceType, null, tracker);
+		}
+	}
+	
+	/**
+	 * Asynchronously waits for at least the given number of services with
+	 * the given type to be available. The returned future is completed by
+	 * the service event that fulfills the quorum.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param count the minimum number of services
+	 * @param filter the filter services must match to be counted, may be
+	 *   <code>null</code>
+	 * @param executor the executor to complete the future with, may be
+	 *   <code>null</code> to complete it on the thread delivering the
+	 *   service event
+	 * @return a future that will eventually contain the matching services
+	 *   or <code>null</code> if the activator is not started
+	 */
+	public <T> ListenableFuture<Set<T>> asyncWaitForServices(Class<T> serviceType, int count,
+			Filter filter, Executor executor) {
+		MultiServiceTracker<T> tracker = pinMultiTracker(serviceType);
+		if (tracker == null) {
+			return null;
+		}
 		
-		synchronized (multiTrackers) {
-			tracker = (MultiServiceTracker<T>) multiTrackers.get(serviceType);
-			if (tracker == null) {
-				tracker = new MultiServiceTracker<T>(serviceType);
-				multiTrackers.put(serviceType, tracker);
-				tracker.start(context);
-			}
+		try {
+			// the pending future keeps the tracker once registered
+			return tracker.asyncWaitForServices(count, filter, executor);
+		} finally {
+			multiTrackers.unpin(serviceType, null, tracker);
+		}
+	}
+	
+	/**
+	 * Get the multi service tracker for the given service type, creates and
+	 * starts the tracker if needed
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the service tracker or <code>null</code> if the activator
+	 *   is not started
+	 */
+	private <T> MultiServiceTracker<T> getMultiTracker(Class<T> serviceType) {
+		return getMultiTracker(serviceType, null);
+	}
+	
+	/**
+	 * Get the multi service tracker for the given service type and filter,
+	 * creates and starts the tracker if needed
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @param filter the filter services must match, may be <code>null</code>
+	 * @return the service tracker or <code>null</code> if the activator
+	 *   is not started
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> MultiServiceTracker<T> getMultiTracker(Class<T> serviceType, Filter filter) {
+		if (OsgiUtilsActivator.getInstance() == null) {
+			return null;
 		}
 		
-		return tracker.getServices();
+		return (MultiServiceTracker<T>) multiTrackers.get(serviceType, filter);
+	}
+	
+	/**
+	 * Get the multi service tracker for the given service type and pin it,
+	 * so it is not evicted before a wait is registered with it. The tracker
+	 * must be unpinned afterwards.
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service type
+	 * @return the pinned service tracker or <code>null</code> if the
+	 *   activator is not started
+	 * @see TrackerRegistry#pin(Class, Filter)
+	 */
+	@SuppressWarnings("unchecked")
+	private <T> MultiServiceTracker<T> pinMultiTracker(Class<T> serviceType) {
+		if (OsgiUtilsActivator.getInstance() == null) {
+			return null;
+		}
+		
+		return (MultiServiceTracker<T>) multiTrackers.pin(serviceType, null);
 	}
 	
 	/**
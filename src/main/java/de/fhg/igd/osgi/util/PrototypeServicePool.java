@@ -0,0 +1,569 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: PrototypeServicePool</p>
+ * <p>Description: Tracks prototype scope services of a type and keeps a
+ * bounded pool of service instances obtained through
+ * {@link ServiceObjects}. Instances are borrowed from the highest ranked
+ * service and returned after use, so non-thread-safe services can be used
+ * by several threads in parallel without obtaining a new instance for each
+ * use. Idle instances may be released after a timeout, all instances of a
+ * service are released when it is unregistered. Services that are not
+ * registered with prototype scope are ignored.</p>
+ * 
+ * <pre>
+ * T instance = pool.borrow();
+ * if (instance != null) {
+ *     try {
+ *         ...
+ *     } finally {
+ *         pool.release(instance);
+ *     }
+ * }
+ * </pre>
+ * 
+ * @param <T> the service type
+ */
+public class PrototypeServicePool<T> extends ServiceTracker<T> {
+	
+	private static final Logger log = LoggerFactory.getLogger(PrototypeServicePool.class);
+	
+	/**
+	 * Result of {@link #tryBorrow()} if no service is available or all
+	 * pools are exhausted
+	 */
+	private static final Object EXHAUSTED = new Object();
+	
+	/**
+	 * The pools per service, also the lock for all pool state
+	 */
+	private final Map<ServiceReference<T>, Pool> pools = new HashMap<ServiceReference<T>, Pool>();
+	
+	/**
+	 * The services ordered by ranking, guarded by {@link #pools}
+	 */
+	private final NavigableSet<RankedReference<T>> ranked = new TreeSet<RankedReference<T>>();
+	
+	/**
+	 * The pools of the borrowed instances, guarded by {@link #pools}
+	 */
+	private final Map<T, Pool> borrowed = new IdentityHashMap<T, Pool>();
+	
+	/**
+	 * The maximum number of instances per service
+	 */
+	private final int maxSize;
+	
+	/**
+	 * The time in nanoseconds after which idle instances are released, zero
+	 * if they are kept
+	 */
+	private volatile long idleTimeout = 0;
+	
+	/**
+	 * The scheduled sweep releasing idle instances, guarded by
+	 * {@link #pools}
+	 */
+	private TimerWheel.Timeout idleSweep;
+
+	/**
+	 * Create a pool for the prototype scope services of the given type
+	 * 
+	 * @param serviceClass the service type to track
+	 * @param filter the filter services must match, may be <code>null</code>
+	 * @param maxSize the maximum number of instances per service, borrowed
+	 *   and idle
+	 */
+	public PrototypeServicePool(Class<T> serviceClass, Filter filter, int maxSize) {
+		super(serviceClass, filter);
+		
+		if (maxSize <= 0) {
+			throw new IllegalArgumentException("Pool size must be positive");
+		}
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @see ServiceTracker#register(ServiceReference)
+	 */
+	@Override
+	protected void register(ServiceReference<T> service) {
+		if (!Constants.SCOPE_PROTOTYPE.equals(service.getProperty(Constants.SERVICE_SCOPE))) {
+			log.debug("Ignoring service that is not registered with prototype scope: " + service);
+			return;
+		}
+		
+		ServiceObjects<T> objects = getContext().getServiceObjects(service);
+		if (objects == null) {
+			// already unregistered
+			return;
+		}
+		
+		synchronized (pools) {
+			if (!pools.containsKey(service)) {
+				Pool pool = new Pool(new RankedReference<T>(service), objects);
+				pools.put(service, pool);
+				ranked.add(pool.reference);
+				
+				// threads may be waiting for an instance
+				pools.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * @see ServiceTracker#deregister(ServiceReference)
+	 */
+	@Override
+	protected void deregister(ServiceReference<T> service) {
+		List<T> release;
+		Pool pool;
+		synchronized (pools) {
+			pool = pools.remove(service);
+			if (pool == null) {
+				return;
+			}
+			ranked.remove(pool.reference);
+			pool.retired = true;
+			
+			// borrowed instances are released when they are returned
+			release = new ArrayList<T>(pool.idle.size());
+			for (IdleInstance idle : pool.idle) {
+				release.add(idle.instance);
+			}
+			pool.idle.clear();
+			pool.size -= release.size();
+		}
+		
+		for (T instance : release) {
+			pool.unget(instance);
+		}
+	}
+	
+	/**
+	 * Re-ranks a service whose properties were modified
+	 * 
+	 * @see ServiceTracker#modified(ServiceReference)
+	 */
+	@Override
+	protected void modified(ServiceReference<T> service) {
+		synchronized (pools) {
+			Pool pool = pools.get(service);
+			if (pool != null && pool.reference.isRankingChanged()) {
+				ranked.remove(pool.reference);
+				pool.reference = new RankedReference<T>(service);
+				ranked.add(pool.reference);
+			}
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#stop()
+	 */
+	@Override
+	public void stop() {
+		synchronized (pools) {
+			if (idleSweep != null) {
+				idleSweep.cancel();
+				idleSweep = null;
+			}
+		}
+		
+		super.stop();
+	}
+	
+	/**
+	 * Borrow an instance of the highest ranked service that has capacity
+	 * left. An idle instance is reused if available, otherwise a new one is
+	 * obtained if the pool of the service is not full.
+	 * 
+	 * @return the service instance, which must be returned with
+	 *   {@link #release(Object)}, or <code>null</code> if no service is
+	 *   available, all pools are exhausted or the service failed to
+	 *   provide an instance
+	 */
+	@SuppressWarnings("unchecked")
+	public T borrow() {
+		Object instance = tryBorrow();
+		return (instance == EXHAUSTED) ? null : (T) instance;
+	}
+	
+	/**
+	 * Borrow an instance
+	 * 
+	 * @return the service instance, <code>null</code> if the service failed
+	 *   to provide an instance or {@link #EXHAUSTED} if no service is
+	 *   available or all pools are exhausted
+	 */
+	private Object tryBorrow() {
+		while (true) {
+			Pool pool;
+			synchronized (pools) {
+				pool = selectPool();
+				if (pool == null) {
+					return EXHAUSTED;
+				}
+				
+				IdleInstance idle = pool.idle.pollLast();
+				if (idle != null) {
+					T instance = idle.instance;
+					pool.recycle(idle);
+					borrowed.put(instance, pool);
+					return instance;
+				}
+				
+				// reserve a slot for a new instance
+				pool.size++;
+			}
+			
+			T instance = null;
+			try {
+				instance = pool.objects.getService();
+			} catch (RuntimeException e) {
+				log.error("Could not obtain service instance", e);
+			}
+			
+			synchronized (pools) {
+				if (instance == null) {
+					pool.size--;
+					pools.notifyAll();
+					if (pool.retired) {
+						// the service is gone, try another one
+						continue;
+					}
+					return null;
+				}
+				borrowed.put(instance, pool);
+				return instance;
+			}
+		}
+	}
+	
+	/**
+	 * Borrow an instance, waiting for one to be returned or a service to
+	 * be registered if none is available
+	 * 
+	 * @param timeout the maximum time to wait
+	 * @param unit the time unit of the timeout
+	 * @return the service instance, which must be returned with
+	 *   {@link #release(Object)}, or <code>null</code> if the timeout has
+	 *   elapsed or the service failed to provide an instance
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 * @see #borrow()
+	 */
+	@SuppressWarnings("unchecked")
+	public T borrow(long timeout, TimeUnit unit) throws InterruptedException {
+		long deadline = System.nanoTime() + unit.toNanos(timeout);
+		while (true) {
+			Object instance = tryBorrow();
+			if (instance != EXHAUSTED) {
+				return (T) instance;
+			}
+			
+			synchronized (pools) {
+				if (selectPool() == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(pools, remaining);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Return a borrowed instance to the pool. If its service has been
+	 * unregistered in the meantime, the instance is released.
+	 * 
+	 * @param instance the borrowed instance
+	 * @throws IllegalArgumentException if the instance was not borrowed
+	 *   from this pool
+	 */
+	public void release(T instance) {
+		Pool pool;
+		synchronized (pools) {
+			pool = borrowed.remove(instance);
+			if (pool == null) {
+				throw new IllegalArgumentException("Instance was not borrowed from this pool");
+			}
+			
+			if (!pool.retired) {
+				pool.idle.addLast(pool.idleInstance(instance, System.nanoTime()));
+				pools.notifyAll();
+				return;
+			}
+			pool.size--;
+		}
+		
+		pool.unget(instance);
+	}
+	
+	/**
+	 * Set the time after which idle instances are released. New instances
+	 * are obtained again when needed.
+	 * 
+	 * @param timeout the idle timeout, zero or less to keep idle instances
+	 * @param unit the time unit of the timeout
+	 */
+	public void setIdleTimeout(long timeout, TimeUnit unit) {
+		synchronized (pools) {
+			idleTimeout = Math.max(0, unit.toNanos(timeout));
+			if (idleSweep != null) {
+				idleSweep.cancel();
+				idleSweep = null;
+			}
+			scheduleIdleSweep();
+		}
+	}
+	
+	/**
+	 * @return the maximum number of instances per service
+	 */
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	/**
+	 * @return the number of borrowed instances
+	 */
+	public int getBorrowedCount() {
+		synchronized (pools) {
+			return borrowed.size();
+		}
+	}
+	
+	/**
+	 * @return the number of idle instances
+	 */
+	public int getIdleCount() {
+		synchronized (pools) {
+			int count = 0;
+			for (Pool pool : pools.values()) {
+				count += pool.idle.size();
+			}
+			return count;
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#isInUse()
+	 */
+	@Override
+	boolean isInUse() {
+		synchronized (pools) {
+			return !borrowed.isEmpty();
+		}
+	}
+	
+	/**
+	 * Select the highest ranked pool with an idle instance or capacity
+	 * left, must be called while holding the lock on {@link #pools}
+	 * 
+	 * @return the pool or <code>null</code>
+	 */
+	private Pool selectPool() {
+		for (RankedReference<T> reference : ranked) {
+			Pool pool = pools.get(reference.getReference());
+			if (!pool.idle.isEmpty() || pool.size < maxSize) {
+				return pool;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * Schedule the next sweep releasing idle instances, must be called while
+	 * holding the lock on {@link #pools}. Releasing an instance calls into
+	 * the framework and the service, so the sweep is executed on the
+	 * background executor rather than the timer thread.
+	 */
+	private void scheduleIdleSweep() {
+		final long timeout = idleTimeout;
+		if (timeout <= 0) {
+			return;
+		}
+		
+		idleSweep = TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				releaseIdle(timeout);
+				
+				synchronized (pools) {
+					if (idleTimeout == timeout) {
+						scheduleIdleSweep();
+					}
+				}
+			}
+		}, Math.max(timeout / 2, TimeUnit.MILLISECONDS.toNanos(10)), TimeUnit.NANOSECONDS,
+				BackgroundExecutor.getDefault());
+	}
+	
+	/**
+	 * Release the instances that have been idle for at least the given time
+	 * 
+	 * @param timeout the idle timeout in nanoseconds
+	 */
+	private void releaseIdle(long timeout) {
+		Map<T, Pool> release = new IdentityHashMap<T, Pool>();
+		long now = System.nanoTime();
+		synchronized (pools) {
+			for (Pool pool : pools.values()) {
+				// the least recently returned instances are at the head
+				Iterator<IdleInstance> it = pool.idle.iterator();
+				while (it.hasNext()) {
+					IdleInstance idle = it.next();
+					if (now - idle.since < timeout) {
+						break;
+					}
+					it.remove();
+					pool.size--;
+					release.put(idle.instance, pool);
+					pool.recycle(idle);
+				}
+			}
+		}
+		
+		for (Map.Entry<T, Pool> entry : release.entrySet()) {
+			entry.getValue().unget(entry.getKey());
+		}
+	}
+	
+	/**
+	 * An instance in the pool, entries are reused by their pool
+	 */
+	private class IdleInstance {
+		
+		private T instance;
+		
+		private long since;
+		
+	}
+	
+	/**
+	 * The pool of instances of a service
+	 */
+	private class Pool {
+		
+		private RankedReference<T> reference;
+		
+		private final ServiceObjects<T> objects;
+		
+		/**
+		 * The idle instances, most recently returned last
+		 */
+		private final Deque<IdleInstance> idle = new ArrayDeque<IdleInstance>();
+		
+		/**
+		 * Entries that are not in use, for reuse by {@link #idle}. There
+		 * are never more entries than instances in the pool.
+		 */
+		private final Deque<IdleInstance> spare = new ArrayDeque<IdleInstance>();
+		
+		/**
+		 * The number of instances obtained, idle and borrowed
+		 */
+		private int size = 0;
+		
+		/**
+		 * If the service has been unregistered
+		 */
+		private boolean retired = false;
+
+		/**
+		 * Create a pool
+		 * 
+		 * @param reference the ranked service reference
+		 * @param objects the service objects to obtain instances from
+		 */
+		public Pool(RankedReference<T> reference, ServiceObjects<T> objects) {
+			this.reference = reference;
+			this.objects = objects;
+		}
+		
+		/**
+		 * Get an entry for an idle instance, must be called while holding
+		 * the lock on {@link #pools}
+		 * 
+		 * @param instance the service instance
+		 * @param since the time it was returned in nanoseconds
+		 * @return the entry
+		 */
+		public IdleInstance idleInstance(T instance, long since) {
+			IdleInstance idle = spare.pollLast();
+			if (idle == null) {
+				idle = new IdleInstance();
+			}
+			idle.instance = instance;
+			idle.since = since;
+			return idle;
+		}
+		
+		/**
+		 * Keep an entry that was removed from {@link #idle} for reuse, must
+		 * be called while holding the lock on {@link #pools}
+		 * 
+		 * @param idle the entry
+		 */
+		public void recycle(IdleInstance idle) {
+			idle.instance = null;
+			spare.addLast(idle);
+		}
+		
+		/**
+		 * Release a service instance
+		 * 
+		 * @param instance the instance
+		 */
+		public void unget(T instance) {
+			try {
+				objects.ungetService(instance);
+			} catch (IllegalStateException e) {
+				// the bundle context or service is no longer valid, the
+				// framework has released the instance already
+			} catch (IllegalArgumentException e) {
+				// the framework has released the instance already
+			}
+		}
+		
+	}
+
+}
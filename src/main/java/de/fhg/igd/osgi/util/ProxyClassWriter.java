@@ -0,0 +1,437 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * <p>Title: ProxyClassWriter</p>
+ * <p>Description: Writes the class file of a proxy class implementing a
+ * service interface. Each interface method loads its arguments and calls
+ * an <code>invokedynamic</code> instruction, which is linked by
+ * {@link ServiceProxyLinker#bootstrap(MethodHandles.Lookup, String, MethodType, int)}
+ * with the index of the method as static argument. The class has a public
+ * constructor without arguments.</p>
+ */
+final class ProxyClassWriter {
+	
+	private static final int MAGIC = 0xCAFEBABE;
+	
+	/**
+	 * Java 7 class file version, the first supporting invokedynamic
+	 */
+	private static final int VERSION = 51;
+	
+	private static final int ACC_PUBLIC = 0x0001;
+	private static final int ACC_FINAL = 0x0010;
+	private static final int ACC_SUPER = 0x0020;
+	
+	private static final int CONSTANT_UTF8 = 1;
+	private static final int CONSTANT_INTEGER = 3;
+	private static final int CONSTANT_CLASS = 7;
+	private static final int CONSTANT_METHODREF = 10;
+	private static final int CONSTANT_NAME_AND_TYPE = 12;
+	private static final int CONSTANT_METHOD_HANDLE = 15;
+	private static final int CONSTANT_INVOKE_DYNAMIC = 18;
+	
+	private static final int REF_INVOKE_STATIC = 6;
+	
+	private static final int ALOAD_0 = 0x2a;
+	private static final int ILOAD = 0x15;
+	private static final int IRETURN = 0xac;
+	private static final int RETURN = 0xb1;
+	private static final int INVOKESPECIAL = 0xb7;
+	private static final int INVOKEDYNAMIC = 0xba;
+	private static final int WIDE = 0xc4;
+	
+	/**
+	 * The constant pool entries, each is written completely including its
+	 * tag
+	 */
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	
+	private final DataOutputStream poolOut = new DataOutputStream(pool);
+	
+	/**
+	 * The indexes of the constant pool entries, by their content
+	 */
+	private final Map<String, Integer> entries = new HashMap<String, Integer>();
+	
+	/**
+	 * The next constant pool index
+	 */
+	private int nextEntry = 1;
+	
+	/**
+	 * Write a proxy class
+	 * 
+	 * @param className the binary name of the class
+	 * @param serviceType the interface the class implements
+	 * @param names the names of the methods to implement
+	 * @param types the types of the methods to implement, without the
+	 *   receiver, the index in the list is passed to the bootstrap method
+	 * @return the class file
+	 */
+	public static byte[] write(String className, Class<?> serviceType, List<String> names,
+			List<MethodType> types) {
+		try {
+			return new ProxyClassWriter().writeClass(className.replace('.', '/'),
+					serviceType.getName().replace('.', '/'), names, types);
+		} catch (IOException e) {
+			// not thrown when writing to memory
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	private ProxyClassWriter() {
+		// use write()
+	}
+	
+	/**
+	 * Write the class file
+	 * 
+	 * @param className the internal name of the class
+	 * @param interfaceName the internal name of the interface
+	 * @param names the method names
+	 * @param types the method types
+	 * @return the class file
+	 * @throws IOException never
+	 */
+	private byte[] writeClass(String className, String interfaceName, List<String> names,
+			List<MethodType> types) throws IOException {
+		int thisClass = classEntry(className);
+		int superClass = classEntry("java/lang/Object");
+		int serviceInterface = classEntry(interfaceName);
+		int code = utf8("Code");
+		
+		ByteArrayOutputStream body = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(body);
+		
+		// methods: the constructor and one per interface method
+		out.writeShort(types.size() + 1);
+		
+		int objectInit = methodRef(superClass, "<init>", "()V");
+		out.writeShort(ACC_PUBLIC);
+		out.writeShort(utf8("<init>"));
+		out.writeShort(utf8("()V"));
+		out.writeShort(1);
+		writeCode(out, code, 1, 1, new byte[] {
+				(byte) ALOAD_0,
+				(byte) INVOKESPECIAL, (byte) (objectInit >> 8), (byte) objectInit,
+				(byte) RETURN });
+		
+		String bootstrapType = MethodType.methodType(CallSite.class, MethodHandles.Lookup.class,
+				String.class, MethodType.class, int.class).toMethodDescriptorString();
+		int bootstrap = methodHandle(REF_INVOKE_STATIC, methodRef(
+				classEntry(ServiceProxyLinker.class.getName().replace('.', '/')),
+				"bootstrap", bootstrapType));
+		
+		List<int[]> bootstrapMethods = new ArrayList<int[]>();
+		for (int i = 0; i < types.size(); i++) {
+			MethodType type = types.get(i);
+			String name = names.get(i);
+			String descriptor = type.toMethodDescriptorString();
+			
+			bootstrapMethods.add(new int[] { bootstrap, integer(i) });
+			int callSite = invokeDynamic(i, name, descriptor);
+			
+			ByteArrayOutputStream instructions = new ByteArrayOutputStream();
+			int slot = 1;
+			for (Class<?> parameter : type.parameterArray()) {
+				int load = ILOAD + typeOffset(parameter);
+				if (slot > 0xff) {
+					instructions.write(WIDE);
+					instructions.write(load);
+					instructions.write(slot >> 8);
+				}
+				else {
+					instructions.write(load);
+				}
+				instructions.write(slot);
+				slot += size(parameter);
+			}
+			instructions.write(INVOKEDYNAMIC);
+			instructions.write(callSite >> 8);
+			instructions.write(callSite);
+			instructions.write(0);
+			instructions.write(0);
+			instructions.write((type.returnType() == void.class) ? RETURN
+					: IRETURN + typeOffset(type.returnType()));
+			
+			out.writeShort(ACC_PUBLIC);
+			out.writeShort(utf8(name));
+			out.writeShort(utf8(descriptor));
+			out.writeShort(1);
+			writeCode(out, code, Math.max(slot - 1, size(type.returnType())), slot,
+					instructions.toByteArray());
+		}
+		
+		// class attributes
+		out.writeShort(1);
+		out.writeShort(utf8("BootstrapMethods"));
+		out.writeInt(2 + bootstrapMethods.size() * 6);
+		out.writeShort(bootstrapMethods.size());
+		for (int[] method : bootstrapMethods) {
+			out.writeShort(method[0]);
+			out.writeShort(1);
+			out.writeShort(method[1]);
+		}
+		
+		ByteArrayOutputStream result = new ByteArrayOutputStream();
+		DataOutputStream classOut = new DataOutputStream(result);
+		classOut.writeInt(MAGIC);
+		classOut.writeShort(0);
+		classOut.writeShort(VERSION);
+		classOut.writeShort(nextEntry);
+		pool.writeTo(classOut);
+		classOut.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+		classOut.writeShort(thisClass);
+		classOut.writeShort(superClass);
+		classOut.writeShort(1);
+		classOut.writeShort(serviceInterface);
+		// no fields
+		classOut.writeShort(0);
+		body.writeTo(classOut);
+		classOut.flush();
+		return result.toByteArray();
+	}
+	
+	/**
+	 * Write a code attribute
+	 * 
+	 * @param out the output
+	 * @param name the index of the attribute name
+	 * @param maxStack the maximum stack size
+	 * @param maxLocals the number of local variable slots
+	 * @param instructions the byte code
+	 * @throws IOException never
+	 */
+	private static void writeCode(DataOutputStream out, int name, int maxStack, int maxLocals,
+			byte[] instructions) throws IOException {
+		out.writeShort(name);
+		out.writeInt(12 + instructions.length);
+		out.writeShort(maxStack);
+		out.writeShort(maxLocals);
+		out.writeInt(instructions.length);
+		out.write(instructions);
+		// no exception table, no attributes
+		out.writeShort(0);
+		out.writeShort(0);
+	}
+	
+	/**
+	 * Get the offset of the load and return instructions for the given type
+	 * relative to the int instructions
+	 * 
+	 * @param type the type
+	 * @return the offset
+	 */
+	private static int typeOffset(Class<?> type) {
+		if (type == long.class) {
+			return 1;
+		}
+		if (type == float.class) {
+			return 2;
+		}
+		if (type == double.class) {
+			return 3;
+		}
+		if (type.isPrimitive()) {
+			// boolean, byte, char, short and int
+			return 0;
+		}
+		return 4;
+	}
+	
+	/**
+	 * Get the number of stack or variable slots a value of the given type
+	 * takes
+	 * 
+	 * @param type the type
+	 * @return the number of slots
+	 */
+	private static int size(Class<?> type) {
+		if (type == void.class) {
+			return 0;
+		}
+		return (type == long.class || type == double.class) ? 2 : 1;
+	}
+	
+	/**
+	 * Get the constant pool entry of a string, adds it if needed
+	 * 
+	 * @param value the value
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int utf8(String value) throws IOException {
+		Integer index = entries.get("U" + value);
+		if (index == null) {
+			poolOut.writeByte(CONSTANT_UTF8);
+			poolOut.writeUTF(value);
+			index = add("U" + value);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of an integer, adds it if needed
+	 * 
+	 * @param value the value
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int integer(int value) throws IOException {
+		Integer index = entries.get("I" + value);
+		if (index == null) {
+			poolOut.writeByte(CONSTANT_INTEGER);
+			poolOut.writeInt(value);
+			index = add("I" + value);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of a class, adds it if needed
+	 * 
+	 * @param internalName the internal class name
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int classEntry(String internalName) throws IOException {
+		Integer index = entries.get("C" + internalName);
+		if (index == null) {
+			int name = utf8(internalName);
+			poolOut.writeByte(CONSTANT_CLASS);
+			poolOut.writeShort(name);
+			index = add("C" + internalName);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of a name and type, adds it if needed
+	 * 
+	 * @param name the name
+	 * @param descriptor the type descriptor
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int nameAndType(String name, String descriptor) throws IOException {
+		String key = "N" + name + " " + descriptor;
+		Integer index = entries.get(key);
+		if (index == null) {
+			int nameIndex = utf8(name);
+			int descriptorIndex = utf8(descriptor);
+			poolOut.writeByte(CONSTANT_NAME_AND_TYPE);
+			poolOut.writeShort(nameIndex);
+			poolOut.writeShort(descriptorIndex);
+			index = add(key);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of a method reference, adds it if needed
+	 * 
+	 * @param owner the index of the owner class
+	 * @param name the name
+	 * @param descriptor the type descriptor
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int methodRef(int owner, String name, String descriptor) throws IOException {
+		String key = "M" + owner + " " + name + " " + descriptor;
+		Integer index = entries.get(key);
+		if (index == null) {
+			int nat = nameAndType(name, descriptor);
+			poolOut.writeByte(CONSTANT_METHODREF);
+			poolOut.writeShort(owner);
+			poolOut.writeShort(nat);
+			index = add(key);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of a method handle, adds it if needed
+	 * 
+	 * @param kind the reference kind
+	 * @param reference the index of the referenced member
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int methodHandle(int kind, int reference) throws IOException {
+		String key = "H" + kind + " " + reference;
+		Integer index = entries.get(key);
+		if (index == null) {
+			poolOut.writeByte(CONSTANT_METHOD_HANDLE);
+			poolOut.writeByte(kind);
+			poolOut.writeShort(reference);
+			index = add(key);
+		}
+		return index;
+	}
+	
+	/**
+	 * Get the constant pool entry of a dynamic call site, adds it if needed
+	 * 
+	 * @param bootstrapMethod the index of the bootstrap method
+	 * @param name the name
+	 * @param descriptor the type descriptor
+	 * @return the entry index
+	 * @throws IOException never
+	 */
+	private int invokeDynamic(int bootstrapMethod, String name, String descriptor)
+			throws IOException {
+		String key = "D" + bootstrapMethod + " " + name + " " + descriptor;
+		Integer index = entries.get(key);
+		if (index == null) {
+			int nat = nameAndType(name, descriptor);
+			poolOut.writeByte(CONSTANT_INVOKE_DYNAMIC);
+			poolOut.writeShort(bootstrapMethod);
+			poolOut.writeShort(nat);
+			index = add(key);
+		}
+		return index;
+	}
+	
+	/**
+	 * Register a constant pool entry that was just written
+	 * 
+	 * @param key the entry key
+	 * @return the entry index
+	 */
+	private int add(String key) {
+		int index = nextEntry++;
+		entries.put(key, index);
+		return index;
+	}
+
+}
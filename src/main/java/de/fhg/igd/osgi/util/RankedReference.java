@@ -0,0 +1,105 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: RankedReference</p>
+ * <p>Description: A service reference together with the ranking and ID
+ * it had when it was captured. As the ranking is fixed, ranked references
+ * may be kept in sorted collections even if the service properties change.
+ * The order is the one the framework uses to select a service: highest
+ * ranking first, and for equal rankings lowest service ID first.</p>
+ * 
+ * @param <T> the service type
+ */
+final class RankedReference<T> implements Comparable<RankedReference<?>> {
+	
+	private final ServiceReference<T> reference;
+	
+	private final int ranking;
+	
+	private final long id;
+
+	/**
+	 * Capture the ranking of the given reference
+	 * 
+	 * @param reference the service reference
+	 */
+	public RankedReference(ServiceReference<T> reference) {
+		this.reference = reference;
+		
+		Object rankingProperty = reference.getProperty(Constants.SERVICE_RANKING);
+		ranking = (rankingProperty instanceof Integer) ? (Integer) rankingProperty : 0;
+		
+		Object idProperty = reference.getProperty(Constants.SERVICE_ID);
+		id = (idProperty instanceof Long) ? (Long) idProperty : 0;
+	}
+
+	/**
+	 * @return the service reference
+	 */
+	public ServiceReference<T> getReference() {
+		return reference;
+	}
+
+	/**
+	 * @return the captured service ranking
+	 */
+	public int getRanking() {
+		return ranking;
+	}
+
+	/**
+	 * @return the service ID
+	 */
+	public long getId() {
+		return id;
+	}
+	
+	/**
+	 * Determines if the ranking of the referenced service has changed since
+	 * it was captured
+	 * 
+	 * @return if the current ranking differs from the captured one
+	 */
+	public boolean isRankingChanged() {
+		Object rankingProperty = reference.getProperty(Constants.SERVICE_RANKING);
+		int current = (rankingProperty instanceof Integer) ? (Integer) rankingProperty : 0;
+		return current != ranking;
+	}
+
+	/**
+	 * @see Comparable#compareTo(Object)
+	 */
+	@Override
+	public int compareTo(RankedReference<?> other) {
+		if (ranking != other.ranking) {
+			return (ranking > other.ranking) ? -1 : 1;
+		}
+		if (id != other.id) {
+			return (id < other.id) ? -1 : 1;
+		}
+		return 0;
+	}
+
+}
@@ -0,0 +1,274 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ServiceEventMultiplexer</p>
+ * <p>Description: A single service listener that delivers service events
+ * to any number of {@link ServiceTracker}s. Trackers are looked up by the
+ * object classes of the service, so the cost of a service event depends on
+ * the number of classes the service is registered under instead of the
+ * number of trackers. Tracker filters are evaluated by the multiplexer the
+ * same way the framework does for filtered listeners, including
+ * {@link ServiceEvent#MODIFIED_ENDMATCH}. Tasks that depend on all
+ * trackers having seen an event may be deferred until the event has been
+ * delivered with {@link #afterDispatch(Runnable)}.</p>
+ * 
+ * <p>Trackers are added by starting them with
+ * {@link ServiceTracker#start(BundleContext, ServiceEventMultiplexer)}.</p>
+ */
+public final class ServiceEventMultiplexer implements ServiceListener {
+	
+	private static final Logger log = LoggerFactory.getLogger(ServiceEventMultiplexer.class);
+	
+	private static final ServiceTracker<?>[] NO_TRACKERS = new ServiceTracker<?>[0];
+	
+	/**
+	 * The state of the event dispatch on a thread
+	 */
+	private static final class Dispatch {
+		
+		/**
+		 * The nesting depth of events dispatched on the thread
+		 */
+		private int depth = 0;
+		
+		/**
+		 * The tasks to run when the outermost event was delivered
+		 */
+		private final List<Runnable> tasks = new ArrayList<Runnable>(2);
+		
+	}
+	
+	private final BundleContext context;
+	
+	/**
+	 * Maps service class names to the trackers of that class, the arrays
+	 * are replaced on modification and never changed afterwards
+	 */
+	private final ConcurrentMap<String, ServiceTracker<?>[]> trackers = 
+			new ConcurrentHashMap<String, ServiceTracker<?>[]>();
+	
+	/**
+	 * If the listener is registered, guarded by this
+	 */
+	private boolean open = false;
+	
+	/**
+	 * The event dispatch on the current thread
+	 */
+	private final ThreadLocal<Dispatch> dispatch = new ThreadLocal<Dispatch>() {
+		
+		@Override
+		protected Dispatch initialValue() {
+			return new Dispatch();
+		}
+		
+	};
+
+	/**
+	 * Create a multiplexer for the given bundle context
+	 * 
+	 * @param context the bundle context to register the listener with
+	 */
+	public ServiceEventMultiplexer(BundleContext context) {
+		this.context = context;
+	}
+	
+	/**
+	 * Register the service listener with the framework
+	 */
+	public synchronized void open() {
+		if (!open) {
+			context.addServiceListener(this);
+			open = true;
+		}
+	}
+	
+	/**
+	 * Unregister the service listener. Trackers still using the multiplexer
+	 * will not receive any further events.
+	 */
+	public synchronized void close() {
+		if (open) {
+			try {
+				context.removeServiceListener(this);
+			} catch (IllegalStateException e) {
+				// bundle context no longer valid
+			}
+			open = false;
+		}
+	}
+	
+	/**
+	 * Add a tracker
+	 * 
+	 * @param tracker the tracker
+	 */
+	synchronized void addTracker(ServiceTracker<?> tracker) {
+		String name = tracker.getServiceClass().getName();
+		ServiceTracker<?>[] current = trackers.get(name);
+		if (current == null) {
+			current = NO_TRACKERS;
+		}
+		
+		ServiceTracker<?>[] updated = Arrays.copyOf(current, current.length + 1);
+		updated[current.length] = tracker;
+		trackers.put(name, updated);
+	}
+	
+	/**
+	 * Remove a tracker
+	 * 
+	 * @param tracker the tracker
+	 */
+	synchronized void removeTracker(ServiceTracker<?> tracker) {
+		String name = tracker.getServiceClass().getName();
+		ServiceTracker<?>[] current = trackers.get(name);
+		if (current == null) {
+			return;
+		}
+		
+		for (int i = 0; i < current.length; i++) {
+			if (current[i] == tracker) {
+				if (current.length == 1) {
+					trackers.remove(name);
+				}
+				else {
+					ServiceTracker<?>[] updated = new ServiceTracker<?>[current.length - 1];
+					System.arraycopy(current, 0, updated, 0, i);
+					System.arraycopy(current, i + 1, updated, i, current.length - i - 1);
+					trackers.put(name, updated);
+				}
+				return;
+			}
+		}
+	}
+
+	/**
+	 * @see ServiceListener#serviceChanged(ServiceEvent)
+	 */
+	@Override
+	public void serviceChanged(ServiceEvent event) {
+		ServiceReference<?> reference = event.getServiceReference();
+		Object classes = reference.getProperty(Constants.OBJECTCLASS);
+		if (!(classes instanceof String[])) {
+			return;
+		}
+		
+		Dispatch current = dispatch.get();
+		current.depth++;
+		try {
+			for (String name : (String[]) classes) {
+				ServiceTracker<?>[] receivers = trackers.get(name);
+				if (receivers != null) {
+					for (ServiceTracker<?> tracker : receivers) {
+						try {
+							deliver(tracker, event);
+						} catch (RuntimeException e) {
+							log.error("Error delivering service event to tracker", e);
+						}
+					}
+				}
+			}
+		} finally {
+			if (--current.depth == 0 && !current.tasks.isEmpty()) {
+				List<Runnable> tasks = new ArrayList<Runnable>(current.tasks);
+				current.tasks.clear();
+				for (Runnable task : tasks) {
+					try {
+						task.run();
+					} catch (RuntimeException e) {
+						log.error("Error running task after service event", e);
+					}
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Run a task once the service event currently dispatched on the calling
+	 * thread has been delivered to all trackers. If no event is dispatched
+	 * on the calling thread, the task is run directly.
+	 * 
+	 * @param task the task, it is run on the dispatching thread and thus
+	 *   should be short
+	 */
+	void afterDispatch(Runnable task) {
+		Dispatch current = dispatch.get();
+		if (current.depth == 0) {
+			task.run();
+		}
+		else {
+			current.tasks.add(task);
+		}
+	}
+
+	/**
+	 * Deliver an event to a tracker, taking the tracker filter into account
+	 * 
+	 * @param tracker the tracker
+	 * @param event the service event
+	 */
+	private static void deliver(ServiceTracker<?> tracker, ServiceEvent event) {
+		Filter filter = tracker.getFilter();
+		if (filter == null) {
+			tracker.serviceChanged(event);
+			return;
+		}
+		
+		switch (event.getType()) {
+		case ServiceEvent.REGISTERED:
+			if (filter.match(event.getServiceReference())) {
+				tracker.serviceChanged(event);
+			}
+			break;
+		case ServiceEvent.MODIFIED:
+			if (filter.match(event.getServiceReference())) {
+				tracker.serviceChanged(event);
+			}
+			else {
+				// the tracker ignores the event if it did not track the service
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH,
+						event.getServiceReference()));
+			}
+			break;
+		default:
+			// removals are ignored for services that are not tracked
+			tracker.serviceChanged(event);
+		}
+	}
+
+}
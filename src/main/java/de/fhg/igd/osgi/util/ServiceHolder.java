@@ -0,0 +1,199 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: ServiceHolder</p>
+ * <p>Description: Holds a tracked service reference and the service
+ * instance obtained for it. In lazy mode the instance is only obtained from
+ * the framework on first access and may be released again when it has not
+ * been accessed for some time.</p>
+ * 
+ * @param <T> the service type
+ */
+final class ServiceHolder<T> {
+	
+	/**
+	 * The granularity of the recorded access time in nanoseconds
+	 */
+	private static final long ACCESS_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/**
+	 * The access time of an instance that is being released or was
+	 * released
+	 */
+	private static final long RELEASED = Long.MIN_VALUE;
+	
+	private final ServiceReference<T> reference;
+	
+	private final BundleContext context;
+	
+	private final ServiceTracker<T> tracker;
+	
+	private final boolean lazy;
+	
+	private volatile T instance;
+	
+	/**
+	 * The time of the last access in lazy mode, {@link #RELEASED} if no
+	 * instance is held. An access only returns the instance if this did not
+	 * change in the meantime, and releasing the instance first sets it to
+	 * {@link #RELEASED}, so an access never returns a released instance.
+	 */
+	private final AtomicLong lastAccess = new AtomicLong(RELEASED);
+	
+	/**
+	 * If the holder was released for good, guarded by this
+	 */
+	private boolean disposed = false;
+
+	/**
+	 * Create a service holder
+	 * 
+	 * @param reference the service reference
+	 * @param context the bundle context to obtain the service with
+	 * @param tracker the tracker the service is obtained for
+	 * @param lazy if the service is to be obtained on first access, otherwise
+	 *   it is obtained right away
+	 */
+	public ServiceHolder(ServiceReference<T> reference, BundleContext context,
+			ServiceTracker<T> tracker, boolean lazy) {
+		this.reference = reference;
+		this.context = context;
+		this.tracker = tracker;
+		this.lazy = lazy;
+		
+		if (!lazy) {
+			instance = tracker.obtainService(context, reference);
+		}
+	}
+
+	/**
+	 * @return the service reference
+	 */
+	public ServiceReference<T> getReference() {
+		return reference;
+	}
+	
+	/**
+	 * Get the service instance, obtains it from the framework if needed
+	 * 
+	 * @return the service instance or <code>null</code> if it is not
+	 *   available
+	 */
+	public T get() {
+		if (!lazy) {
+			return instance;
+		}
+		
+		while (true) {
+			long access = lastAccess.get();
+			T result = instance;
+			if (result == null || access == RELEASED) {
+				return obtain();
+			}
+			
+			long now = System.nanoTime();
+			if (now - access > ACCESS_GRANULARITY) {
+				if (lastAccess.compareAndSet(access, now)) {
+					return result;
+				}
+			}
+			else if (lastAccess.get() == access) {
+				return result;
+			}
+			// touched or released concurrently, try again
+		}
+	}
+	
+	/**
+	 * Obtain the service instance from the framework if it is not held
+	 * 
+	 * @return the service instance or <code>null</code> if it is not
+	 *   available
+	 */
+	private synchronized T obtain() {
+		T result = instance;
+		if (result == null && !disposed) {
+			result = tracker.obtainService(context, reference);
+			instance = result;
+		}
+		if (result != null) {
+			lastAccess.set(System.nanoTime());
+		}
+		return result;
+	}
+	
+	/**
+	 * Get the service instance if it was already obtained
+	 * 
+	 * @return the service instance or <code>null</code>
+	 */
+	public T peek() {
+		return instance;
+	}
+	
+	/**
+	 * Release the service instance for good
+	 * 
+	 * @return the released instance or <code>null</code> if none was obtained
+	 */
+	public synchronized T dispose() {
+		disposed = true;
+		lastAccess.set(RELEASED);
+		T result = instance;
+		if (result != null) {
+			instance = null;
+			context.ungetService(reference);
+		}
+		return result;
+	}
+	
+	/**
+	 * Release the service instance if it was not accessed for the given
+	 * time, it will be obtained again on the next access
+	 * 
+	 * @param idleTimeout the idle timeout in nanoseconds, at least the
+	 *   granularity of the recorded access time is used
+	 * @return if the instance was released
+	 */
+	public synchronized boolean releaseIfIdle(long idleTimeout) {
+		if (!lazy || instance == null) {
+			return false;
+		}
+		
+		long access = lastAccess.get();
+		if (System.nanoTime() - access < Math.max(idleTimeout, ACCESS_GRANULARITY) ||
+				!lastAccess.compareAndSet(access, RELEASED)) {
+			return false;
+		}
+		
+		instance = null;
+		context.ungetService(reference);
+		return true;
+	}
+
+}
@@ -0,0 +1,395 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: ServiceInstrumentation</p>
+ * <p>Description: Records call counts and latency histograms per method of
+ * services obtained through service trackers. Services are wrapped in a
+ * proxy for their service interface, statistics are kept separately for
+ * each providing bundle and service ID, so competing implementations of a
+ * service can be compared. Instrumentation is opt-in, see
+ * {@link ServiceTracker#setInstrumentation(ServiceInstrumentation)}.</p>
+ * <p>Services can only be instrumented if they are tracked by their
+ * interface, the identity of an instrumented service is the proxy and not
+ * the service itself. The statistics of a service are discarded when the
+ * service is unregistered.</p>
+ */
+public final class ServiceInstrumentation {
+	
+	/**
+	 * The statistics of a single service method
+	 */
+	private static final class MethodRecord {
+		
+		private final String bundle;
+		
+		private final long serviceId;
+		
+		private final String serviceType;
+		
+		private final String method;
+		
+		private final LatencyHistogram latencies = new LatencyHistogram();
+		
+		private final StripedCounter failures = new StripedCounter();
+		
+		public MethodRecord(String bundle, long serviceId, String serviceType, String method) {
+			this.bundle = bundle;
+			this.serviceId = serviceId;
+			this.serviceType = serviceType;
+			this.method = method;
+		}
+		
+		public void record(long nanos, boolean failed) {
+			latencies.record(nanos);
+			if (failed) {
+				failures.increment();
+			}
+		}
+		
+		public ServiceMethodStatistics getStatistics() {
+			long calls = latencies.getCount();
+			return new ServiceMethodStatistics(bundle, serviceId, serviceType, method,
+					calls, failures.sum(),
+					(calls == 0) ? 0 : toMicros(latencies.getTotal()) / calls,
+					toMicros(latencies.getValueAtPercentile(50)),
+					toMicros(latencies.getValueAtPercentile(90)),
+					toMicros(latencies.getValueAtPercentile(99)),
+					toMicros(latencies.getValueAtPercentile(99.9)),
+					toMicros(latencies.getMax()));
+		}
+		
+		public void reset() {
+			latencies.reset();
+			failures.reset();
+		}
+		
+	}
+	
+	/**
+	 * Invocation handler recording the calls to an instrumented service
+	 */
+	private final class InstrumentedService implements InvocationHandler {
+		
+		private final Object service;
+		
+		private final String bundle;
+		
+		private final long serviceId;
+		
+		private final String serviceType;
+		
+		/**
+		 * The records of the methods called so far
+		 */
+		private final ConcurrentMap<Method, MethodRecord> methods = 
+				new ConcurrentHashMap<Method, MethodRecord>();
+		
+		public InstrumentedService(Object service, String bundle, long serviceId,
+				String serviceType) {
+			this.service = service;
+			this.bundle = bundle;
+			this.serviceId = serviceId;
+			this.serviceType = serviceType;
+		}
+
+		/**
+		 * @see InvocationHandler#invoke(Object, Method, Object[])
+		 */
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+			if (method.getDeclaringClass() == Object.class) {
+				switch (method.getName()) {
+				case "equals":
+					return proxy == args[0];
+				case "hashCode":
+					return System.identityHashCode(proxy);
+				case "toString":
+					return "Instrumented " + service;
+				}
+			}
+			
+			if (!enabled) {
+				return invokeService(method, args);
+			}
+			
+			MethodRecord record = methods.get(method);
+			if (record == null) {
+				record = getRecord(bundle, serviceId, serviceType, method);
+				methods.put(method, record);
+			}
+			
+			boolean failed = true;
+			long start = System.nanoTime();
+			try {
+				Object result = invokeService(method, args);
+				failed = false;
+				return result;
+			} finally {
+				record.record(System.nanoTime() - start, failed);
+			}
+		}
+		
+		private Object invokeService(Method method, Object[] args) throws Throwable {
+			try {
+				return method.invoke(service, args);
+			} catch (InvocationTargetException e) {
+				throw e.getCause();
+			}
+		}
+		
+	}
+	
+	/**
+	 * The method records per service ID, the key of a record combines
+	 * service type and method
+	 */
+	private final ConcurrentMap<Long, ConcurrentMap<String, MethodRecord>> records = 
+			new ConcurrentHashMap<Long, ConcurrentMap<String, MethodRecord>>();
+	
+	private volatile boolean enabled = true;
+	
+	/**
+	 * @return if services are instrumented and calls are recorded
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Enable or disable instrumentation. While disabled, services are not
+	 * wrapped and calls to already instrumented services are not recorded.
+	 * 
+	 * @param enabled if instrumentation should be enabled
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+	
+	/**
+	 * Wrap the given service so that calls to it are recorded
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service interface
+	 * @param reference the service reference
+	 * @param service the service instance, may be <code>null</code>
+	 * @return the instrumented service, or the given service if it cannot
+	 *   be instrumented or instrumentation is disabled
+	 */
+	public <T> T wrap(Class<T> serviceType, ServiceReference<?> reference, T service) {
+		if (!enabled || service == null || !serviceType.isInterface()) {
+			return service;
+		}
+		if (Proxy.isProxyClass(service.getClass())
+				&& Proxy.getInvocationHandler(service) instanceof InstrumentedService) {
+			// already instrumented
+			return service;
+		}
+		
+		Bundle bundle = reference.getBundle();
+		InstrumentedService handler = new InstrumentedService(service,
+				(bundle == null) ? null : bundle.getSymbolicName(),
+				getServiceId(reference), serviceType.getName());
+		
+		Object proxy = Proxy.newProxyInstance(serviceType.getClassLoader(),
+				new Class<?>[] { serviceType }, handler);
+		return serviceType.cast(proxy);
+	}
+	
+	/**
+	 * Get the underlying service of an instrumented service
+	 * 
+	 * @param <T> the service type
+	 * @param service the service, may be <code>null</code>
+	 * @return the underlying service if the given service is instrumented,
+	 *   otherwise the given service
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> T unwrap(T service) {
+		if (service != null && Proxy.isProxyClass(service.getClass())) {
+			InvocationHandler handler = Proxy.getInvocationHandler(service);
+			if (handler instanceof InstrumentedService) {
+				return (T) ((InstrumentedService) handler).service;
+			}
+		}
+		return service;
+	}
+	
+	/**
+	 * Discard the statistics of a service, called by the service trackers
+	 * when the service is unregistered
+	 * 
+	 * @param reference the service reference
+	 */
+	public void remove(ServiceReference<?> reference) {
+		records.remove(getServiceId(reference));
+	}
+	
+	/**
+	 * Get the statistics of all methods called so far
+	 * 
+	 * @return the method statistics
+	 */
+	public List<ServiceMethodStatistics> getStatistics() {
+		List<ServiceMethodStatistics> result = new ArrayList<ServiceMethodStatistics>();
+		for (ConcurrentMap<String, MethodRecord> serviceRecords : records.values()) {
+			for (MethodRecord record : serviceRecords.values()) {
+				result.add(record.getStatistics());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Reset the recorded statistics
+	 */
+	public void reset() {
+		for (ConcurrentMap<String, MethodRecord> serviceRecords : records.values()) {
+			for (MethodRecord record : serviceRecords.values()) {
+				record.reset();
+			}
+		}
+	}
+	
+	/**
+	 * Write the statistics of all methods called so far to the given file,
+	 * as tab separated values with a header line. Latencies are written in
+	 * microseconds.
+	 * 
+	 * @param file the file to write, it is replaced if it exists
+	 * @throws IOException if writing the file fails
+	 */
+	public void dump(File file) throws IOException {
+		PrintWriter writer = new PrintWriter(new OutputStreamWriter(
+				new FileOutputStream(file), "UTF-8"));
+		try {
+			writer.println("bundle\tservice.id\tservice\tmethod\tcalls\tfailures\t" +
+					"mean\tp50\tp90\tp99\tp99.9\tmax");
+			for (ServiceMethodStatistics stats : getStatistics()) {
+				writer.println(String.format(Locale.ROOT,
+						"%s\t%d\t%s\t%s\t%d\t%d\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f\t%.3f",
+						stats.getBundle(), stats.getServiceId(), stats.getServiceType(),
+						stats.getMethod(), stats.getCalls(), stats.getFailures(),
+						stats.getMeanMicros(), stats.getMedianMicros(), stats.getP90Micros(),
+						stats.getP99Micros(), stats.getP999Micros(), stats.getMaxMicros()));
+			}
+			if (writer.checkError()) {
+				throw new IOException("Failed to write " + file);
+			}
+		} finally {
+			writer.close();
+		}
+	}
+	
+	/**
+	 * Get the record for a service method, creates it if needed
+	 * 
+	 * @param bundle the symbolic name of the providing bundle
+	 * @param serviceId the service ID
+	 * @param serviceType the service interface name
+	 * @param method the method
+	 * @return the method record
+	 */
+	private MethodRecord getRecord(String bundle, long serviceId, String serviceType,
+			Method method) {
+		ConcurrentMap<String, MethodRecord> serviceRecords = records.get(serviceId);
+		if (serviceRecords == null) {
+			serviceRecords = new ConcurrentHashMap<String, MethodRecord>();
+			ConcurrentMap<String, MethodRecord> existing = records.putIfAbsent(
+					serviceId, serviceRecords);
+			if (existing != null) {
+				serviceRecords = existing;
+			}
+		}
+		
+		String signature = getSignature(method);
+		String key = serviceType + '#' + signature;
+		MethodRecord record = serviceRecords.get(key);
+		if (record == null) {
+			record = new MethodRecord(bundle, serviceId, serviceType, signature);
+			MethodRecord existing = serviceRecords.putIfAbsent(key, record);
+			if (existing != null) {
+				record = existing;
+			}
+		}
+		return record;
+	}
+	
+	/**
+	 * Get the ID of a service
+	 * 
+	 * @param reference the service reference
+	 * @return the service ID or <code>-1</code> if it is not known
+	 */
+	private static long getServiceId(ServiceReference<?> reference) {
+		Object id = reference.getProperty(Constants.SERVICE_ID);
+		return (id instanceof Number) ? ((Number) id).longValue() : -1;
+	}
+	
+	/**
+	 * Get the signature of a method, with simple parameter type names
+	 * 
+	 * @param method the method
+	 * @return the method signature
+	 */
+	private static String getSignature(Method method) {
+		StringBuilder result = new StringBuilder(method.getName()).append('(');
+		Class<?>[] parameters = method.getParameterTypes();
+		for (int i = 0; i < parameters.length; i++) {
+			if (i > 0) {
+				result.append(", ");
+			}
+			result.append(parameters[i].getSimpleName());
+		}
+		return result.append(')').toString();
+	}
+	
+	/**
+	 * Convert nanoseconds to fractional microseconds
+	 * 
+	 * @param nanos the nanoseconds
+	 * @return the microseconds
+	 */
+	private static double toMicros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+
+}
@@ -0,0 +1,81 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: ServiceLease</p>
+ * <p>Description: A lease on a service instance. While the lease is open
+ * the service is not released by the tracker that handed out the lease, a
+ * replacement of the service waits for open leases to be closed up to a
+ * bounded time. Leases are meant to be short lived, e.g. for the duration
+ * of a call, and to be closed with a try-with-resources statement.</p>
+ * 
+ * @param <T> the service type
+ * @see SingleServiceTracker#leaseService()
+ */
+public final class ServiceLease<T> implements AutoCloseable {
+	
+	private final LeaseBinding<T> binding;
+	
+	private final AtomicBoolean closed = new AtomicBoolean(false);
+
+	/**
+	 * Create a lease, it must be closed exactly once
+	 * 
+	 * @param binding the binding the lease is acquired on
+	 */
+	ServiceLease(LeaseBinding<T> binding) {
+		this.binding = binding;
+	}
+	
+	/**
+	 * Get the leased service instance. It must not be used after the lease
+	 * has been closed.
+	 * 
+	 * @return the service instance
+	 */
+	public T get() {
+		return binding.getService();
+	}
+	
+	/**
+	 * @return the reference of the leased service
+	 */
+	public ServiceReference<T> getReference() {
+		return binding.getReference();
+	}
+
+	/**
+	 * Close the lease, closing a lease more than once has no effect
+	 * 
+	 * @see AutoCloseable#close()
+	 */
+	@Override
+	public void close() {
+		if (closed.compareAndSet(false, true)) {
+			binding.release();
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * <p>Title: ServiceMethodStatistics</p>
+ * <p>Description: Call statistics of a single method of a service
+ * instrumented with {@link ServiceInstrumentation}. Latencies are given in
+ * microseconds, percentiles are resolved with a relative error of at most
+ * 1/16.</p>
+ */
+public final class ServiceMethodStatistics {
+	
+	private final String bundle;
+	
+	private final long serviceId;
+	
+	private final String serviceType;
+	
+	private final String method;
+	
+	private final long calls;
+	
+	private final long failures;
+	
+	private final double meanMicros;
+	
+	private final double medianMicros;
+	
+	private final double p90Micros;
+	
+	private final double p99Micros;
+	
+	private final double p999Micros;
+	
+	private final double maxMicros;
+
+	/**
+	 * Create method statistics
+	 * 
+	 * @param bundle the symbolic name of the bundle providing the service
+	 * @param serviceId the service ID
+	 * @param serviceType the name of the service interface
+	 * @param method the method signature
+	 * @param calls the number of calls
+	 * @param failures the number of calls that threw an exception
+	 * @param meanMicros the mean call latency
+	 * @param medianMicros the median call latency
+	 * @param p90Micros the 90th percentile of the call latency
+	 * @param p99Micros the 99th percentile of the call latency
+	 * @param p999Micros the 99.9th percentile of the call latency
+	 * @param maxMicros the maximum call latency
+	 */
+	@ConstructorProperties({"bundle", "serviceId", "serviceType", "method",
+		"calls", "failures", "meanMicros", "medianMicros", "p90Micros",
+		"p99Micros", "p999Micros", "maxMicros"})
+	public ServiceMethodStatistics(String bundle, long serviceId, String serviceType,
+			String method, long calls, long failures, double meanMicros,
+			double medianMicros, double p90Micros, double p99Micros,
+			double p999Micros, double maxMicros) {
+		this.bundle = bundle;
+		this.serviceId = serviceId;
+		this.serviceType = serviceType;
+		this.method = method;
+		this.calls = calls;
+		this.failures = failures;
+		this.meanMicros = meanMicros;
+		this.medianMicros = medianMicros;
+		this.p90Micros = p90Micros;
+		this.p99Micros = p99Micros;
+		this.p999Micros = p999Micros;
+		this.maxMicros = maxMicros;
+	}
+
+	/**
+	 * @return the symbolic name of the bundle providing the service
+	 */
+	public String getBundle() {
+		return bundle;
+	}
+
+	/**
+	 * @return the service ID
+	 */
+	public long getServiceId() {
+		return serviceId;
+	}
+
+	/**
+	 * @return the name of the service interface
+	 */
+	public String getServiceType() {
+		return serviceType;
+	}
+
+	/**
+	 * @return the method signature
+	 */
+	public String getMethod() {
+		return method;
+	}
+
+	/**
+	 * @return the number of calls
+	 */
+	public long getCalls() {
+		return calls;
+	}
+
+	/**
+	 * @return the number of calls that threw an exception
+	 */
+	public long getFailures() {
+		return failures;
+	}
+
+	/**
+	 * @return the mean call latency in microseconds
+	 */
+	public double getMeanMicros() {
+		return meanMicros;
+	}
+
+	/**
+	 * @return the median call latency in microseconds
+	 */
+	public double getMedianMicros() {
+		return medianMicros;
+	}
+
+	/**
+	 * @return the 90th percentile of the call latency in microseconds
+	 */
+	public double getP90Micros() {
+		return p90Micros;
+	}
+
+	/**
+	 * @return the 99th percentile of the call latency in microseconds
+	 */
+	public double getP99Micros() {
+		return p99Micros;
+	}
+
+	/**
+	 * @return the 99.9th percentile of the call latency in microseconds
+	 */
+	public double getP999Micros() {
+		return p999Micros;
+	}
+
+	/**
+	 * @return the maximum call latency in microseconds
+	 */
+	public double getMaxMicros() {
+		return maxMicros;
+	}
+
+}
@@ -0,0 +1,316 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.reflect.Array;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: ServiceProperties</p>
+ * <p>Description: Immutable view on the properties of a service. The
+ * properties are copied once when the view is created, property keys are
+ * case insensitive like for {@link ServiceReference#getProperty(String)}.
+ * Values keep their type, multi-valued properties are represented as
+ * immutable lists. The typed accessors convert numbers and strings where
+ * needed, the string lists are converted once on first access.</p>
+ */
+public final class ServiceProperties {
+	
+	/**
+	 * Maps lower case keys to property values
+	 */
+	private final Map<String, Object> values;
+	
+	/**
+	 * The original property keys
+	 */
+	private final Set<String> keys;
+	
+	/**
+	 * Maps lower case keys to the values as string lists, built on first
+	 * access to {@link #getStrings(String)}
+	 */
+	private volatile Map<String, List<String>> strings;
+
+	/**
+	 * Create a property view for the given service reference
+	 * 
+	 * @param service the service reference
+	 */
+	public ServiceProperties(ServiceReference<?> service) {
+		String[] propertyKeys = service.getPropertyKeys();
+		Map<String, Object> values = new HashMap<String, Object>(propertyKeys.length * 2);
+		Map<String, Object> original = new HashMap<String, Object>(propertyKeys.length * 2);
+		for (String key : propertyKeys) {
+			Object value = copy(service.getProperty(key));
+			values.put(key.toLowerCase(Locale.ENGLISH), value);
+			original.put(key, value);
+		}
+		
+		this.values = values;
+		this.keys = Collections.unmodifiableSet(original.keySet());
+	}
+	
+	/**
+	 * Copy mutable property values, arrays and collections are copied to
+	 * immutable lists
+	 * 
+	 * @param value the property value
+	 * @return the value or a copy of it
+	 */
+	private static Object copy(Object value) {
+		if (value != null && value.getClass().isArray()) {
+			int length = Array.getLength(value);
+			List<Object> result = new ArrayList<Object>(length);
+			for (int i = 0; i < length; i++) {
+				result.add(Array.get(value, i));
+			}
+			return Collections.unmodifiableList(result);
+		}
+		if (value instanceof Collection<?>) {
+			return Collections.unmodifiableList(new ArrayList<Object>((Collection<?>) value));
+		}
+		return value;
+	}
+	
+	/**
+	 * Convert all property values to string lists
+	 * 
+	 * @return the string lists mapped by lower case key
+	 */
+	private Map<String, List<String>> convertStrings() {
+		Map<String, List<String>> result = new HashMap<String, List<String>>(values.size() * 2);
+		for (Map.Entry<String, Object> entry : values.entrySet()) {
+			Object value = entry.getValue();
+			List<String> converted;
+			if (value == null) {
+				converted = Collections.emptyList();
+			}
+			else if (value instanceof List<?>) {
+				List<String> elements = new ArrayList<String>(((List<?>) value).size());
+				for (Object element : (List<?>) value) {
+					elements.add(String.valueOf(element));
+				}
+				converted = Collections.unmodifiableList(elements);
+			}
+			else {
+				converted = Collections.singletonList(value.toString());
+			}
+			result.put(entry.getKey(), converted);
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the property keys
+	 */
+	public Set<String> getKeys() {
+		return keys;
+	}
+	
+	/**
+	 * Determines if a property is present
+	 * 
+	 * @param key the property key
+	 * @return if the property is present
+	 */
+	public boolean containsKey(String key) {
+		return values.containsKey(key.toLowerCase(Locale.ENGLISH));
+	}
+	
+	/**
+	 * Get a property value. Array and collection values are returned as
+	 * immutable lists, use {@link #getStrings(String)} for string arrays.
+	 * 
+	 * @param key the property key
+	 * @return the property value or <code>null</code>
+	 */
+	public Object get(String key) {
+		return values.get(key.toLowerCase(Locale.ENGLISH));
+	}
+	
+	/**
+	 * Get a property value as string
+	 * 
+	 * @param key the property key
+	 * @param defaultValue the value to return if the property is not present
+	 * @return the property value as string or the default value
+	 */
+	public String getString(String key, String defaultValue) {
+		Object value = values.get(key.toLowerCase(Locale.ENGLISH));
+		if (value == null) {
+			return defaultValue;
+		}
+		return (value instanceof String) ? (String) value : value.toString();
+	}
+	
+	/**
+	 * Get a property value as string
+	 * 
+	 * @param key the property key
+	 * @return the property value as string or <code>null</code>
+	 */
+	public String getString(String key) {
+		return getString(key, null);
+	}
+	
+	/**
+	 * Get a property value as list of strings. Arrays and collections are
+	 * converted element-wise, a single value results in a list with one
+	 * element.
+	 * 
+	 * @param key the property key
+	 * @return the immutable list of values, empty if the property is not
+	 *   present
+	 */
+	public List<String> getStrings(String key) {
+		Map<String, List<String>> converted = strings;
+		if (converted == null) {
+			// concurrent conversions yield equal maps, publishing either is fine
+			converted = convertStrings();
+			strings = converted;
+		}
+		
+		List<String> result = converted.get(key.toLowerCase(Locale.ENGLISH));
+		return (result == null) ? Collections.<String>emptyList() : result;
+	}
+	
+	/**
+	 * Get a property value as int
+	 * 
+	 * @param key the property key
+	 * @param defaultValue the value to return if the property is not present
+	 *   or cannot be converted
+	 * @return the property value or the default value
+	 */
+	public int getInt(String key, int defaultValue) {
+		Object value = values.get(key.toLowerCase(Locale.ENGLISH));
+		if (value instanceof Number) {
+			return ((Number) value).intValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Integer.parseInt(((String) value).trim());
+			} catch (NumberFormatException e) {
+				// use default
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Get a property value as long
+	 * 
+	 * @param key the property key
+	 * @param defaultValue the value to return if the property is not present
+	 *   or cannot be converted
+	 * @return the property value or the default value
+	 */
+	public long getLong(String key, long defaultValue) {
+		Object value = values.get(key.toLowerCase(Locale.ENGLISH));
+		if (value instanceof Number) {
+			return ((Number) value).longValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Long.parseLong(((String) value).trim());
+			} catch (NumberFormatException e) {
+				// use default
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Get a property value as double
+	 * 
+	 * @param key the property key
+	 * @param defaultValue the value to return if the property is not present
+	 *   or cannot be converted
+	 * @return the property value or the default value
+	 */
+	public double getDouble(String key, double defaultValue) {
+		Object value = values.get(key.toLowerCase(Locale.ENGLISH));
+		if (value instanceof Number) {
+			return ((Number) value).doubleValue();
+		}
+		if (value instanceof String) {
+			try {
+				return Double.parseDouble(((String) value).trim());
+			} catch (NumberFormatException e) {
+				// use default
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * Get a property value as boolean
+	 * 
+	 * @param key the property key
+	 * @param defaultValue the value to return if the property is not present
+	 *   or cannot be converted
+	 * @return the property value or the default value
+	 */
+	public boolean getBoolean(String key, boolean defaultValue) {
+		Object value = values.get(key.toLowerCase(Locale.ENGLISH));
+		if (value instanceof Boolean) {
+			return ((Boolean) value).booleanValue();
+		}
+		if (value instanceof String) {
+			String text = ((String) value).trim();
+			if (text.equalsIgnoreCase("true")) {
+				return true;
+			}
+			if (text.equalsIgnoreCase("false")) {
+				return false;
+			}
+		}
+		return defaultValue;
+	}
+	
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		StringBuilder result = new StringBuilder("{");
+		boolean first = true;
+		for (String key : keys) {
+			if (!first) {
+				result.append(", ");
+			}
+			first = false;
+			result.append(key).append('=');
+			result.append(values.get(key.toLowerCase(Locale.ENGLISH)));
+		}
+		return result.append('}').toString();
+	}
+
+}
@@ -0,0 +1,422 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.lang.invoke.SwitchPoint;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>Title: ServiceProxy</p>
+ * <p>Description: A stable proxy for the service bound by a
+ * {@link SingleServiceTracker}. A proxy class implementing the service
+ * interface is generated, whose methods call the service through
+ * <code>invokedynamic</code> call sites. The target of a call site is a
+ * method handle bound to the current service instance and guarded by a
+ * {@link SwitchPoint}, so while the bound service does not change the JIT
+ * can inline the call to the service without any lookup or lock. When the
+ * tracker binds another service the switch point is invalidated, and each
+ * call site is linked to the new service on its next invocation.</p>
+ * 
+ * <p>Calling the proxy while no service is bound throws an
+ * {@link IllegalStateException}, exceptions thrown by the service are
+ * passed on unchanged. The methods declared by {@link Object} are those of
+ * the proxy, not of the service.</p>
+ * 
+ * @param <T> the service type
+ */
+final class ServiceProxy<T> implements SingleServiceListener<T> {
+	
+	/**
+	 * The number of proxy classes created, for unique class names
+	 */
+	private static final AtomicInteger classCount = new AtomicInteger();
+	
+	/**
+	 * Handle to {@link #relink(int, Object[])}
+	 */
+	private static final MethodHandle RELINK;
+	
+	/**
+	 * Handle to {@link #unavailable()}
+	 */
+	private static final MethodHandle UNAVAILABLE;
+	
+	static {
+		try {
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			RELINK = lookup.findVirtual(ServiceProxy.class, "relink",
+					MethodType.methodType(Object.class, int.class, Object[].class));
+			UNAVAILABLE = lookup.findVirtual(ServiceProxy.class, "unavailable",
+					MethodType.methodType(Object.class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	/**
+	 * Class loader defining a proxy class. Classes are resolved through
+	 * the loader of the service interface and then through the loader of
+	 * this bundle, which provides the {@link ServiceProxyLinker}.
+	 */
+	static final class ProxyClassLoader extends ClassLoader {
+		
+		private final ServiceProxy<?> proxy;
+		
+		/**
+		 * Create a loader for the proxy class of the given proxy
+		 * 
+		 * @param proxy the service proxy
+		 */
+		private ProxyClassLoader(ServiceProxy<?> proxy) {
+			super(proxy.serviceType.getClassLoader());
+			this.proxy = proxy;
+		}
+		
+		/**
+		 * @see ClassLoader#findClass(String)
+		 */
+		@Override
+		protected Class<?> findClass(String name) throws ClassNotFoundException {
+			return ServiceProxy.class.getClassLoader().loadClass(name);
+		}
+		
+		/**
+		 * Define the proxy class
+		 * 
+		 * @param name the class name
+		 * @param classFile the class file
+		 * @return the class
+		 */
+		private Class<?> define(String name, byte[] classFile) {
+			return defineClass(name, classFile, 0, classFile.length);
+		}
+		
+		/**
+		 * Get the call site of a method of the proxy class
+		 * 
+		 * @param index the method index
+		 * @param type the method type
+		 * @return the call site
+		 * @throws IllegalArgumentException if the proxy has no method with
+		 *   the given index and type
+		 */
+		CallSite getCallSite(int index, MethodType type) {
+			if (index < 0 || index >= proxy.sites.length ||
+					!proxy.sites[index].type().equals(type)) {
+				throw new IllegalArgumentException("Unknown proxy method " + index + ": " + type);
+			}
+			return proxy.sites[index];
+		}
+	
+	}
+	
+	/**
+	 * A service instance with the method handles bound to it and the switch
+	 * point guarding them
+	 */
+	private static final class Binding {
+		
+		private final Object service;
+		
+		private final MethodHandle[] targets;
+		
+		private final SwitchPoint switchPoint = new SwitchPoint();
+		
+		/**
+		 * Create a binding
+		 * 
+		 * @param service the service instance, may be <code>null</code>
+		 * @param targets the method handles bound to the service
+		 */
+		public Binding(Object service, MethodHandle[] targets) {
+			this.service = service;
+			this.targets = targets;
+		}
+	
+	}
+	
+	private final Class<T> serviceType;
+	
+	private final SingleServiceTracker<T> tracker;
+	
+	/**
+	 * The interface methods, taking the service as first argument
+	 */
+	private final MethodHandle[] methods;
+	
+	/**
+	 * Handles throwing an {@link IllegalStateException}, for each method
+	 */
+	private final MethodHandle[] unavailable;
+	
+	/**
+	 * Handles relinking the call sites, for each method
+	 */
+	private final MethodHandle[] fallbacks;
+	
+	/**
+	 * The call sites of the proxy class, for each method
+	 */
+	private final MutableCallSite[] sites;
+	
+	private volatile Binding binding;
+	
+	/**
+	 * If the proxy was disposed, guarded by this
+	 */
+	private boolean disposed = false;
+	
+	/**
+	 * The number of service changes the proxy was notified of, guarded by
+	 * this
+	 */
+	private int changes = 0;
+	
+	/**
+	 * The proxy instance
+	 */
+	private final T proxy;
+	
+	/**
+	 * Create a proxy for the service bound by the given tracker, registers
+	 * itself as listener with the tracker
+	 * 
+	 * @param serviceType the service interface
+	 * @param tracker the service tracker
+	 * @throws IllegalArgumentException if the service type is not a public
+	 *   interface
+	 */
+	private ServiceProxy(Class<T> serviceType, SingleServiceTracker<T> tracker) {
+		this.serviceType = serviceType;
+		this.tracker = tracker;
+		
+		Map<String, Method> interfaceMethods = new LinkedHashMap<String, Method>();
+		for (Method method : serviceType.getMethods()) {
+			if (Modifier.isStatic(method.getModifiers()) || isObjectMethod(method)) {
+				continue;
+			}
+			String key = method.getName() + MethodType.methodType(method.getReturnType(),
+					method.getParameterTypes()).toMethodDescriptorString();
+			if (!interfaceMethods.containsKey(key)) {
+				interfaceMethods.put(key, method);
+			}
+		}
+		
+		int count = interfaceMethods.size();
+		methods = new MethodHandle[count];
+		unavailable = new MethodHandle[count];
+		fallbacks = new MethodHandle[count];
+		sites = new MutableCallSite[count];
+		List<String> names = new ArrayList<String>(count);
+		List<MethodType> types = new ArrayList<MethodType>(count);
+		
+		int index = 0;
+		for (Method method : interfaceMethods.values()) {
+			MethodType type = MethodType.methodType(method.getReturnType(),
+					method.getParameterTypes());
+			try {
+				methods[index] = MethodHandles.publicLookup().unreflect(method);
+			} catch (IllegalAccessException e) {
+				throw new IllegalArgumentException("Only public interfaces can be proxied: " +
+						serviceType.getName(), e);
+			}
+			unavailable[index] = MethodHandles.dropArguments(UNAVAILABLE.bindTo(this)
+					.asType(MethodType.methodType(type.returnType())), 0, type.parameterList());
+			fallbacks[index] = MethodHandles.insertArguments(RELINK, 0, this, index)
+					.asCollector(Object[].class, type.parameterCount())
+					.asType(type);
+			sites[index] = new MutableCallSite(fallbacks[index]);
+			
+			names.add(method.getName());
+			types.add(type);
+			index++;
+		}
+		
+		binding = new Binding(null, unavailable);
+		
+		String className = ServiceProxy.class.getName() + "$Proxy" + classCount.incrementAndGet();
+		Class<?> proxyClass = new ProxyClassLoader(this).define(className,
+				ProxyClassWriter.write(className, serviceType, names, types));
+		try {
+			proxy = serviceType.cast(proxyClass.getConstructor().newInstance());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalStateException("Could not create proxy for " +
+					serviceType.getName(), e);
+		}
+		
+		tracker.addListener(this);
+		T service = tracker.getService();
+		synchronized (this) {
+			// a change notified in the meantime is newer than the service
+			// retrieved before
+			if (changes == 0) {
+				rebind(service);
+			}
+		}
+	}
+	
+	/**
+	 * Create a proxy for the service bound by the given tracker
+	 * 
+	 * @param <T> the service type
+	 * @param serviceType the service interface
+	 * @param tracker the service tracker
+	 * @return the service proxy, see {@link #getProxy()}
+	 * @throws IllegalArgumentException if the service type is not a public
+	 *   interface
+	 */
+	public static <T> ServiceProxy<T> create(Class<T> serviceType,
+			SingleServiceTracker<T> tracker) {
+		if (!serviceType.isInterface() || !Modifier.isPublic(serviceType.getModifiers())) {
+			throw new IllegalArgumentException("Only public interfaces can be proxied: " +
+					serviceType.getName());
+		}
+		
+		return new ServiceProxy<T>(serviceType, tracker);
+	}
+	
+	/**
+	 * Determines if the given interface method is declared by
+	 * {@link Object} as well
+	 * 
+	 * @param method the method
+	 * @return if the method is a public method of {@link Object}
+	 */
+	private static boolean isObjectMethod(Method method) {
+		try {
+			Object.class.getMethod(method.getName(), method.getParameterTypes());
+			return true;
+		} catch (NoSuchMethodException e) {
+			return false;
+		}
+	}
+	
+	/**
+	 * @return the proxy implementing the service interface
+	 */
+	public T getProxy() {
+		return proxy;
+	}
+	
+	/**
+	 * @return the tracker providing the service
+	 */
+	public SingleServiceTracker<T> getTracker() {
+		return tracker;
+	}
+	
+	/**
+	 * Unregister the proxy from the tracker, the proxy cannot be used
+	 * afterwards
+	 */
+	public void dispose() {
+		tracker.removeListener(this);
+		synchronized (this) {
+			rebind(null);
+			disposed = true;
+		}
+	}
+	
+	/**
+	 * Called through a call site whose switch point was invalidated or
+	 * that was not linked yet, links the call site to the current service
+	 * and invokes it
+	 * 
+	 * @param index the method index
+	 * @param args the arguments
+	 * @return the result of the invocation
+	 * @throws Throwable if the invocation fails
+	 */
+	@SuppressWarnings("unused")
+	private Object relink(int index, Object[] args) throws Throwable {
+		Binding current = binding;
+		MethodHandle target = current.targets[index];
+		sites[index].setTarget(current.switchPoint.guardWithTest(target, fallbacks[index]));
+		return target.invokeWithArguments(args);
+	}
+	
+	/**
+	 * Called when no service is bound
+	 * 
+	 * @return never
+	 * @throws IllegalStateException always
+	 */
+	@SuppressWarnings("unused")
+	private Object unavailable() {
+		throw new IllegalStateException("No service available: " + serviceType.getName());
+	}
+	
+	/**
+	 * Bind the given service, invalidating the call sites linked to the
+	 * previous one
+	 * 
+	 * @param service the service instance, may be <code>null</code>
+	 */
+	private synchronized void rebind(T service) {
+		Binding previous = binding;
+		if (disposed || previous.service == service) {
+			return;
+		}
+		
+		MethodHandle[] targets = unavailable;
+		if (service != null) {
+			targets = new MethodHandle[methods.length];
+			for (int i = 0; i < methods.length; i++) {
+				targets[i] = methods[i].bindTo(service);
+			}
+		}
+		
+		binding = new Binding(service, targets);
+		SwitchPoint.invalidateAll(new SwitchPoint[] { previous.switchPoint });
+	}
+	
+	/**
+	 * @see SingleServiceListener#afterServiceChange(Object)
+	 */
+	@Override
+	public synchronized void afterServiceChange(T service) {
+		changes++;
+		// the replacement is bound directly, without unbinding first
+		rebind(service);
+	}
+	
+	/**
+	 * Does nothing, the proxy stays bound to the previous service until
+	 * the change is complete, see {@link #afterServiceChange(Object)}
+	 * 
+	 * @see SingleServiceListener#beforeServiceRemove(Object)
+	 */
+	@Override
+	public void beforeServiceRemove(T service) {
+		// do nothing
+	}
+
+}
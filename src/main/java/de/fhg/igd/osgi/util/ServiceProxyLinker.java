@@ -0,0 +1,59 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * <p>Title: ServiceProxyLinker</p>
+ * <p>Description: Links the <code>invokedynamic</code> call sites of the
+ * service proxies returned by {@link OsgiUtils#getServiceProxy(Class)}.
+ * The proxy classes are defined in class loaders of their own and thus
+ * can only call public methods of this bundle, this class is not meant to
+ * be used otherwise.</p>
+ */
+public final class ServiceProxyLinker {
+	
+	private ServiceProxyLinker() {
+		// static access only
+	}
+	
+	/**
+	 * Bootstrap method of the call sites of a proxy class
+	 * 
+	 * @param caller the lookup of the proxy class
+	 * @param name the name of the called method
+	 * @param type the type of the called method without the receiver
+	 * @param index the index of the method in the proxy class
+	 * @return the call site of the method
+	 * @throws IllegalArgumentException if the caller is not a proxy class
+	 */
+	public static CallSite bootstrap(MethodHandles.Lookup caller, String name,
+			MethodType type, int index) {
+		ClassLoader loader = caller.lookupClass().getClassLoader();
+		if (!(loader instanceof ServiceProxy.ProxyClassLoader)) {
+			throw new IllegalArgumentException("Not a service proxy: " + caller.lookupClass());
+		}
+		return ((ServiceProxy.ProxyClassLoader) loader).getCallSite(index, type);
+	}
+
+}
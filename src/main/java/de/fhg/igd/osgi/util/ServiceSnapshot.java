@@ -0,0 +1,207 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import org.osgi.framework.ServiceReference;
+
+/**
+ * <p>Title: ServiceSnapshot</p>
+ * <p>Description: Immutable snapshot of the services tracked by a
+ * {@link MultiServiceTracker}. The services are ordered by service ranking,
+ * highest first, and for equal rankings by service ID, lowest first.
+ * Reading a snapshot needs neither locks nor allocations apart from the
+ * iterator.</p>
+ * 
+ * <p>If the tracker dereferences services lazily, the services are obtained
+ * from the framework on first access through the snapshot. Services that
+ * are not available any more are then skipped, both by the iterator and by
+ * {@link #size()}, so the set methods activate the services they look at.
+ * The positions accepted by {@link #get(int)} and {@link #getReference(int)}
+ * range over all tracked references, see {@link #getReferenceCount()}, and
+ * do not activate any other service.</p>
+ * 
+ * @param <T> the service type
+ */
+public final class ServiceSnapshot<T> extends AbstractSet<T> {
+	
+	/**
+	 * The empty snapshot
+	 */
+	private static final ServiceSnapshot<Object> EMPTY = new ServiceSnapshot<Object>(
+			0, new ServiceHolder<?>[0]);
+	
+	private final long version;
+	
+	private final ServiceHolder<?>[] services;
+
+	/**
+	 * Create a snapshot, the given array must not be modified afterwards
+	 * 
+	 * @param version the snapshot version
+	 * @param services the holders of the services
+	 */
+	ServiceSnapshot(long version, ServiceHolder<?>[] services) {
+		this.version = version;
+		this.services = services;
+	}
+	
+	/**
+	 * Get the empty snapshot
+	 * 
+	 * @param <T> the service type
+	 * @return the empty snapshot
+	 */
+	@SuppressWarnings("unchecked")
+	static <T> ServiceSnapshot<T> empty() {
+		return (ServiceSnapshot<T>) EMPTY;
+	}
+
+	/**
+	 * @return the snapshot version, it is increased each time the tracked
+	 *   services change
+	 */
+	public long getVersion() {
+		return version;
+	}
+	
+	/**
+	 * @return the number of tracked references, an upper bound of the
+	 *   {@link #size()} that does not activate any services
+	 */
+	public int getReferenceCount() {
+		return services.length;
+	}
+	
+	/**
+	 * Get the service at the given position
+	 * 
+	 * @param index the position, <code>0</code> is the highest ranked
+	 *   service, less than {@link #getReferenceCount()}
+	 * @return the service instance, may only be <code>null</code> if the
+	 *   service is obtained lazily and is not available any more
+	 */
+	@SuppressWarnings("unchecked")
+	public T get(int index) {
+		return (T) services[index].get();
+	}
+	
+	/**
+	 * Get the reference of the service at the given position
+	 * 
+	 * @param index the position, <code>0</code> is the highest ranked
+	 *   service, less than {@link #getReferenceCount()}
+	 * @return the service reference
+	 */
+	@SuppressWarnings("unchecked")
+	public ServiceReference<T> getReference(int index) {
+		return (ServiceReference<T>) services[index].getReference();
+	}
+	
+	/**
+	 * Get the holder of the service at the given position
+	 * 
+	 * @param index the position
+	 * @return the service holder
+	 */
+	@SuppressWarnings("unchecked")
+	ServiceHolder<T> getHolder(int index) {
+		return (ServiceHolder<T>) services[index];
+	}
+
+	/**
+	 * Get the number of available services, this obtains lazily
+	 * dereferenced services
+	 * 
+	 * @see AbstractSet#size()
+	 */
+	@Override
+	public int size() {
+		int size = 0;
+		for (int i = 0; i < services.length; i++) {
+			if (get(i) != null) {
+				size++;
+			}
+		}
+		return size;
+	}
+	
+	/**
+	 * Determines if no service is available, this obtains lazily
+	 * dereferenced services up to the first available one
+	 * 
+	 * @see AbstractSet#isEmpty()
+	 */
+	@Override
+	public boolean isEmpty() {
+		return !iterator().hasNext();
+	}
+
+	/**
+	 * @see AbstractSet#iterator()
+	 */
+	@Override
+	public Iterator<T> iterator() {
+		return new Iterator<T>() {
+			
+			private int index = 0;
+			
+			private T next = advance();
+
+			@Override
+			public boolean hasNext() {
+				return next != null;
+			}
+
+			@Override
+			public T next() {
+				if (next == null) {
+					throw new NoSuchElementException();
+				}
+				T result = next;
+				next = advance();
+				return result;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException("Snapshot is immutable");
+			}
+			
+			/**
+			 * @return the next available service or <code>null</code>
+			 */
+			private T advance() {
+				while (index < services.length) {
+					T service = get(index++);
+					if (service != null) {
+						return service;
+					}
+				}
+				return null;
+			}
+			
+		};
+	}
+
+}
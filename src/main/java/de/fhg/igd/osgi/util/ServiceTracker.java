@@ -33,9 +33,12 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
 import org.osgi.framework.InvalidSyntaxException;
 import org.osgi.framework.ServiceEvent;
 import org.osgi.framework.ServiceListener;
@@ -56,7 +59,13 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 	/**
 	 * The bundle context (if tracking is started)
 	 */
-	private BundleContext context;
+	private volatile BundleContext context;
+	
+	/**
+	 * The multiplexer delivering service events if the tracker was started
+	 * with one, otherwise <code>null</code>
+	 */
+	private ServiceEventMultiplexer multiplexer;
 	
 	/**
 	 * The service class
@@ -64,22 +73,66 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 	private final Class<T> serviceClass;
 	
 	/**
-	 * If the tracker is running
+	 * The additional filter services must match, may be <code>null</code>
 	 */
-	private boolean running;
+	private final Filter filter;
+	
+	/**
+	 * If the tracker is running, only set after the initial services have
+	 * been added
+	 */
+	private volatile boolean running;
 	
 	/**
 	 * The bundles that were searched for mapping information
 	 */
 	private final Set<ServiceReference<T>> added = new HashSet<ServiceReference<T>>();
 	
+	/**
+	 * Service events received while the initial services are determined,
+	 * in the order they were received, <code>null</code> if events are
+	 * processed directly. Guarded by {@link #added}.
+	 */
+	private List<ServiceEvent> pendingEvents;
+	
+	/**
+	 * The tracker statistics
+	 */
+	private final TrackerMetrics metrics = new TrackerMetrics();
+	
+	/**
+	 * The cached property views of the tracked services, created on first
+	 * access and guarded by {@link #added}
+	 */
+	private final ConcurrentMap<ServiceReference<?>, ServiceProperties> properties = 
+			new ConcurrentHashMap<ServiceReference<?>, ServiceProperties>();
+	
+	/**
+	 * The instrumentation for obtained services, <code>null</code> if
+	 * services are not instrumented
+	 */
+	private volatile ServiceInstrumentation instrumentation;
+	
 	/**
 	 * Creates a service tracker for the given service class
 	 * 
 	 * @param serviceClass the service class
 	 */
 	public ServiceTracker(final Class<T> serviceClass) {
+		this(serviceClass, null);
+	}
+	
+	/**
+	 * Creates a service tracker for the services of the given service class
+	 * that match the given filter
+	 * 
+	 * @param serviceClass the service class
+	 * @param filter the filter services must match, may be
+	 *   <code>null</code>, see {@link FilterCache} for obtaining filters
+	 */
+	public ServiceTracker(final Class<T> serviceClass, final Filter filter) {
 		this.serviceClass = serviceClass;
+		this.filter = filter;
 	}
 	
 	/**
@@ -88,31 +141,93 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 	 * @param context the bundle context
 	 */
 	public void start(final BundleContext context) {
+		start(context, null);
+	}
+	
+	/**
+	 * Start the service tracker, receiving service events through the given
+	 * multiplexer instead of registering a service listener of its own
+	 * 
+	 * @param context the bundle context
+	 * @param multiplexer the multiplexer delivering service events, 
+	 *   <code>null</code> to register a service listener with the framework
+	 */
+	public void start(final BundleContext context, final ServiceEventMultiplexer multiplexer) {
 		if (this.context != null) {
 			stop();
 		}
 		
 		this.context = context;
+		this.multiplexer = multiplexer;
 		
-		log.info("Started tracking services: " + serviceClass.getName());
+		// buffer events until the initial services have been added
+		synchronized (added) {
+			pendingEvents = new ArrayList<ServiceEvent>();
+		}
 		
-		try {
-			context.addServiceListener(this, "(" + Constants.OBJECTCLASS + "=" + serviceClass.getName() + ")");
-		} catch (InvalidSyntaxException e) {
-			log.error("Error adding service listener.", e);
+		log.info("Started tracking services: " + serviceClass.getName() + 
+				((filter == null) ? "" : " " + filter));
+		
+		if (multiplexer != null) {
+			multiplexer.addTracker(this);
+		}
+		else {
+			String listenerFilter = "(" + Constants.OBJECTCLASS + "=" + serviceClass.getName() + ")";
+			if (filter != null) {
+				listenerFilter = "(&" + listenerFilter + filter + ")";
+			}
+			try {
+				context.addServiceListener(this, listenerFilter);
+			} catch (InvalidSyntaxException e) {
+				log.error("Error adding service listener.", e);
+			}
 		}
 		
 		Collection<ServiceReference<T>> services;
 		try {
-			services = context.getServiceReferences(serviceClass, null);
+			services = context.getServiceReferences(serviceClass,
+					(filter == null) ? null : filter.toString());
 		} catch (InvalidSyntaxException e) {
 			services = null;
 			log.error("Error getting service references.", e);
 		}
 		
 		if (services != null) {
+			// services whose last event removed them must not be added
+			Set<ServiceReference<?>> removed = new HashSet<ServiceReference<?>>();
+			synchronized (added) {
+				for (ServiceEvent event : pendingEvents) {
+					if (event.getType() == ServiceEvent.UNREGISTERING ||
+							event.getType() == ServiceEvent.MODIFIED_ENDMATCH) {
+						removed.add(event.getServiceReference());
+					}
+					else {
+						removed.remove(event.getServiceReference());
+					}
+				}
+			}
+			
 			for (ServiceReference<T> service : services) {
-				addService(service);
+				if (!removed.contains(service)) {
+					addService(service);
+				}
+			}
+		}
+		
+		// replay the buffered events in order, until no more are buffered
+		while (true) {
+			List<ServiceEvent> events;
+			synchronized (added) {
+				events = pendingEvents;
+				if (events == null || events.isEmpty()) {
+					pendingEvents = null;
+					break;
+				}
+				pendingEvents = new ArrayList<ServiceEvent>();
+			}
+			
+			for (ServiceEvent event : events) {
+				handleEvent(event);
 			}
 		}
 		
@@ -122,16 +237,46 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 	/**
 	 * @see ServiceListener#serviceChanged(ServiceEvent)
 	 */
-	@SuppressWarnings("unchecked")
 	@Override
 	public void serviceChanged(ServiceEvent event) {
+		metrics.event();
+		
+		synchronized (added) {
+			if (pendingEvents != null) {
+				// the tracker is starting
+				pendingEvents.add(event);
+				return;
+			}
+		}
+		
+		handleEvent(event);
+	}
+	
+	/**
+	 * Handle a service event
+	 * 
+	 * @param event the service event
+	 */
+	@SuppressWarnings("unchecked")
+	private void handleEvent(ServiceEvent event) {
 		switch (event.getType()) {
 		case ServiceEvent.MODIFIED:
+			modifyService((ServiceReference<T>)event.getServiceReference());
+			break;
 		case ServiceEvent.REGISTERED:
 			addService((ServiceReference<T>)event.getServiceReference());
 			break;
+		case ServiceEvent.MODIFIED_ENDMATCH:
+			removeService((ServiceReference<T>)event.getServiceReference());
+			break;
 		case ServiceEvent.UNREGISTERING:
 			removeService((ServiceReference<T>)event.getServiceReference());
+			
+			ServiceInstrumentation instrumentation = this.instrumentation;
+			if (instrumentation != null) {
+				// the service is gone for good, discard its statistics
+				instrumentation.remove(event.getServiceReference());
+			}
 		}
 	}
 
@@ -149,6 +294,7 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 		}
 		
 		deregister(service);
+		properties.remove(service);
 	}
 
 	/**
@@ -180,17 +326,57 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 	 * @param service the service reference
 	 */
 	protected abstract void register(ServiceReference<T> service);
+	
+	/**
+	 * Handle modified service properties. A service that is already tracked
+	 * is updated in place, a service that now matches the filter is added.
+	 * 
+	 * @param service the service reference
+	 */
+	private void modifyService(final ServiceReference<T> service) {
+		boolean known;
+		synchronized (added) {
+			known = !added.add(service);
+			// the cached view is stale, it is rebuilt on the next access
+			properties.remove(service);
+		}
+		
+		if (known) {
+			modified(service);
+		}
+		else {
+			register(service);
+		}
+	}
+	
+	/**
+	 * Called after the properties of a registered service have been modified
+	 * while the service still matches the tracker. The default
+	 * implementation does nothing, subclasses may override it to update
+	 * their state, e.g. if the service ranking changed, without releasing
+	 * and obtaining the service again.
+	 * 
+	 * @param service the service reference
+	 */
+	protected void modified(ServiceReference<T> service) {
+		// do nothing by default
+	}
 
 	/**
 	 * Stop bundle tracking and reset the tracker
 	 */
 	public void stop() {
-		if (context != null) {
+		if (multiplexer != null) {
+			multiplexer.removeTracker(this);
+			multiplexer = null;
+		}
+		else if (context != null) {
 			context.removeServiceListener(this);
 		}
 		
 		List<ServiceReference<T>> removed = new ArrayList<ServiceReference<T>>();
 		synchronized (added) {
+			pendingEvents = null;
 			removed.addAll(added);
 			added.clear();
 		}
@@ -199,12 +385,29 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 		for (ServiceReference<T> service : removed) {
 			deregister(service);
 		}
+		properties.clear();
 		
 		context = null;
 		
 		running = false;
 		
-		log.info("Stopped tracking services: " + serviceClass.getName());
+		log.info("Stopped tracking services: " + serviceClass.getName() + 
+				((filter == null) ? "" : " " + filter));
+	}
+	
+	/**
+	 * @return the class of the tracked services
+	 */
+	public Class<T> getServiceClass() {
+		return serviceClass;
+	}
+	
+	/**
+	 * @return the additional filter the tracked services must match, may be
+	 *   <code>null</code>
+	 */
+	public Filter getFilter() {
+		return filter;
 	}
 
 	/**
@@ -216,13 +419,43 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 		return context;
 	}
 	
+	/**
+	 * Get an immutable view on the properties of a service. For tracked
+	 * services the view is created on first access and cached until the
+	 * service is modified or removed, so repeated calls are cheap.
+	 * 
+	 * @param service the service reference
+	 * @return the service properties
+	 */
+	public ServiceProperties getServiceProperties(ServiceReference<?> service) {
+		ServiceProperties result = properties.get(service);
+		if (result == null) {
+			synchronized (added) {
+				result = properties.get(service);
+				if (result == null) {
+					result = new ServiceProperties(service);
+					if (added.contains(service)) {
+						properties.put(service, result);
+					}
+					// otherwise not tracked (anymore), don't cache the view
+				}
+			}
+		}
+		return result;
+	}
+	
 	/**
 	 * Get the properties of a service
 	 * 
 	 * @param service the service reference
 	 * 
 	 * @return a new properties instance containing the service properties
+	 * @deprecated creates a new instance on each call and converts all
+	 *   values to strings, use {@link #getServiceProperties(ServiceReference)}
+	 *   or {@link ServiceProperties#ServiceProperties(ServiceReference)}
+	 *   instead
 	 */
+	@Deprecated
 	public static Properties getProperties(ServiceReference<?> service) {
 		Properties properties = new Properties();
 		
@@ -233,6 +466,77 @@ public abstract class ServiceTracker<T> implements ServiceListener {
 		return properties;
 	}
 
+	/**
+	 * Set the instrumentation recording the calls to the services obtained
+	 * by the tracker. Only services obtained afterwards are instrumented, so
+	 * it should be set before the tracker is started.
+	 * 
+	 * @param instrumentation the instrumentation, <code>null</code> to
+	 *   obtain services without instrumentation
+	 */
+	public void setInstrumentation(ServiceInstrumentation instrumentation) {
+		this.instrumentation = instrumentation;
+	}
+	
+	/**
+	 * @return the instrumentation for obtained services, <code>null</code>
+	 *   if services are not instrumented
+	 */
+	public ServiceInstrumentation getInstrumentation() {
+		return instrumentation;
+	}
+	
+	/**
+	 * Obtain the service for the given reference, instrumented if an
+	 * instrumentation is set
+	 * 
+	 * @param context the bundle context
+	 * @param service the service reference
+	 * @return the service instance or <code>null</code> if it is not
+	 *   available
+	 */
+	T obtainService(BundleContext context, ServiceReference<T> service) {
+		T result = context.getService(service);
+		ServiceInstrumentation instrumentation = this.instrumentation;
+		if (instrumentation != null) {
+			result = instrumentation.wrap(serviceClass, service, result);
+		}
+		return result;
+	}
+
+	/**
+	 * @return the tracker statistics
+	 */
+	TrackerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * @return the number of tracked service references
+	 */
+	int getTrackedCount() {
+		synchronized (added) {
+			return added.size();
+		}
+	}
+	
+	/**
+	 * @return the number of futures waiting for services
+	 */
+	int getPendingWaits() {
+		return 0;
+	}
+	
+	/**
+	 * Determines if the tracker is in use by others, e.g. has listeners
+	 * attached, and thus may not be stopped when idle
+	 * 
+	 * @return if the tracker is in use
+	 */
+	boolean isInUse() {
+		return false;
+	}
+
 	/**
 	 * @return the running
 	 */
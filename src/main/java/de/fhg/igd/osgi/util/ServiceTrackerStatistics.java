@@ -0,0 +1,208 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * <p>Title: ServiceTrackerStatistics</p>
+ * <p>Description: Statistics of a single service tracker, as exposed by
+ * {@link ServiceTrackersMXBean}</p>
+ */
+public final class ServiceTrackerStatistics {
+	
+	private final String serviceType;
+	
+	private final String filter;
+	
+	private final String kind;
+	
+	private final int trackedServices;
+	
+	private final long lookupHits;
+	
+	private final long lookupMisses;
+	
+	private final long millisSinceLastRebind;
+	
+	private final long eventsProcessed;
+	
+	private final long listenerNotifications;
+	
+	private final double meanListenerLatencyMicros;
+	
+	private final double maxListenerLatencyMicros;
+	
+	private final int pendingWaits;
+	
+	private final long completedWaits;
+	
+	private final double meanWaitMillis;
+
+	/**
+	 * Create tracker statistics
+	 * 
+	 * @param serviceType the name of the tracked service type
+	 * @param filter the tracker filter, <code>null</code> if there is none
+	 * @param kind the kind of tracker, <code>single</code> or
+	 *   <code>multi</code>
+	 * @param trackedServices the number of tracked service references
+	 * @param lookupHits the number of lookups that found a service
+	 * @param lookupMisses the number of lookups that found no service
+	 * @param millisSinceLastRebind the milliseconds since the tracked
+	 *   services last changed, <code>-1</code> if unknown
+	 * @param eventsProcessed the number of processed service events
+	 * @param listenerNotifications the number of listener notifications
+	 * @param meanListenerLatencyMicros the mean time of a listener
+	 *   notification in microseconds
+	 * @param maxListenerLatencyMicros the longest listener notification in
+	 *   microseconds
+	 * @param pendingWaits the number of futures and threads currently
+	 *   waiting for services
+	 * @param completedWaits the number of completed waits
+	 * @param meanWaitMillis the mean time of a completed wait in
+	 *   milliseconds
+	 */
+	@ConstructorProperties({"serviceType", "filter", "kind", "trackedServices",
+		"lookupHits", "lookupMisses", "millisSinceLastRebind", "eventsProcessed",
+		"listenerNotifications", "meanListenerLatencyMicros", "maxListenerLatencyMicros",
+		"pendingWaits", "completedWaits", "meanWaitMillis"})
+	public ServiceTrackerStatistics(String serviceType, String filter, String kind,
+			int trackedServices, long lookupHits, long lookupMisses,
+			long millisSinceLastRebind, long eventsProcessed, long listenerNotifications,
+			double meanListenerLatencyMicros, double maxListenerLatencyMicros,
+			int pendingWaits, long completedWaits, double meanWaitMillis) {
+		this.serviceType = serviceType;
+		this.filter = filter;
+		this.kind = kind;
+		this.trackedServices = trackedServices;
+		this.lookupHits = lookupHits;
+		this.lookupMisses = lookupMisses;
+		this.millisSinceLastRebind = millisSinceLastRebind;
+		this.eventsProcessed = eventsProcessed;
+		this.listenerNotifications = listenerNotifications;
+		this.meanListenerLatencyMicros = meanListenerLatencyMicros;
+		this.maxListenerLatencyMicros = maxListenerLatencyMicros;
+		this.pendingWaits = pendingWaits;
+		this.completedWaits = completedWaits;
+		this.meanWaitMillis = meanWaitMillis;
+	}
+
+	/**
+	 * @return the name of the tracked service type
+	 */
+	public String getServiceType() {
+		return serviceType;
+	}
+
+	/**
+	 * @return the tracker filter, <code>null</code> if there is none
+	 */
+	public String getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @return the kind of tracker, <code>single</code> or <code>multi</code>
+	 */
+	public String getKind() {
+		return kind;
+	}
+
+	/**
+	 * @return the number of tracked service references
+	 */
+	public int getTrackedServices() {
+		return trackedServices;
+	}
+
+	/**
+	 * @return the number of lookups that found a service
+	 */
+	public long getLookupHits() {
+		return lookupHits;
+	}
+
+	/**
+	 * @return the number of lookups that found no service
+	 */
+	public long getLookupMisses() {
+		return lookupMisses;
+	}
+
+	/**
+	 * @return the milliseconds since the tracked services last changed,
+	 *   <code>-1</code> if unknown
+	 */
+	public long getMillisSinceLastRebind() {
+		return millisSinceLastRebind;
+	}
+
+	/**
+	 * @return the number of processed service events
+	 */
+	public long getEventsProcessed() {
+		return eventsProcessed;
+	}
+
+	/**
+	 * @return the number of listener notifications
+	 */
+	public long getListenerNotifications() {
+		return listenerNotifications;
+	}
+
+	/**
+	 * @return the mean time of a listener notification in microseconds
+	 */
+	public double getMeanListenerLatencyMicros() {
+		return meanListenerLatencyMicros;
+	}
+
+	/**
+	 * @return the longest listener notification in microseconds
+	 */
+	public double getMaxListenerLatencyMicros() {
+		return maxListenerLatencyMicros;
+	}
+
+	/**
+	 * @return the number of futures and threads currently waiting for
+	 *   services
+	 */
+	public int getPendingWaits() {
+		return pendingWaits;
+	}
+
+	/**
+	 * @return the number of completed waits
+	 */
+	public long getCompletedWaits() {
+		return completedWaits;
+	}
+
+	/**
+	 * @return the mean time of a completed wait in milliseconds
+	 */
+	public double getMeanWaitMillis() {
+		return meanWaitMillis;
+	}
+
+}
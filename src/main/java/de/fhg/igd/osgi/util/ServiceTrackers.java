@@ -0,0 +1,185 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <p>Title: ServiceTrackers</p>
+ * <p>Description: Implementation of {@link ServiceTrackersMXBean} based on
+ * the tracker registries of the activator</p>
+ */
+final class ServiceTrackers implements ServiceTrackersMXBean {
+	
+	private final ServiceInstrumentation instrumentation;
+	
+	private final TrackerRegistry<?>[] registries;
+
+	/**
+	 * Create the management bean
+	 * 
+	 * @param instrumentation the instrumentation of the tracked services
+	 * @param registries the tracker registries
+	 */
+	public ServiceTrackers(ServiceInstrumentation instrumentation,
+			TrackerRegistry<?>... registries) {
+		this.instrumentation = instrumentation;
+		this.registries = registries;
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#isEnabled()
+	 */
+	@Override
+	public boolean isEnabled() {
+		return TrackerMetrics.isEnabled();
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#setEnabled(boolean)
+	 */
+	@Override
+	public void setEnabled(boolean enabled) {
+		TrackerMetrics.setEnabled(enabled);
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#getTrackerCount()
+	 */
+	@Override
+	public int getTrackerCount() {
+		return getTrackers().size();
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#getTrackerStatistics()
+	 */
+	@Override
+	public ServiceTrackerStatistics[] getTrackerStatistics() {
+		List<ServiceTracker<?>> trackers = getTrackers();
+		ServiceTrackerStatistics[] result = new ServiceTrackerStatistics[trackers.size()];
+		long now = System.currentTimeMillis();
+		for (int i = 0; i < result.length; i++) {
+			ServiceTracker<?> tracker = trackers.get(i);
+			TrackerMetrics metrics = tracker.getMetrics();
+			
+			long lastRebind = metrics.getLastRebind();
+			long dispatches = metrics.getDispatches();
+			long waits = metrics.getWaits();
+			
+			result[i] = new ServiceTrackerStatistics(
+					tracker.getServiceClass().getName(),
+					(tracker.getFilter() == null) ? null : tracker.getFilter().toString(),
+					(tracker instanceof MultiServiceTracker<?>) ? "multi" : "single",
+					tracker.getTrackedCount(),
+					metrics.getHits(),
+					metrics.getMisses(),
+					(lastRebind == 0) ? -1 : now - lastRebind,
+					metrics.getEvents(),
+					dispatches,
+					(dispatches == 0) ? 0 : toMicros(metrics.getDispatchNanos()) / dispatches,
+					toMicros(metrics.getMaxDispatchNanos()),
+					tracker.getPendingWaits() + metrics.getBlockedWaiters(),
+					waits,
+					(waits == 0) ? 0 : toMillis(metrics.getWaitNanos()) / waits);
+		}
+		return result;
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#resetStatistics()
+	 */
+	@Override
+	public void resetStatistics() {
+		for (ServiceTracker<?> tracker : getTrackers()) {
+			tracker.getMetrics().reset();
+		}
+		instrumentation.reset();
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#isInstrumentationEnabled()
+	 */
+	@Override
+	public boolean isInstrumentationEnabled() {
+		return instrumentation.isEnabled();
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#setInstrumentationEnabled(boolean)
+	 */
+	@Override
+	public void setInstrumentationEnabled(boolean enabled) {
+		instrumentation.setEnabled(enabled);
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#getMethodStatistics()
+	 */
+	@Override
+	public ServiceMethodStatistics[] getMethodStatistics() {
+		List<ServiceMethodStatistics> statistics = instrumentation.getStatistics();
+		return statistics.toArray(new ServiceMethodStatistics[statistics.size()]);
+	}
+
+	/**
+	 * @see ServiceTrackersMXBean#dumpMethodStatistics(String)
+	 */
+	@Override
+	public void dumpMethodStatistics(String file) throws IOException {
+		instrumentation.dump(new File(file));
+	}
+	
+	/**
+	 * @return the active trackers
+	 */
+	private List<ServiceTracker<?>> getTrackers() {
+		List<ServiceTracker<?>> result = new ArrayList<ServiceTracker<?>>();
+		for (TrackerRegistry<?> registry : registries) {
+			result.addAll(registry.getTrackers());
+		}
+		return result;
+	}
+	
+	/**
+	 * Convert nanoseconds to fractional microseconds
+	 * 
+	 * @param nanos the nanoseconds
+	 * @return the microseconds
+	 */
+	private static double toMicros(long nanos) {
+		return nanos / (double) TimeUnit.MICROSECONDS.toNanos(1);
+	}
+	
+	/**
+	 * Convert nanoseconds to fractional milliseconds
+	 * 
+	 * @param nanos the nanoseconds
+	 * @return the milliseconds
+	 */
+	private static double toMillis(long nanos) {
+		return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+}
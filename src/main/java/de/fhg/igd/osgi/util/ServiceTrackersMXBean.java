@@ -0,0 +1,93 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.io.IOException;
+
+/**
+ * <p>Title: ServiceTrackersMXBean</p>
+ * <p>Description: Management interface exposing statistics of the service
+ * trackers used by {@link OsgiUtils} for service lookups. It is registered
+ * with the platform MBean server under {@link #OBJECT_NAME} while the
+ * bundle is active.</p>
+ */
+public interface ServiceTrackersMXBean {
+	
+	/**
+	 * The object name the bean is registered with
+	 */
+	public static final String OBJECT_NAME = "de.fhg.igd.osgi.util:type=ServiceTrackers";
+	
+	/**
+	 * @return if statistics are recorded
+	 */
+	public boolean isEnabled();
+	
+	/**
+	 * Enable or disable recording statistics. Disabled recording has
+	 * practically no overhead, enabled recording uses striped counters.
+	 * 
+	 * @param enabled if statistics should be recorded
+	 */
+	public void setEnabled(boolean enabled);
+	
+	/**
+	 * @return the number of active trackers
+	 */
+	public int getTrackerCount();
+	
+	/**
+	 * @return the statistics of all active trackers
+	 */
+	public ServiceTrackerStatistics[] getTrackerStatistics();
+	
+	/**
+	 * Reset the statistics of all active trackers and the method statistics
+	 */
+	public void resetStatistics();
+	
+	/**
+	 * @return if calls to services are recorded per method
+	 */
+	public boolean isInstrumentationEnabled();
+	
+	/**
+	 * Enable or disable recording calls to services per method. Only
+	 * services obtained by the trackers after enabling are instrumented.
+	 * 
+	 * @param enabled if calls should be recorded
+	 */
+	public void setInstrumentationEnabled(boolean enabled);
+	
+	/**
+	 * @return the call statistics of all instrumented service methods
+	 */
+	public ServiceMethodStatistics[] getMethodStatistics();
+	
+	/**
+	 * Write the call statistics of all instrumented service methods to a
+	 * file, as tab separated values
+	 * 
+	 * @param file the path of the file to write
+	 * @throws IOException if writing the file fails
+	 */
+	public void dumpMethodStatistics(String file) throws IOException;
+
+}
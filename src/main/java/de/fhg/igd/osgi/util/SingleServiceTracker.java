@@ -19,28 +19,178 @@
 
 package de.fhg.igd.osgi.util;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
 
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.ServiceObjects;
 import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 
 /**
  * <p>Title: SingleServiceTracker</p>
- * <p>Description: </p>
+ * <p>Description: Tracks the highest ranked service of a type. Another
+ * service is only bound when the highest ranked candidate changes.</p>
  * @author Simon Templer
  * @param <T> the service type
  */
 public class SingleServiceTracker<T> extends ServiceTracker<T> {
 	
-	private T service;
+	private static final Logger log = LoggerFactory.getLogger(SingleServiceTracker.class);
+	
+	/**
+	 * The default maximum time in milliseconds to wait for leases to be
+	 * closed before a service is released
+	 */
+	public static final long DEFAULT_LEASE_DRAIN_TIMEOUT = 5000;
+	
+	/**
+	 * The interval in milliseconds to release instances of dead threads in
+	 */
+	private static final long THREAD_SWEEP_INTERVAL = 1000;
+	
+	private volatile T service;
 	private ServiceReference<T> serviceRef;
 	
-	private final Set<SingleServiceListener<T>> listeners = new HashSet<SingleServiceListener<T>>();
+	/**
+	 * The binding leases are acquired on, <code>null</code> if no service
+	 * is bound
+	 */
+	private volatile LeaseBinding<T> binding;
+	
+	/**
+	 * Bindings that were replaced or removed and are still to be released,
+	 * guarded by {@link #candidates}
+	 */
+	private final List<LeaseBinding<T>> retired = new ArrayList<LeaseBinding<T>>();
+	
+	/**
+	 * The services being unregistered, their retired bindings are released
+	 * by the thread handling the unregistration, guarded by
+	 * {@link #candidates}
+	 */
+	private final Set<ServiceReference<T>> unregistering = new HashSet<ServiceReference<T>>();
+	
+	/**
+	 * Bindings being released on the background executor, guarded by
+	 * {@link #candidates}
+	 */
+	private final List<LeaseBinding<T>> releasing = new ArrayList<LeaseBinding<T>>();
+	
+	/**
+	 * The maximum time in nanoseconds to wait for leases to be closed
+	 */
+	private volatile long leaseDrainTimeout = TimeUnit.MILLISECONDS.toNanos(
+			DEFAULT_LEASE_DRAIN_TIMEOUT);
+	
+	/**
+	 * The per-thread instances of the bound service, <code>null</code> if
+	 * per-thread instances are disabled or the bound service does not have
+	 * prototype scope
+	 */
+	private volatile ThreadInstances<T> threadInstances;
+	
+	/**
+	 * Per-thread instances of services that were replaced or removed and
+	 * may still be in use by their threads, guarded by {@link #candidates}
+	 */
+	private final List<ThreadInstances<T>> retiredThreadInstances = 
+			new ArrayList<ThreadInstances<T>>();
+	
+	/**
+	 * The instance of the current thread
+	 */
+	private final ThreadLocal<ThreadInstances.ThreadInstance<T>> threadInstance = 
+			new ThreadLocal<ThreadInstances.ThreadInstance<T>>();
+	
+	/**
+	 * The maximum number of per-thread instances, zero if disabled
+	 */
+	private volatile int maxThreadInstances = 0;
+	
+	/**
+	 * The scheduled sweep releasing the instances of dead threads, guarded
+	 * by {@link #candidates}
+	 */
+	private TimerWheel.Timeout threadSweep;
+	
+	/**
+	 * Monitor that threads waiting for a service are parked on
+	 */
+	private final Object serviceMonitor = new Object();
+	
+	/**
+	 * Futures waiting for a service to be available
+	 */
+	private final Set<ServiceWaiter> waiters = new HashSet<ServiceWaiter>();
+	
+	private final ListenerSupport<SingleServiceListener<T>> listeners = 
+			new ListenerSupport<SingleServiceListener<T>>(getMetrics());
+	
+	/**
+	 * The candidate services ordered by ranking, the first one is bound
+	 */
+	private final NavigableSet<RankedReference<T>> candidates = new TreeSet<RankedReference<T>>();
+	
+	/**
+	 * The ranked references mapped by service reference, guarded by
+	 * {@link #candidates}
+	 */
+	private final Map<ServiceReference<T>, RankedReference<T>> ranked = 
+			new HashMap<ServiceReference<T>, RankedReference<T>>();
+	
+	/**
+	 * The window in nanoseconds to coalesce rebinding in, zero if the best
+	 * candidate is bound right away
+	 */
+	private volatile long coalescingWindow = 0;
+	
+	/**
+	 * The scheduled rebinding, guarded by {@link #candidates}
+	 */
+	private TimerWheel.Timeout rebind;
+	
+	/**
+	 * The number of bind requests made and executed, guarded by
+	 * {@link #candidates}
+	 */
+	private long bindRequests = 0;
+	private long bindsDone = 0;
+	
+	/**
+	 * The thread currently binding, guarded by {@link #candidates}
+	 */
+	private Thread binder;
+	
+	/**
+	 * The reference the binding thread is about to bind, guarded by
+	 * {@link #candidates}
+	 */
+	private ServiceReference<T> bindingRef;
+	
+	/**
+	 * If the per-thread instances must be recreated on the next binding,
+	 * guarded by {@link #candidates}
+	 */
+	private boolean threadInstancesChanged = false;
 	
-	private final Set<ServiceReference<T>> queuedServices = new LinkedHashSet<ServiceReference<T>>();
-
 	/**
 	 * Constructor
 	 * 
@@ -49,71 +199,448 @@ public class SingleServiceTracker<T> extends ServiceTracker<T> {
 	public SingleServiceTracker(Class<T> serviceClass) {
 		super(serviceClass);
 	}
-
+	
+	/**
+	 * Create a tracker for the services of the given type that match the
+	 * given filter
+	 * 
+	 * @param serviceClass the service type to track
+	 * @param filter the filter services must match, may be <code>null</code>
+	 */
+	public SingleServiceTracker(Class<T> serviceClass, Filter filter) {
+		super(serviceClass, filter);
+	}
+	
 	/**
 	 * @see ServiceTracker#deregister(ServiceReference)
 	 */
 	@Override
 	protected void deregister(ServiceReference<T> service) {
-		if (serviceRef.equals(service)) {
-			ServiceReference<T> newService = null;
-			synchronized (queuedServices) {
-				Iterator<ServiceReference<T>> it = queuedServices.iterator();
-				if (it.hasNext())
-					newService = it.next();
+		synchronized (candidates) {
+			RankedReference<T> entry = ranked.remove(service);
+			if (entry != null) {
+				candidates.remove(entry);
+				scheduleBind(service.equals(serviceRef) || service.equals(bindingRef));
 			}
-			
-			updateService(newService);
+			unregistering.add(service);
 		}
-		else {
-			synchronized (queuedServices) {
-				queuedServices.remove(service);
+		
+		// the service may be going away, release it before returning, even
+		// if another thread replaced the binding
+		List<LeaseBinding<T>> bindings = new ArrayList<LeaseBinding<T>>();
+		try {
+			bind(true);
+		} finally {
+			synchronized (candidates) {
+				unregistering.remove(service);
+				for (Iterator<LeaseBinding<T>> it = retired.iterator(); it.hasNext(); ) {
+					LeaseBinding<T> retiredBinding = it.next();
+					if (retiredBinding.getReference().equals(service)) {
+						bindings.add(retiredBinding);
+						it.remove();
+					}
+				}
+			}
+		}
+		BundleContext context = getContext();
+		for (LeaseBinding<T> retiredBinding : bindings) {
+			release(context, retiredBinding);
+		}
+		
+		// a binding retired before may still be released in the background
+		synchronized (candidates) {
+			boolean interrupted = false;
+			while (isReleasing(service)) {
+				try {
+					candidates.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
 			}
 		}
 	}
-
+	
+	/**
+	 * Determines if a binding of the given service is being released on the
+	 * background executor, must be called while holding the lock on
+	 * {@link #candidates}
+	 * 
+	 * @param service the service reference
+	 * @return if a binding of the service is being released
+	 */
+	private boolean isReleasing(ServiceReference<T> service) {
+		for (LeaseBinding<T> binding : releasing) {
+			if (binding.getReference().equals(service)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
 	/**
 	 * @see ServiceTracker#register(ServiceReference)
 	 */
 	@Override
 	protected void register(ServiceReference<T> service) {
-		if (this.service == null) {
-			// set new service
-			updateService(service);
+		synchronized (candidates) {
+			RankedReference<T> entry = new RankedReference<T>(service);
+			if (ranked.put(service, entry) == null) {
+				candidates.add(entry);
+				scheduleBind(false);
+			}
 		}
-		else {
-			// queue service for later
-			synchronized (queuedServices) {
-				queuedServices.add(service);
+		bind(false);
+	}
+	
+	/**
+	 * Re-ranks a service whose properties were modified, the bound service
+	 * is only replaced if another candidate now ranks higher
+	 * 
+	 * @see ServiceTracker#modified(ServiceReference)
+	 */
+	@Override
+	protected void modified(ServiceReference<T> service) {
+		synchronized (candidates) {
+			RankedReference<T> entry = ranked.get(service);
+			if (entry != null && entry.isRankingChanged()) {
+				candidates.remove(entry);
+				entry = new RankedReference<T>(service);
+				ranked.put(service, entry);
+				candidates.add(entry);
+				scheduleBind(false);
 			}
 		}
+		bind(false);
 	}
-
+	
+	/**
+	 * Request binding the highest ranked candidate, right away or, if
+	 * rebinding is coalesced, when the coalescing window has elapsed. Must be
+	 * called while holding the lock on {@link #candidates}, a request to
+	 * bind right away is executed by {@link #bind(boolean)} after the lock
+	 * is released. A delayed rebind is executed on the background executor.
+	 * 
+	 * @param boundRemoved if the bound service has been removed, then the
+	 *   next candidate is bound right away
+	 */
+	private void scheduleBind(boolean boundRemoved) {
+		long window = coalescingWindow;
+		if (window <= 0 || boundRemoved || serviceRef == null) {
+			bindRequests++;
+			return;
+		}
+		
+		if (rebind == null) {
+			rebind = TimerWheel.getDefault().schedule(new Runnable() {
+				@Override
+				public void run() {
+					synchronized (candidates) {
+						rebind = null;
+						bindRequests++;
+					}
+					bind(false);
+				}
+			}, window, TimeUnit.NANOSECONDS, BackgroundExecutor.getDefault());
+		}
+	}
+	
 	/**
-	 * Update the service instance
+	 * Set the window to coalesce service changes in. While a service is
+	 * bound, registrations and ranking changes of other services within
+	 * the window result in at most one rebinding and thus one listener
+	 * notification when the window has elapsed. If the bound service is
+	 * unregistered or no service is bound, the best candidate is bound
+	 * right away.
 	 * 
-	 * @param newService the new service reference
+	 * @param window the coalescing window, zero or less to rebind right
+	 *   away on every change
+	 * @param unit the time unit of the window
+	 */
+	public void setCoalescingWindow(long window, TimeUnit unit) {
+		synchronized (candidates) {
+			coalescingWindow = Math.max(0, unit.toNanos(window));
+			if (coalescingWindow == 0 && rebind != null) {
+				rebind.cancel();
+				rebind = null;
+				bindRequests++;
+			}
+		}
+		bind(false);
+	}
+	
+	/**
+	 * Execute the pending bind requests, must be called without holding the
+	 * lock on {@link #candidates}. Only one thread binds at a time, it binds
+	 * the highest ranked candidate until no more requests are pending.
+	 * Obtaining the service, notifying listeners and completing waiting
+	 * futures happen outside the lock. If another thread is binding, that
+	 * thread executes the requests made so far.
+	 * 
+	 * @param wait if the calling thread should wait for the requests made so
+	 *   far to be executed and release replaced services itself, which is the
+	 *   case if a service is unregistering, otherwise they are released on
+	 *   the background executor. A thread notified by the binding thread
+	 *   never waits.
+	 */
+	private void bind(boolean wait) {
+		Thread current = Thread.currentThread();
+		boolean binding = false;
+		synchronized (candidates) {
+			long target = bindRequests;
+			if (binder == current) {
+				// notified by this thread's binding, the outer loop binds
+				return;
+			}
+			
+			boolean interrupted = false;
+			while (wait && binder != null && bindsDone < target) {
+				try {
+					candidates.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				current.interrupt();
+			}
+			
+			if (binder == null && bindsDone < bindRequests) {
+				binder = current;
+				binding = true;
+			}
+		}
+		
+		if (binding) {
+			try {
+				while (true) {
+					long requests;
+					ServiceReference<T> best;
+					synchronized (candidates) {
+						requests = bindRequests;
+						if (bindsDone >= requests) {
+							// done, requests made from now on are executed by
+							// the requesting thread
+							binder = null;
+							break;
+						}
+						best = candidates.isEmpty() ? null : candidates.first().getReference();
+						if (equal(best, serviceRef) && !threadInstancesChanged) {
+							bindsDone = requests;
+							continue;
+						}
+						bindingRef = best;
+					}
+					
+					updateService(best);
+					
+					synchronized (candidates) {
+						bindsDone = requests;
+					}
+				}
+			} finally {
+				synchronized (candidates) {
+					if (binder == current) {
+						// binding failed, give up the pending requests
+						binder = null;
+						bindsDone = bindRequests;
+					}
+					bindingRef = null;
+					candidates.notifyAll();
+				}
+			}
+		}
+		
+		releaseRetired(wait);
+	}
+	
+	/**
+	 * Determines if two service references are equal
+	 * 
+	 * @param ref1 the first reference, may be <code>null</code>
+	 * @param ref2 the second reference, may be <code>null</code>
+	 * @return if both are <code>null</code> or equal
+	 */
+	private static boolean equal(ServiceReference<?> ref1, ServiceReference<?> ref2) {
+		return (ref1 == null) ? ref2 == null : ref1.equals(ref2);
+	}
+	
+	/**
+	 * Bind the given service, only called by the binding thread and without
+	 * holding the lock on {@link #candidates}. The previous service is not
+	 * released here but queued for {@link #releaseRetired(boolean)}.
+	 * 
+	 * @param newService the new service reference, <code>null</code> to
+	 *   unbind the service
 	 */
 	private void updateService(ServiceReference<T> newService) {
-		if (service != null && serviceRef != null) {
-			for (SingleServiceListener<T> listener : listeners) {
-				listener.beforeServiceRemove(service);
+		final T oldService = service;
+		boolean changed = !equal(newService, serviceRef);
+		
+		if (changed && oldService != null) {
+			listeners.dispatch(new ListenerSupport.Notification<SingleServiceListener<T>>() {
+				@Override
+				public void notify(SingleServiceListener<T> listener) {
+					listener.beforeServiceRemove(oldService);
+				}
+			});
+		}
+		
+		T bound = oldService;
+		LeaseBinding<T> newBinding = binding;
+		if (changed) {
+			bound = (newService == null) ? null : obtainService(getContext(), newService);
+			newBinding = (bound == null) ? null : new LeaseBinding<T>(newService, bound);
+		}
+		ThreadInstances<T> newThreadInstances = (bound == null) ? null 
+				: createThreadInstances(newService);
+		
+		// publish the new service before releasing the old one, so new
+		// leases are acquired on the new service while old ones drain
+		ThreadInstances<T> oldThreadInstances;
+		synchronized (candidates) {
+			threadInstancesChanged = false;
+			oldThreadInstances = threadInstances;
+			threadInstances = newThreadInstances;
+			
+			if (changed) {
+				LeaseBinding<T> oldBinding = binding;
+				serviceRef = newService;
+				binding = newBinding;
+				service = bound;
+				if (oldBinding != null) {
+					// released by releaseRetired
+					retired.add(oldBinding);
+				}
+			}
+			
+			if (oldThreadInstances != null) {
+				// released by the thread sweep
+				retiredThreadInstances.add(oldThreadInstances);
+				if (threadSweep == null) {
+					scheduleThreadSweep();
+				}
+			}
+		}
+		
+		if (oldThreadInstances != null) {
+			// the instances may still be in use by their threads
+			oldThreadInstances.retire();
+		}
+		
+		if (!changed) {
+			return;
+		}
+		getMetrics().rebind();
+		
+		if (bound != null) {
+			// wake up threads waiting for the service
+			synchronized (serviceMonitor) {
+				serviceMonitor.notifyAll();
 			}
 			
-			// clean up old service
-			getContext().ungetService(serviceRef);
+			// complete pending futures
+			List<ServiceWaiter> pending;
+			synchronized (waiters) {
+				pending = new ArrayList<ServiceWaiter>(waiters);
+				waiters.clear();
+			}
+			for (ServiceWaiter waiter : pending) {
+				waiter.complete(bound);
+			}
 		}
 		
-		service = null;
-		serviceRef = null;
+		final T newInstance = bound;
+		listeners.dispatch(new ListenerSupport.Notification<SingleServiceListener<T>>() {
+			@Override
+			public void notify(SingleServiceListener<T> listener) {
+				listener.afterServiceChange(newInstance);
+			}
+		});
+	}
+	
+	/**
+	 * Release the bindings that were replaced or removed, must be called
+	 * without holding the lock on {@link #candidates}. Releasing a binding
+	 * waits for its leases to be closed, at most for the lease drain
+	 * timeout, before the service is released. Bindings of services being
+	 * unregistered are left to the threads handling the unregistration.
+	 * 
+	 * @param wait if the calling thread should wait for the release, which
+	 *   is the case if a service is unregistering, otherwise the bindings
+	 *   are released on the background executor
+	 */
+	private void releaseRetired(boolean wait) {
+		final List<LeaseBinding<T>> bindings = new ArrayList<LeaseBinding<T>>();
+		synchronized (candidates) {
+			for (Iterator<LeaseBinding<T>> it = retired.iterator(); it.hasNext(); ) {
+				LeaseBinding<T> binding = it.next();
+				if (!unregistering.contains(binding.getReference())) {
+					bindings.add(binding);
+					it.remove();
+				}
+			}
+			if (!wait) {
+				releasing.addAll(bindings);
+			}
+		}
+		if (bindings.isEmpty()) {
+			return;
+		}
 		
-		if (newService != null) {
-			serviceRef = newService;
-			service = getContext().getService(newService);
+		final BundleContext context = getContext();
+		if (wait) {
+			for (LeaseBinding<T> binding : bindings) {
+				release(context, binding);
+			}
+		}
+		else {
+			Runnable task = new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (LeaseBinding<T> binding : bindings) {
+							release(context, binding);
+						}
+					} finally {
+						synchronized (candidates) {
+							releasing.removeAll(bindings);
+							// wake up unregistering threads
+							candidates.notifyAll();
+						}
+					}
+				}
+			};
+			try {
+				BackgroundExecutor.getDefault().execute(task);
+			} catch (RejectedExecutionException e) {
+				// the executor is shut down
+				task.run();
+			}
+		}
+	}
+	
+	/**
+	 * Retire a binding and release its service
+	 * 
+	 * @param context the bundle context the service was obtained with, may
+	 *   be <code>null</code> if the tracker was already stopped
+	 * @param binding the binding
+	 */
+	private void release(BundleContext context, LeaseBinding<T> binding) {
+		if (!binding.retire(leaseDrainTimeout, TimeUnit.NANOSECONDS)) {
+			log.warn(binding.getLeaseCount() + " lease(s) still open when releasing service " +
+					binding.getService() + ", the service is released nevertheless");
 		}
 		
-		for (SingleServiceListener<T> listener : listeners) {
-			listener.afterServiceChange(service);
+		if (context != null) {
+			try {
+				context.ungetService(binding.getReference());
+			} catch (IllegalStateException e) {
+				// the bundle context is no longer valid
+			}
 		}
 	}
 	
@@ -135,13 +662,473 @@ public class SingleServiceTracker<T> extends ServiceTracker<T> {
 		listeners.remove(listener);
 	}
 	
+	/**
+	 * @see ServiceTracker#getPendingWaits()
+	 */
+	@Override
+	int getPendingWaits() {
+		synchronized (waiters) {
+			return waiters.size();
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#isInUse()
+	 */
+	@Override
+	boolean isInUse() {
+		if (!listeners.isEmpty()) {
+			return true;
+		}
+		// threads blocked in waitForService are only woken up by this tracker
+		if (getMetrics().getBlockedWaiters() > 0) {
+			return true;
+		}
+		synchronized (waiters) {
+			return !waiters.isEmpty();
+		}
+	}
+	
+	/**
+	 * Set the executor to notify listeners with. By default listeners are
+	 * notified on the thread delivering the service event. If an executor is
+	 * set, listeners are notified asynchronously, so slow listeners do not
+	 * block the delivery of framework events. The notifications of each
+	 * listener are still delivered one after another in order. Note that in
+	 * this case {@link SingleServiceListener#beforeServiceRemove(Object)} may
+	 * be called after the service has already been released.
+	 * 
+	 * @param executor the executor, <code>null</code> to notify listeners
+	 *   synchronously
+	 */
+	public void setListenerExecutor(Executor executor) {
+		listeners.setExecutor(executor);
+	}
+	
 	/**
 	 * Get the current service instance
 	 * 
 	 * @return the service instance (may be null)
 	 */
 	public T getService() {
-		return service;
+		T result = service;
+		getMetrics().lookup(result != null);
+		return result;
+	}
+	
+	/**
+	 * Lease the current service instance. The service is not released by
+	 * the tracker while the lease is open: if it is unregistered, the
+	 * tracker waits for open leases to be closed, at most for the lease
+	 * drain timeout, before releasing it. If it is replaced by a higher
+	 * ranked service, it is released on a background thread once the open
+	 * leases are closed. Acquiring and closing a lease does not lock.
+	 * 
+	 * <pre>
+	 * try (ServiceLease&lt;MyService&gt; lease = tracker.leaseService()) {
+	 *     if (lease != null) {
+	 *         lease.get().doSomething();
+	 *     }
+	 * }
+	 * </pre>
+	 * 
+	 * @return the lease, which must be closed, or <code>null</code> if no
+	 *   service is available
+	 */
+	public ServiceLease<T> leaseService() {
+		while (true) {
+			LeaseBinding<T> current = binding;
+			if (current == null) {
+				getMetrics().lookup(false);
+				return null;
+			}
+			
+			ServiceLease<T> lease = current.acquire();
+			if (lease != null) {
+				getMetrics().lookup(true);
+				return lease;
+			}
+			// the service is being replaced, retry with the new binding
+			Thread.yield();
+		}
+	}
+	
+	/**
+	 * Get the instance of the bound service dedicated to the current
+	 * thread. If per-thread instances are enabled (see
+	 * {@link #setPerThreadInstances(int)}) and the bound service has
+	 * prototype scope, each thread gets its own instance, obtained on its
+	 * first call, so CPU-bound services that are not thread-safe can be used
+	 * in parallel without synchronization. Otherwise, or if the maximum
+	 * number of per-thread instances is reached, the shared instance is
+	 * returned like with {@link #getService()}.<br>
+	 * <br>
+	 * A thread instance is not released right away when the service is
+	 * replaced or unbound, as its thread may still be using it. It is
+	 * released when the thread calls this method again, when the thread has
+	 * died or at the latest when the lease drain timeout has elapsed (see
+	 * {@link #setLeaseDrainTimeout(long, TimeUnit)}). So call this method
+	 * again for each use of the service rather than keeping the instance.
+	 * 
+	 * @return the service instance (may be null)
+	 */
+	public T getThreadInstance() {
+		ThreadInstances<T> current = threadInstances;
+		ThreadInstances.ThreadInstance<T> local = threadInstance.get();
+		if (local != null) {
+			if (local.getOwner() == current) {
+				// fast path
+				getMetrics().lookup(true);
+				return local.getInstance();
+			}
+			
+			// the service was replaced, the thread is done with its instance
+			local.getOwner().release(local);
+			threadInstance.remove();
+		}
+		
+		if (current == null) {
+			return getService();
+		}
+		
+		local = current.create();
+		if (local == null) {
+			threadInstance.remove();
+			return getService();
+		}
+		
+		threadInstance.set(local);
+		getMetrics().lookup(true);
+		return local.getInstance();
+	}
+	
+	/**
+	 * Enable or disable per-thread instances of prototype scope services,
+	 * see {@link #getThreadInstance()}. Instances of threads that have died
+	 * and instances of replaced services are released periodically.
+	 * 
+	 * @param maxInstances the maximum number of per-thread instances, zero
+	 *   or less to disable per-thread instances
+	 */
+	public void setPerThreadInstances(int maxInstances) {
+		synchronized (candidates) {
+			maxThreadInstances = Math.max(0, maxInstances);
+			
+			// the instances are recreated by the binding thread
+			threadInstancesChanged = true;
+			bindRequests++;
+			
+			if (threadSweep != null) {
+				threadSweep.cancel();
+				threadSweep = null;
+			}
+			scheduleThreadSweep();
+		}
+		bind(false);
+	}
+	
+	/**
+	 * Create the per-thread instances for a service
+	 * 
+	 * @param reference the service reference
+	 * @return the per-thread instances or <code>null</code> if per-thread
+	 *   instances are disabled or the service does not have prototype scope
+	 */
+	private ThreadInstances<T> createThreadInstances(ServiceReference<T> reference) {
+		int max = maxThreadInstances;
+		if (max <= 0 || reference == null || !Constants.SCOPE_PROTOTYPE.equals(
+				reference.getProperty(Constants.SERVICE_SCOPE))) {
+			return null;
+		}
+		
+		BundleContext context = getContext();
+		ServiceObjects<T> objects = (context == null) ? null : context.getServiceObjects(reference);
+		return (objects == null) ? null : new ThreadInstances<T>(reference, objects, max);
+	}
+	
+	/**
+	 * Schedule the next sweep releasing the instances of dead threads and
+	 * of replaced services, must be called while holding the lock on
+	 * {@link #candidates}. Releasing an instance calls into the framework
+	 * and the service, so the sweep is executed on the background executor
+	 * rather than the timer thread.
+	 */
+	private void scheduleThreadSweep() {
+		if (maxThreadInstances <= 0 && retiredThreadInstances.isEmpty()) {
+			threadSweep = null;
+			return;
+		}
+		
+		threadSweep = TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				ThreadInstances<T> current = threadInstances;
+				if (current != null) {
+					current.purge();
+				}
+				releaseRetiredThreadInstances(false);
+				
+				synchronized (candidates) {
+					if (threadSweep != null) {
+						scheduleThreadSweep();
+					}
+				}
+			}
+		}, THREAD_SWEEP_INTERVAL, TimeUnit.MILLISECONDS, BackgroundExecutor.getDefault());
+	}
+	
+	/**
+	 * Release the per-thread instances of replaced services whose threads
+	 * have died, and all of them if the lease drain timeout has elapsed.
+	 * Must be called without holding the lock on {@link #candidates}.
+	 * 
+	 * @param all if all retired instances should be released right away
+	 */
+	private void releaseRetiredThreadInstances(boolean all) {
+		List<ThreadInstances<T>> pending;
+		synchronized (candidates) {
+			if (retiredThreadInstances.isEmpty()) {
+				return;
+			}
+			pending = new ArrayList<ThreadInstances<T>>(retiredThreadInstances);
+		}
+		
+		long timeout = leaseDrainTimeout;
+		for (ThreadInstances<T> instances : pending) {
+			instances.purge();
+			if (all || instances.size() == 0 || instances.isRetiredFor(timeout)) {
+				instances.release();
+				synchronized (candidates) {
+					retiredThreadInstances.remove(instances);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * @see ServiceTracker#stop()
+	 */
+	@Override
+	public void stop() {
+		synchronized (candidates) {
+			if (threadSweep != null) {
+				threadSweep.cancel();
+				threadSweep = null;
+			}
+			if (rebind != null) {
+				rebind.cancel();
+				rebind = null;
+			}
+		}
+		
+		super.stop();
+		
+		// nobody will complete the pending futures any more
+		List<ServiceWaiter> pending;
+		synchronized (waiters) {
+			pending = new ArrayList<ServiceWaiter>(waiters);
+			waiters.clear();
+		}
+		for (ServiceWaiter waiter : pending) {
+			waiter.future.cancel(false);
+		}
+		
+		synchronized (candidates) {
+			// a sweep may have been scheduled for the unbound service
+			if (threadSweep != null) {
+				threadSweep.cancel();
+				threadSweep = null;
+			}
+		}
+		releaseRetiredThreadInstances(true);
+	}
+	
+	/**
+	 * Set the maximum time to wait for open leases to be closed before the
+	 * service is released, see {@link #leaseService()}. The default is
+	 * {@value #DEFAULT_LEASE_DRAIN_TIMEOUT} milliseconds.
+	 * 
+	 * @param timeout the lease drain timeout
+	 * @param unit the time unit of the timeout
+	 */
+	public void setLeaseDrainTimeout(long timeout, TimeUnit unit) {
+		leaseDrainTimeout = Math.max(0, unit.toNanos(timeout));
+	}
+	
+	/**
+	 * Wait for a service instance to be available. The waiting thread is
+	 * woken up as soon as a service is registered.
+	 * 
+	 * @param timeout the maximum time to wait, if it is not positive the
+	 *   method returns immediately
+	 * @param unit the time unit of the timeout
+	 * @return the service instance or <code>null</code> if the timeout
+	 *   has elapsed before a service was available
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public T waitForService(long timeout, TimeUnit unit) throws InterruptedException {
+		T result = service;
+		if (result != null || timeout <= 0) {
+			return result;
+		}
+		
+		TrackerMetrics metrics = getMetrics();
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		metrics.blocked(true);
+		try {
+			synchronized (serviceMonitor) {
+				while ((result = service) == null) {
+					long remaining = deadline - System.nanoTime();
+					if (remaining <= 0) {
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(serviceMonitor, remaining);
+				}
+			}
+		} finally {
+			metrics.blocked(false);
+		}
+		metrics.waited(System.nanoTime() - start);
+		return result;
+	}
+	
+	/**
+	 * Asynchronously wait for a service instance to be available. The
+	 * returned future is completed directly when the service is bound, no
+	 * thread is blocked while waiting. Cancelling the future removes it from
+	 * the waiting futures, stopping the tracker cancels it.
+	 * 
+	 * @param executor the executor to complete the future with, and thus
+	 *   to run its listeners, <code>null</code> to complete it on the thread
+	 *   delivering the service event
+	 * @return the future that will contain the service instance
+	 */
+	public ListenableFuture<T> asyncWaitForService(Executor executor) {
+		final SettableFuture<T> future = SettableFuture.create();
+		final ServiceWaiter waiter = new ServiceWaiter(future, executor);
+		
+		T current = service;
+		if (current != null) {
+			// no wait to record
+			waiter.set(current);
+			return future;
+		}
+		
+		synchronized (waiters) {
+			waiters.add(waiter);
+		}
+		
+		future.addListener(new Runnable() {
+			@Override
+			public void run() {
+				if (future.isCancelled()) {
+					synchronized (waiters) {
+						waiters.remove(waiter);
+					}
+				}
+			}
+		}, MoreExecutors.sameThreadExecutor());
+		
+		// the service may have been bound while adding the waiter, it is
+		// completed by whoever removes it from the waiters
+		current = service;
+		if (current != null) {
+			boolean removed;
+			synchronized (waiters) {
+				removed = waiters.remove(waiter);
+			}
+			if (removed) {
+				waiter.complete(current);
+			}
+		}
+		
+		return future;
+	}
+	
+	/**
+	 * Wait infinitely for a service instance to be available. The waiting
+	 * thread is woken up as soon as a service is registered.
+	 * 
+	 * @return the service instance
+	 * @throws InterruptedException if the thread is interrupted while waiting
+	 */
+	public T waitForService() throws InterruptedException {
+		T result = service;
+		if (result != null) {
+			return result;
+		}
+		
+		TrackerMetrics metrics = getMetrics();
+		long start = System.nanoTime();
+		metrics.blocked(true);
+		try {
+			synchronized (serviceMonitor) {
+				while ((result = service) == null) {
+					serviceMonitor.wait();
+				}
+			}
+		} finally {
+			metrics.blocked(false);
+		}
+		metrics.waited(System.nanoTime() - start);
+		return result;
+	}
+	
+	/**
+	 * A future waiting for the service
+	 */
+	private class ServiceWaiter {
+		
+		private final SettableFuture<T> future;
+		
+		private final Executor executor;
+		
+		private final long created = System.nanoTime();
+		
+		/**
+		 * Create a service waiter
+		 * 
+		 * @param future the future to complete
+		 * @param executor the executor to complete the future with, may be
+		 *   <code>null</code>
+		 */
+		public ServiceWaiter(SettableFuture<T> future, Executor executor) {
+			this.future = future;
+			this.executor = executor;
+		}
+		
+		/**
+		 * Record the wait and complete the future with the given service,
+		 * only called by the thread that removed the waiter from the
+		 * waiting futures
+		 * 
+		 * @param service the service instance
+		 */
+		public void complete(T service) {
+			getMetrics().waited(System.nanoTime() - created);
+			set(service);
+		}
+		
+		/**
+		 * Complete the future with the given service
+		 * 
+		 * @param service the service instance
+		 */
+		public void set(final T service) {
+			if (executor == null) {
+				future.set(service);
+			}
+			else {
+				executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						future.set(service);
+					}
+				});
+			}
+		}
+		
 	}
 
 }
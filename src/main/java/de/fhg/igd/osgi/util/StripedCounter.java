@@ -0,0 +1,129 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * <p>Title: StripedCounter</p>
+ * <p>Description: A counter for frequent concurrent updates and rare reads.
+ * Updates are applied to a single value until contention is detected, then
+ * they are spread across stripes indexed by thread, so threads rarely
+ * contend for the same cache line. Reading sums up all stripes.</p>
+ */
+final class StripedCounter {
+	
+	/**
+	 * Distance between the stripes in the array, so they reside in
+	 * different cache lines
+	 */
+	private static final int PADDING = 8;
+	
+	/**
+	 * The number of stripes, a power of two
+	 */
+	private static final int STRIPES;
+	static {
+		int stripes = 1;
+		int processors = Runtime.getRuntime().availableProcessors();
+		while (stripes < processors && stripes < 64) {
+			stripes <<= 1;
+		}
+		STRIPES = stripes;
+	}
+	
+	private final AtomicLong base = new AtomicLong();
+	
+	/**
+	 * The stripes, created on contention
+	 */
+	private final AtomicReference<AtomicLongArray> stripes = 
+			new AtomicReference<AtomicLongArray>();
+	
+	/**
+	 * Add to the counter
+	 * 
+	 * @param value the value to add
+	 */
+	public void add(long value) {
+		AtomicLongArray current = stripes.get();
+		if (current == null) {
+			long expected = base.get();
+			if (base.compareAndSet(expected, expected + value)) {
+				return;
+			}
+			
+			// contention, switch to stripes
+			stripes.compareAndSet(null, new AtomicLongArray(STRIPES * PADDING));
+			current = stripes.get();
+		}
+		
+		current.getAndAdd(index(), value);
+	}
+	
+	/**
+	 * Increment the counter
+	 */
+	public void increment() {
+		add(1);
+	}
+	
+	/**
+	 * @return the current sum, not an atomic snapshot if there are
+	 *   concurrent updates
+	 */
+	public long sum() {
+		long sum = base.get();
+		AtomicLongArray current = stripes.get();
+		if (current != null) {
+			for (int i = 0; i < STRIPES; i++) {
+				sum += current.get(i * PADDING);
+			}
+		}
+		return sum;
+	}
+	
+	/**
+	 * Reset the counter to zero, updates concurrent to the reset may be
+	 * lost
+	 */
+	public void reset() {
+		base.set(0);
+		AtomicLongArray current = stripes.get();
+		if (current != null) {
+			for (int i = 0; i < STRIPES; i++) {
+				current.set(i * PADDING, 0);
+			}
+		}
+	}
+	
+	/**
+	 * @return the array index of the stripe of the current thread
+	 */
+	private static int index() {
+		long id = Thread.currentThread().getId();
+		// spread the bits of sequential thread IDs
+		int hash = (int) (id ^ (id >>> 32)) * 0x9E3779B9;
+		return ((hash >>> 16) & (STRIPES - 1)) * PADDING;
+	}
+
+}
@@ -0,0 +1,278 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: ThreadInstances</p>
+ * <p>Description: The per-thread instances of a bound prototype scope
+ * service. Each thread obtains its own instance on first access, the
+ * number of instances is bounded. Instances of threads that have died are
+ * released by {@link #purge()}. When the service is unbound the instances
+ * are retired, so no new instances are created, while the existing ones
+ * may still be in use by their threads. A retired instance is released
+ * when its thread asks for an instance again, see
+ * {@link #release(ThreadInstance)}, when its thread has died or when all
+ * instances are released by {@link #release()}.</p>
+ * 
+ * @param <T> the service type
+ */
+final class ThreadInstances<T> {
+	
+	private static final Logger log = LoggerFactory.getLogger(ThreadInstances.class);
+	
+	/**
+	 * The instance of a thread
+	 * 
+	 * @param <T> the service type
+	 */
+	static final class ThreadInstance<T> {
+		
+		private final ThreadInstances<T> owner;
+		
+		private final WeakReference<Thread> thread;
+		
+		private final T instance;
+
+		/**
+		 * Create a thread instance
+		 * 
+		 * @param owner the instances the instance belongs to
+		 * @param thread the thread
+		 * @param instance the service instance
+		 */
+		private ThreadInstance(ThreadInstances<T> owner, Thread thread, T instance) {
+			this.owner = owner;
+			this.thread = new WeakReference<Thread>(thread);
+			this.instance = instance;
+		}
+
+		/**
+		 * @return the instances the instance belongs to
+		 */
+		public ThreadInstances<T> getOwner() {
+			return owner;
+		}
+
+		/**
+		 * @return the service instance
+		 */
+		public T getInstance() {
+			return instance;
+		}
+		
+		/**
+		 * @return if the thread has died
+		 */
+		private boolean isDead() {
+			Thread t = thread.get();
+			return t == null || !t.isAlive();
+		}
+		
+	}
+	
+	private final ServiceReference<T> reference;
+	
+	private final ServiceObjects<T> objects;
+	
+	private final int maxInstances;
+	
+	/**
+	 * The instances, guarded by this
+	 */
+	private final List<ThreadInstance<T>> instances = new ArrayList<ThreadInstance<T>>();
+	
+	/**
+	 * The number of instances being obtained, they count towards the
+	 * maximum number of instances, guarded by this
+	 */
+	private int obtaining = 0;
+	
+	/**
+	 * If the instances have been retired or released, guarded by this
+	 */
+	private boolean released = false;
+	
+	/**
+	 * The time the instances were retired in nanoseconds, guarded by this
+	 */
+	private long retiredAt;
+
+	/**
+	 * Create the per-thread instances for a service
+	 * 
+	 * @param reference the service reference
+	 * @param objects the service objects to obtain instances from
+	 * @param maxInstances the maximum number of instances
+	 */
+	public ThreadInstances(ServiceReference<T> reference, ServiceObjects<T> objects,
+			int maxInstances) {
+		this.reference = reference;
+		this.objects = objects;
+		this.maxInstances = maxInstances;
+	}
+	
+	/**
+	 * @return the service reference
+	 */
+	public ServiceReference<T> getReference() {
+		return reference;
+	}
+	
+	/**
+	 * Obtain an instance for the current thread. The instance is obtained
+	 * from the service without holding the lock, as the service may take
+	 * its time or call back into the framework.
+	 * 
+	 * @return the thread instance or <code>null</code> if the maximum
+	 *   number of instances is reached, the instances have been released or
+	 *   the service failed to provide an instance
+	 */
+	public ThreadInstance<T> create() {
+		synchronized (this) {
+			if (released) {
+				return null;
+			}
+			
+			if (instances.size() + obtaining >= maxInstances) {
+				// make room if threads have died
+				purge();
+				if (instances.size() + obtaining >= maxInstances) {
+					return null;
+				}
+			}
+			obtaining++;
+		}
+		
+		T instance = null;
+		try {
+			instance = objects.getService();
+		} catch (RuntimeException e) {
+			log.error("Could not obtain service instance", e);
+		}
+		
+		synchronized (this) {
+			obtaining--;
+			if (instance != null && !released) {
+				ThreadInstance<T> result = new ThreadInstance<T>(this, Thread.currentThread(),
+						instance);
+				instances.add(result);
+				return result;
+			}
+		}
+		
+		if (instance != null) {
+			// released while obtaining the instance
+			unget(instance);
+		}
+		return null;
+	}
+	
+	/**
+	 * Release the instances of threads that have died
+	 */
+	public synchronized void purge() {
+		Iterator<ThreadInstance<T>> it = instances.iterator();
+		while (it.hasNext()) {
+			ThreadInstance<T> instance = it.next();
+			if (instance.isDead()) {
+				it.remove();
+				unget(instance.instance);
+			}
+		}
+	}
+	
+	/**
+	 * Retire the instances, no new instances are created afterwards. The
+	 * existing instances are kept until they are released individually or
+	 * by {@link #release()}.
+	 */
+	public synchronized void retire() {
+		if (!released) {
+			released = true;
+			retiredAt = System.nanoTime();
+		}
+	}
+	
+	/**
+	 * Determines if the instances were retired at least the given time ago
+	 * 
+	 * @param timeout the time in nanoseconds
+	 * @return if the instances were retired before the given time
+	 */
+	public synchronized boolean isRetiredFor(long timeout) {
+		return released && System.nanoTime() - retiredAt >= timeout;
+	}
+	
+	/**
+	 * Release the instance of a thread, e.g. because the thread no longer
+	 * uses it
+	 * 
+	 * @param instance the thread instance
+	 */
+	public synchronized void release(ThreadInstance<T> instance) {
+		if (instances.remove(instance)) {
+			unget(instance.instance);
+		}
+	}
+	
+	/**
+	 * Release all instances, no new instances are created afterwards
+	 */
+	public synchronized void release() {
+		retire();
+		for (ThreadInstance<T> instance : instances) {
+			unget(instance.instance);
+		}
+		instances.clear();
+	}
+	
+	/**
+	 * @return the number of instances
+	 */
+	public synchronized int size() {
+		return instances.size();
+	}
+	
+	/**
+	 * Release a service instance
+	 * 
+	 * @param instance the instance
+	 */
+	private void unget(T instance) {
+		try {
+			objects.ungetService(instance);
+		} catch (IllegalStateException e) {
+			// the framework has released the instance already
+		} catch (IllegalArgumentException e) {
+			// the framework has released the instance already
+		}
+	}
+
+}
@@ -0,0 +1,338 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: TimerWheel</p>
+ * <p>Description: Hashed timer wheel that executes many scheduled tasks on
+ * a single daemon thread. Timeouts are bucketed by tick, so scheduling and
+ * cancelling are constant time operations. Tasks are executed on the timer
+ * thread and thus must be short.</p>
+ * 
+ * <p>The default timer wheel is created on first use and shut down by
+ * {@link #shutdownDefault()} when the bundle is stopped.</p>
+ */
+final class TimerWheel {
+	
+	private static final Logger log = LoggerFactory.getLogger(TimerWheel.class);
+	
+	/**
+	 * The duration of a tick in nanoseconds
+	 */
+	private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+	
+	/**
+	 * The number of buckets, must be a power of two
+	 */
+	private static final int WHEEL_SIZE = 512;
+	
+	/**
+	 * The default timer wheel, <code>null</code> if not yet created or shut
+	 * down
+	 */
+	private static volatile TimerWheel defaultWheel;
+	
+	/**
+	 * A scheduled task
+	 */
+	public final class Timeout {
+		
+		private final Runnable task;
+		
+		private final long deadlineTick;
+		
+		private boolean scheduled = true;
+
+		/**
+		 * Create a timeout
+		 * 
+		 * @param task the task to run
+		 * @param deadlineTick the tick the task is due
+		 */
+		private Timeout(Runnable task, long deadlineTick) {
+			this.task = task;
+			this.deadlineTick = deadlineTick;
+		}
+		
+		/**
+		 * Cancel the timeout, does nothing if the task was already
+		 * executed
+		 * 
+		 * @return if the timeout was cancelled before it expired
+		 */
+		public boolean cancel() {
+			synchronized (TimerWheel.this) {
+				if (!scheduled) {
+					return false;
+				}
+				scheduled = false;
+				buckets[(int) (deadlineTick & (WHEEL_SIZE - 1))].remove(this);
+				count--;
+				return true;
+			}
+		}
+		
+	}
+	
+	/**
+	 * The thread name
+	 */
+	private final String name;
+	
+	/**
+	 * The buckets, guarded by this
+	 */
+	private final Set<Timeout>[] buckets;
+	
+	/**
+	 * The start time of the wheel
+	 */
+	private final long startTime = System.nanoTime();
+	
+	/**
+	 * The last processed tick, guarded by this
+	 */
+	private long tick = 0;
+	
+	/**
+	 * The number of scheduled timeouts, guarded by this
+	 */
+	private int count = 0;
+	
+	/**
+	 * The timer thread, guarded by this
+	 */
+	private Thread worker;
+	
+	/**
+	 * If the wheel was shut down, guarded by this
+	 */
+	private boolean shutdown = false;
+
+	/**
+	 * Create a timer wheel
+	 * 
+	 * @param name the name of the timer thread
+	 */
+	private TimerWheel(String name) {
+		this.name = name;
+		
+		buckets = newBuckets(WHEEL_SIZE);
+		for (int i = 0; i < WHEEL_SIZE; i++) {
+			buckets[i] = new HashSet<Timeout>();
+		}
+	}
+	
+	/**
+	 * Create an empty bucket array
+	 * 
+	 * @param <E> the element type
+	 * @param size the number of buckets
+	 * @return the bucket array
+	 */
+	@SuppressWarnings("unchecked")
+	private static <E> Set<E>[] newBuckets(int size) {
+		return (Set<E>[]) new Set<?>[size];
+	}
+	
+	/**
+	 * @return the default timer wheel, created if needed
+	 */
+	public static TimerWheel getDefault() {
+		TimerWheel wheel = defaultWheel;
+		if (wheel == null) {
+			synchronized (TimerWheel.class) {
+				wheel = defaultWheel;
+				if (wheel == null) {
+					wheel = new TimerWheel("osgi-util-timer");
+					defaultWheel = wheel;
+				}
+			}
+		}
+		return wheel;
+	}
+	
+	/**
+	 * Shut down the default timer wheel, its scheduled tasks are discarded
+	 * and its thread terminates. A new default timer wheel is created on the
+	 * next call to {@link #getDefault()}.
+	 */
+	public static void shutdownDefault() {
+		TimerWheel wheel;
+		synchronized (TimerWheel.class) {
+			wheel = defaultWheel;
+			defaultWheel = null;
+		}
+		if (wheel != null) {
+			wheel.shutdown();
+		}
+	}
+	
+	/**
+	 * Discard all scheduled tasks and terminate the timer thread. Tasks
+	 * scheduled afterwards are never executed.
+	 */
+	private synchronized void shutdown() {
+		shutdown = true;
+		for (Set<Timeout> bucket : buckets) {
+			for (Timeout timeout : bucket) {
+				timeout.scheduled = false;
+			}
+			bucket.clear();
+		}
+		count = 0;
+		notifyAll();
+	}
+	
+	/**
+	 * Schedule a task
+	 * 
+	 * @param task the task to execute on the timer thread
+	 * @param delay the delay after which the task is executed
+	 * @param unit the time unit of the delay
+	 * @return the timeout that may be used to cancel the task
+	 */
+	public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		long deadline = System.nanoTime() - startTime + Math.max(0, unit.toNanos(delay));
+		long deadlineTick = (deadline + TICK_NANOS - 1) / TICK_NANOS;
+		
+		synchronized (this) {
+			// never schedule into a tick that was already processed
+			Timeout timeout = new Timeout(task, Math.max(deadlineTick, tick + 1));
+			if (shutdown) {
+				timeout.scheduled = false;
+				return timeout;
+			}
+			
+			buckets[(int) (timeout.deadlineTick & (WHEEL_SIZE - 1))].add(timeout);
+			count++;
+			
+			if (worker == null) {
+				worker = new Thread(new Runnable() {
+					@Override
+					public void run() {
+						work();
+					}
+				}, name);
+				worker.setDaemon(true);
+				worker.start();
+			}
+			else if (count == 1) {
+				notifyAll();
+			}
+			
+			return timeout;
+		}
+	}
+	
+	/**
+	 * Schedule a task that is handed off to the given executor when it is
+	 * due, for tasks that are not guaranteed to be short
+	 * 
+	 * @param task the task to execute with the executor
+	 * @param delay the delay after which the task is executed
+	 * @param unit the time unit of the delay
+	 * @param executor the executor to execute the task with
+	 * @return the timeout that may be used to cancel the task before it is
+	 *   handed off
+	 */
+	public Timeout schedule(final Runnable task, long delay, TimeUnit unit,
+			final Executor executor) {
+		return schedule(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					executor.execute(task);
+				} catch (RejectedExecutionException e) {
+					// the executor was shut down together with the bundle
+					log.debug("Scheduled task rejected by executor", e);
+				}
+			}
+		}, delay, unit);
+	}
+	
+	/**
+	 * Process the ticks, executed by the timer thread
+	 */
+	private void work() {
+		List<Timeout> expired = new ArrayList<Timeout>();
+		while (true) {
+			synchronized (this) {
+				try {
+					// park while there is nothing to do
+					while (count == 0 && !shutdown) {
+						wait();
+					}
+					
+					long sleep = (tick + 1) * TICK_NANOS - (System.nanoTime() - startTime);
+					if (sleep > 0 && !shutdown) {
+						TimeUnit.NANOSECONDS.timedWait(this, sleep);
+					}
+				} catch (InterruptedException e) {
+					// the timer thread is never interrupted intentionally
+					log.warn("Timer thread interrupted", e);
+				}
+				
+				if (shutdown) {
+					worker = null;
+					return;
+				}
+				
+				long current = (System.nanoTime() - startTime) / TICK_NANOS;
+				long last = Math.min(current, tick + WHEEL_SIZE);
+				for (long t = tick + 1; t <= last; t++) {
+					Iterator<Timeout> it = buckets[(int) (t & (WHEEL_SIZE - 1))].iterator();
+					while (it.hasNext()) {
+						Timeout timeout = it.next();
+						if (timeout.deadlineTick <= current) {
+							it.remove();
+							timeout.scheduled = false;
+							count--;
+							expired.add(timeout);
+						}
+					}
+				}
+				tick = Math.max(tick, current);
+			}
+			
+			for (Timeout timeout : expired) {
+				try {
+					timeout.task.run();
+				} catch (Throwable e) {
+					log.error("Error executing scheduled task", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+}
@@ -0,0 +1,96 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import org.osgi.framework.Filter;
+
+/**
+ * <p>Title: TrackerKey</p>
+ * <p>Description: Identifies a tracker by service type and filter</p>
+ */
+final class TrackerKey {
+	
+	private final Class<?> serviceType;
+	
+	private final Filter filter;
+	
+	private final int hashCode;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 */
+	public TrackerKey(Class<?> serviceType, Filter filter) {
+		this.serviceType = serviceType;
+		this.filter = filter;
+		
+		hashCode = 31 * serviceType.hashCode() + ((filter == null) ? 0 : filter.hashCode());
+	}
+
+	/**
+	 * @return the service type
+	 */
+	public Class<?> getServiceType() {
+		return serviceType;
+	}
+
+	/**
+	 * @return the filter, may be <code>null</code>
+	 */
+	public Filter getFilter() {
+		return filter;
+	}
+
+	/**
+	 * @see Object#hashCode()
+	 */
+	@Override
+	public int hashCode() {
+		return hashCode;
+	}
+
+	/**
+	 * @see Object#equals(Object)
+	 */
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!(obj instanceof TrackerKey))
+			return false;
+		TrackerKey other = (TrackerKey) obj;
+		if (serviceType != other.serviceType)
+			return false;
+		if (filter == null)
+			return other.filter == null;
+		return filter.equals(other.filter);
+	}
+
+	/**
+	 * @see Object#toString()
+	 */
+	@Override
+	public String toString() {
+		return (filter == null) ? serviceType.getName() : serviceType.getName() + " " + filter;
+	}
+
+}
@@ -0,0 +1,245 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>Title: TrackerMetrics</p>
+ * <p>Description: Statistics of a service tracker. Recording is globally
+ * switched on or off with {@link #setEnabled(boolean)}, while disabled
+ * recording costs a single volatile read.</p>
+ */
+final class TrackerMetrics {
+	
+	private static volatile boolean enabled = false;
+	
+	private final StripedCounter hits = new StripedCounter();
+	
+	private final StripedCounter misses = new StripedCounter();
+	
+	private final StripedCounter events = new StripedCounter();
+	
+	private final StripedCounter dispatches = new StripedCounter();
+	
+	private final StripedCounter dispatchNanos = new StripedCounter();
+	
+	private final AtomicLong maxDispatchNanos = new AtomicLong();
+	
+	private final StripedCounter waits = new StripedCounter();
+	
+	private final StripedCounter waitNanos = new StripedCounter();
+	
+	/**
+	 * The number of threads currently blocked waiting for a service
+	 */
+	private final AtomicInteger blockedWaiters = new AtomicInteger();
+	
+	/**
+	 * The time of the last rebind in milliseconds since the epoch, zero if
+	 * there was none
+	 */
+	private volatile long lastRebind = 0;
+	
+	/**
+	 * @return if recording metrics is enabled
+	 */
+	public static boolean isEnabled() {
+		return enabled;
+	}
+	
+	/**
+	 * Enable or disable recording metrics for all trackers
+	 * 
+	 * @param enabled if metrics should be recorded
+	 */
+	public static void setEnabled(boolean enabled) {
+		TrackerMetrics.enabled = enabled;
+	}
+	
+	/**
+	 * Record a service lookup
+	 * 
+	 * @param hit if a service was available
+	 */
+	public void lookup(boolean hit) {
+		if (enabled) {
+			if (hit) {
+				hits.increment();
+			}
+			else {
+				misses.increment();
+			}
+		}
+	}
+	
+	/**
+	 * Record a processed service event
+	 */
+	public void event() {
+		if (enabled) {
+			events.increment();
+		}
+	}
+	
+	/**
+	 * Record a rebind of the tracked service
+	 */
+	public void rebind() {
+		if (enabled) {
+			lastRebind = System.currentTimeMillis();
+		}
+	}
+	
+	/**
+	 * Record a listener notification
+	 * 
+	 * @param nanos the time the notification took in nanoseconds
+	 */
+	public void dispatched(long nanos) {
+		if (!enabled) {
+			return;
+		}
+		
+		dispatches.increment();
+		dispatchNanos.add(nanos);
+		long max;
+		while (nanos > (max = maxDispatchNanos.get())) {
+			if (maxDispatchNanos.compareAndSet(max, nanos)) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Record a completed wait for a service
+	 * 
+	 * @param nanos the time waited in nanoseconds
+	 */
+	public void waited(long nanos) {
+		if (enabled) {
+			waits.increment();
+			waitNanos.add(nanos);
+		}
+	}
+	
+	/**
+	 * Record that a thread starts or stops blocking for a service
+	 * 
+	 * @param blocked <code>true</code> if the thread starts blocking,
+	 *   <code>false</code> if it stops
+	 */
+	public void blocked(boolean blocked) {
+		// always recorded so the gauge stays consistent when switching
+		if (blocked) {
+			blockedWaiters.incrementAndGet();
+		}
+		else {
+			blockedWaiters.decrementAndGet();
+		}
+	}
+	
+	/**
+	 * Reset the counters
+	 */
+	public void reset() {
+		hits.reset();
+		misses.reset();
+		events.reset();
+		dispatches.reset();
+		dispatchNanos.reset();
+		maxDispatchNanos.set(0);
+		waits.reset();
+		waitNanos.reset();
+	}
+	
+	/**
+	 * @return the number of lookups that found a service
+	 */
+	public long getHits() {
+		return hits.sum();
+	}
+	
+	/**
+	 * @return the number of lookups that found no service
+	 */
+	public long getMisses() {
+		return misses.sum();
+	}
+	
+	/**
+	 * @return the number of processed service events
+	 */
+	public long getEvents() {
+		return events.sum();
+	}
+	
+	/**
+	 * @return the number of listener notifications
+	 */
+	public long getDispatches() {
+		return dispatches.sum();
+	}
+	
+	/**
+	 * @return the total time spent notifying listeners in nanoseconds
+	 */
+	public long getDispatchNanos() {
+		return dispatchNanos.sum();
+	}
+	
+	/**
+	 * @return the longest listener notification in nanoseconds
+	 */
+	public long getMaxDispatchNanos() {
+		return maxDispatchNanos.get();
+	}
+	
+	/**
+	 * @return the number of completed waits for services
+	 */
+	public long getWaits() {
+		return waits.sum();
+	}
+	
+	/**
+	 * @return the total time waited for services in nanoseconds
+	 */
+	public long getWaitNanos() {
+		return waitNanos.sum();
+	}
+	
+	/**
+	 * @return the number of threads currently blocked waiting for a service
+	 */
+	public int getBlockedWaiters() {
+		return blockedWaiters.get();
+	}
+	
+	/**
+	 * @return the time of the last rebind in milliseconds since the epoch,
+	 *   zero if none was recorded
+	 */
+	public long getLastRebind() {
+		return lastRebind;
+	}
+
+}
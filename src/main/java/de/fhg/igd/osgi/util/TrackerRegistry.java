@@ -0,0 +1,562 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Filter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * <p>Title: TrackerRegistry</p>
+ * <p>Description: Concurrent registry of service trackers per service type
+ * and filter. Looking up a started tracker is a single lock-free map read.
+ * A tracker is created and started once per key, only threads asking for
+ * the same key wait for the start, lookups for other keys proceed.</p>
+ * 
+ * <p>Optionally trackers that have not been used for some time, or the
+ * least recently used trackers exceeding a maximum number, are stopped and
+ * removed, so they no longer listen to service events. Trackers that are
+ * in use, e.g. have listeners attached, are never evicted.</p>
+ * 
+ * @param <R> the tracker type
+ */
+abstract class TrackerRegistry<R extends ServiceTracker<?>> {
+	
+	private static final Logger log = LoggerFactory.getLogger(TrackerRegistry.class);
+	
+	/**
+	 * The granularity of the recorded access time in nanoseconds
+	 */
+	private static final long ACCESS_GRANULARITY = TimeUnit.MILLISECONDS.toNanos(100);
+	
+	/**
+	 * The maximum interval between checks for trackers to evict in
+	 * nanoseconds
+	 */
+	private static final long MAX_SWEEP_INTERVAL = TimeUnit.SECONDS.toNanos(30);
+	
+	/**
+	 * Trackers without filter by service type, avoids creating a key for
+	 * the most common lookups
+	 */
+	private final ConcurrentMap<Class<?>, Entry> byType = 
+			new ConcurrentHashMap<Class<?>, Entry>();
+	
+	/**
+	 * Trackers with filter
+	 */
+	private final ConcurrentMap<TrackerKey, Entry> byKey = 
+			new ConcurrentHashMap<TrackerKey, Entry>();
+	
+	/**
+	 * If the registry has been closed, no trackers are started afterwards
+	 */
+	private volatile boolean closed = true;
+	
+	/**
+	 * The bundle context to start trackers with
+	 */
+	private volatile BundleContext context;
+	
+	/**
+	 * The multiplexer delivering service events to the trackers, may be
+	 * <code>null</code>
+	 */
+	private volatile ServiceEventMultiplexer multiplexer;
+	
+	/**
+	 * The time in nanoseconds after which unused trackers are evicted, zero
+	 * to keep them
+	 */
+	private volatile long idleTimeout = 0;
+	
+	/**
+	 * The maximum number of trackers, zero for no limit
+	 */
+	private volatile int maxTrackers = 0;
+	
+	/**
+	 * The scheduled eviction check, guarded by this
+	 */
+	private TimerWheel.Timeout sweep;
+	
+	/**
+	 * Create a tracker, it will be started by the registry
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @return the new tracker
+	 */
+	protected abstract R createTracker(Class<?> serviceType, Filter filter);
+	
+	/**
+	 * Get the tracker for the given service type and filter, creates and
+	 * starts it if needed
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @return the started tracker or <code>null</code> if the registry is
+	 *   not open
+	 */
+	public R get(Class<?> serviceType, Filter filter) {
+		Entry entry = lookup(serviceType, filter);
+		
+		if (entry != null && entry.started) {
+			// fast path
+			if (idleTimeout > 0 || maxTrackers > 0) {
+				entry.touch();
+			}
+			return entry.tracker;
+		}
+		
+		if (entry == null) {
+			Entry created = new Entry(createTracker(serviceType, filter));
+			entry = (filter == null) ? byType.putIfAbsent(serviceType, created) 
+					: byKey.putIfAbsent(new TrackerKey(serviceType, filter), created);
+			if (entry == null) {
+				entry = created;
+				
+				int max = maxTrackers;
+				if (max > 0 && byType.size() + byKey.size() > max) {
+					scheduleSweep(0);
+				}
+			}
+		}
+		
+		entry.touch();
+		R tracker = entry.start();
+		if (tracker == null && !closed) {
+			// the tracker was evicted concurrently, replace the entry
+			if (filter == null) {
+				byType.remove(serviceType, entry);
+			}
+			else {
+				byKey.remove(new TrackerKey(serviceType, filter), entry);
+			}
+			return get(serviceType, filter);
+		}
+		return tracker;
+	}
+	
+	/**
+	 * Get the tracker for the given service type and filter like
+	 * {@link #get(Class, Filter)} and pin it, so it is not evicted until
+	 * {@link #unpin(Class, Filter, ServiceTracker)} is called. Pin a tracker
+	 * while setting up a wait on it, before the wait itself marks the
+	 * tracker as in use, otherwise the tracker may be evicted in between
+	 * and the wait would never complete.
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @return the started and pinned tracker or <code>null</code> if the
+	 *   registry is not open
+	 */
+	public R pin(Class<?> serviceType, Filter filter) {
+		while (true) {
+			R tracker = get(serviceType, filter);
+			if (tracker == null) {
+				return null;
+			}
+			
+			Entry entry = lookup(serviceType, filter);
+			if (entry != null && entry.tracker == tracker && entry.pin()) {
+				return tracker;
+			}
+			// the tracker was evicted concurrently, try again
+		}
+	}
+	
+	/**
+	 * Release a tracker pinned with {@link #pin(Class, Filter)}
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @param tracker the pinned tracker
+	 */
+	public void unpin(Class<?> serviceType, Filter filter, R tracker) {
+		Entry entry = lookup(serviceType, filter);
+		if (entry != null && entry.tracker == tracker) {
+			entry.unpin();
+		}
+		// otherwise the registry was closed in the meantime
+	}
+	
+	/**
+	 * Get the tracker for the given service type and filter if it exists,
+	 * does not create a tracker
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @return the started tracker or <code>null</code>
+	 */
+	public R peek(Class<?> serviceType, Filter filter) {
+		Entry entry = lookup(serviceType, filter);
+		return (entry != null && entry.started) ? entry.tracker : null;
+	}
+	
+	/**
+	 * Get the entry for the given service type and filter
+	 * 
+	 * @param serviceType the service type
+	 * @param filter the filter, may be <code>null</code>
+	 * @return the entry or <code>null</code>
+	 */
+	private Entry lookup(Class<?> serviceType, Filter filter) {
+		return (filter == null) ? byType.get(serviceType) 
+				: byKey.get(new TrackerKey(serviceType, filter));
+	}
+	
+	/**
+	 * @return the started trackers
+	 */
+	public List<R> getTrackers() {
+		List<R> result = new ArrayList<R>();
+		for (Entry entry : byType.values()) {
+			if (entry.started) {
+				result.add(entry.tracker);
+			}
+		}
+		for (Entry entry : byKey.values()) {
+			if (entry.started) {
+				result.add(entry.tracker);
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Configure the eviction of unused trackers. A tracker that is evicted
+	 * is stopped and removed, it is created anew on the next access. A
+	 * lookup racing with the eviction of its tracker may see no service,
+	 * as if the service was unregistered for a moment.
+	 * 
+	 * @param timeout the time after which an unused tracker is evicted, zero
+	 *   or less to keep unused trackers
+	 * @param unit the time unit of the timeout
+	 * @param max the maximum number of trackers, if there are more the
+	 *   least recently used trackers are evicted, zero or less for no limit
+	 */
+	public synchronized void setEviction(long timeout, TimeUnit unit, int max) {
+		idleTimeout = Math.max(0, unit.toNanos(timeout));
+		maxTrackers = Math.max(0, max);
+		
+		if (sweep != null) {
+			sweep.cancel();
+			sweep = null;
+		}
+		scheduleSweep(sweepInterval());
+	}
+	
+	/**
+	 * @return the interval between eviction checks in nanoseconds, or a
+	 *   negative value if eviction is disabled
+	 */
+	private long sweepInterval() {
+		long timeout = idleTimeout;
+		if (timeout > 0) {
+			return Math.min(Math.max(timeout / 2, ACCESS_GRANULARITY), MAX_SWEEP_INTERVAL);
+		}
+		return (maxTrackers > 0) ? MAX_SWEEP_INTERVAL : -1;
+	}
+	
+	/**
+	 * Schedule an eviction check if none is scheduled
+	 * 
+	 * @param delay the delay in nanoseconds, no check is scheduled if it is
+	 *   negative
+	 */
+	private synchronized void scheduleSweep(long delay) {
+		if (delay < 0 || closed) {
+			return;
+		}
+		
+		if (sweep != null) {
+			if (delay > 0) {
+				return;
+			}
+			// check right away instead
+			sweep.cancel();
+		}
+		
+		sweep = TimerWheel.getDefault().schedule(new Runnable() {
+			@Override
+			public void run() {
+				synchronized (TrackerRegistry.this) {
+					sweep = null;
+				}
+				try {
+					evict();
+				} catch (RuntimeException e) {
+					log.error("Error evicting service trackers", e);
+				}
+				scheduleSweep(sweepInterval());
+			}
+		}, delay, TimeUnit.NANOSECONDS, BackgroundExecutor.getDefault());
+	}
+	
+	/**
+	 * Evict idle trackers and the least recently used trackers exceeding
+	 * the maximum number of trackers. Stopping a tracker may block, so this
+	 * is executed on the background executor rather than the timer thread.
+	 */
+	private void evict() {
+		long timeout = idleTimeout;
+		int max = maxTrackers;
+		long now = System.nanoTime();
+		
+		List<Candidate> candidates = new ArrayList<Candidate>();
+		int count = collect(byType, candidates) + collect(byKey, candidates);
+		
+		// least recently used first
+		Collections.sort(candidates, new Comparator<Candidate>() {
+			@Override
+			public int compare(Candidate o1, Candidate o2) {
+				long diff = o1.lastAccess - o2.lastAccess;
+				return (diff < 0) ? -1 : ((diff > 0) ? 1 : 0);
+			}
+		});
+		
+		for (Candidate candidate : candidates) {
+			boolean idle = timeout > 0 && now - candidate.lastAccess >= timeout;
+			boolean excess = max > 0 && count > max;
+			if (!idle && !excess) {
+				// all others were accessed more recently
+				break;
+			}
+			
+			if (candidate.entry.evict(candidate.lastAccess)) {
+				candidate.map.remove(candidate.key, candidate.entry);
+				count--;
+				log.debug("Evicted unused service tracker: " + candidate.key);
+			}
+		}
+	}
+	
+	/**
+	 * Collect the entries of the given map that may be evicted
+	 * 
+	 * @param map the map
+	 * @param candidates the list to add the candidates to
+	 * @return the number of entries in the map
+	 */
+	private <K> int collect(ConcurrentMap<K, Entry> map, List<Candidate> candidates) {
+		int count = 0;
+		for (Map.Entry<K, Entry> mapEntry : map.entrySet()) {
+			count++;
+			Entry entry = mapEntry.getValue();
+			if (entry.started && !entry.tracker.isInUse()) {
+				candidates.add(new Candidate(map, mapEntry.getKey(), entry));
+			}
+		}
+		return count;
+	}
+	
+	/**
+	 * Open the registry, so trackers are started
+	 * 
+	 * @param context the bundle context to start trackers with
+	 * @param multiplexer the multiplexer delivering service events to the
+	 *   trackers, <code>null</code> if each tracker should register its own
+	 *   service listener
+	 */
+	public void open(BundleContext context, ServiceEventMultiplexer multiplexer) {
+		this.context = context;
+		this.multiplexer = multiplexer;
+		closed = false;
+		scheduleSweep(sweepInterval());
+	}
+	
+	/**
+	 * Close the registry, stops and removes all trackers
+	 */
+	public void close() {
+		closed = true;
+		
+		synchronized (this) {
+			if (sweep != null) {
+				sweep.cancel();
+				sweep = null;
+			}
+		}
+		
+		stopAll(byType);
+		stopAll(byKey);
+	}
+	
+	/**
+	 * Stop and remove all trackers in the given map
+	 * 
+	 * @param entries the tracker entries
+	 */
+	private void stopAll(ConcurrentMap<?, Entry> entries) {
+		for (Entry entry : entries.values()) {
+			entry.stop();
+		}
+		entries.clear();
+	}
+	
+	/**
+	 * A tracker that may be evicted
+	 */
+	private class Candidate {
+		
+		private final ConcurrentMap<?, Entry> map;
+		
+		private final Object key;
+		
+		private final Entry entry;
+		
+		private final long lastAccess;
+
+		/**
+		 * Create an eviction candidate
+		 * 
+		 * @param map the map containing the entry
+		 * @param key the key of the entry
+		 * @param entry the registry entry
+		 */
+		public Candidate(ConcurrentMap<?, Entry> map, Object key, Entry entry) {
+			this.map = map;
+			this.key = key;
+			this.entry = entry;
+			this.lastAccess = entry.lastAccess;
+		}
+		
+	}
+	
+	/**
+	 * A registry entry, the tracker is started on first use
+	 */
+	private class Entry {
+		
+		private final R tracker;
+		
+		private volatile boolean started = false;
+		
+		private volatile long lastAccess;
+		
+		/**
+		 * If the tracker was stopped, guarded by this
+		 */
+		private boolean stopped = false;
+		
+		/**
+		 * The number of pins preventing eviction, guarded by this
+		 */
+		private int pins = 0;
+
+		/**
+		 * Create a registry entry
+		 * 
+		 * @param tracker the tracker
+		 */
+		public Entry(R tracker) {
+			this.tracker = tracker;
+		}
+		
+		/**
+		 * Record an access to the tracker
+		 */
+		public void touch() {
+			long now = System.nanoTime();
+			if (now - lastAccess > ACCESS_GRANULARITY) {
+				lastAccess = now;
+			}
+		}
+		
+		/**
+		 * Start the tracker if it was not started yet
+		 * 
+		 * @return the started tracker or <code>null</code> if the registry
+		 *   is not open
+		 */
+		public synchronized R start() {
+			if (!started) {
+				if (closed || stopped) {
+					return null;
+				}
+				tracker.start(context, multiplexer);
+				started = true;
+			}
+			return tracker;
+		}
+		
+		/**
+		 * Pin the tracker, so it is not evicted
+		 * 
+		 * @return if the tracker was pinned, <code>false</code> if it was
+		 *   already stopped
+		 */
+		public synchronized boolean pin() {
+			if (stopped) {
+				return false;
+			}
+			pins++;
+			return true;
+		}
+		
+		/**
+		 * Release a pin
+		 */
+		public synchronized void unpin() {
+			if (pins > 0) {
+				pins--;
+			}
+		}
+		
+		/**
+		 * Stop the tracker if it was not accessed since the given time, is
+		 * not pinned and not in use
+		 * 
+		 * @param accessTime the last access time the eviction is based on
+		 * @return if the tracker was stopped
+		 */
+		public synchronized boolean evict(long accessTime) {
+			if (stopped || pins > 0 || lastAccess != accessTime || tracker.isInUse()) {
+				return false;
+			}
+			stop();
+			return true;
+		}
+		
+		/**
+		 * Stop the tracker if it was started
+		 */
+		public synchronized void stop() {
+			stopped = true;
+			if (started) {
+				tracker.stop();
+				started = false;
+			}
+		}
+		
+	}
+
+}
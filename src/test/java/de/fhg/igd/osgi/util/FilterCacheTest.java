@@ -0,0 +1,62 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+
+/**
+ * Tests for {@link FilterCache}
+ */
+public class FilterCacheTest {
+	
+	/**
+	 * Test that the same filter instance is returned for a filter string
+	 * and it matches as expected
+	 */
+	@Test
+	public void testCached() {
+		Filter filter = FilterCache.get("(name=test)");
+		Assert.assertSame(filter, FilterCache.get("(name=test)"));
+		
+		Assert.assertTrue(filter.match(
+				new TestServiceReference<Object>(Object.class).setProperty("name", "test")));
+		Assert.assertFalse(filter.match(
+				new TestServiceReference<Object>(Object.class).setProperty("name", "other")));
+	}
+	
+	/**
+	 * Test that a <code>null</code> filter string results in no filter
+	 */
+	@Test
+	public void testNull() {
+		Assert.assertNull(FilterCache.get(null));
+	}
+	
+	/**
+	 * Test that an invalid filter is rejected
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalid() {
+		FilterCache.get("(name=test");
+	}
+
+}
@@ -0,0 +1,151 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link FrameworkCondition}
+ */
+public class FrameworkConditionTest {
+	
+	/**
+	 * Test that a condition is re-evaluated on a matching service event
+	 * delivered through the multiplexer, without registering listeners of
+	 * its own
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testWatchWithMultiplexer() throws Exception {
+		final TestBundleContext registry = new TestBundleContext();
+		ServiceEventMultiplexer multiplexer = new ServiceEventMultiplexer(registry.getContext());
+		multiplexer.open();
+		Assert.assertEquals(1, registry.getListenerCount());
+		
+		FrameworkCondition condition = new FrameworkCondition() {
+			@Override
+			public boolean evaluate() {
+				try {
+					return !registry.getContext().getServiceReferences(Runnable.class, null).isEmpty();
+				} catch (InvalidSyntaxException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}.dependsOnService(Runnable.class, "(name=worker)");
+		
+		ListenableFuture<Boolean> future = condition.watch(registry.getContext(), multiplexer,
+				-1, TimeUnit.SECONDS);
+		Assert.assertEquals(1, registry.getListenerCount());
+		Assert.assertFalse(future.isDone());
+		
+		TestServiceReference<Runnable> worker = new TestServiceReference<Runnable>(
+				Runnable.class);
+		worker.setProperty("name", "worker");
+		registry.register(worker, new Thread());
+		Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+		
+		multiplexer.close();
+		Assert.assertEquals(0, registry.getListenerCount());
+	}
+	
+	/**
+	 * Test that a condition that only becomes true through a tracker that
+	 * receives the event after the condition's own tracker is re-evaluated
+	 * once that tracker has seen the event
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testLaterTracker() throws Exception {
+		TestBundleContext registry = new TestBundleContext();
+		ServiceEventMultiplexer multiplexer = new ServiceEventMultiplexer(registry.getContext());
+		multiplexer.open();
+		
+		final AtomicBoolean seen = new AtomicBoolean();
+		FrameworkCondition condition = new FrameworkCondition() {
+			@Override
+			public boolean evaluate() {
+				return seen.get();
+			}
+		}.dependsOnService(Runnable.class);
+		ListenableFuture<Boolean> future = condition.watch(registry.getContext(), multiplexer,
+				-1, TimeUnit.SECONDS);
+		
+		// a slow tracker registered after the condition's tracker
+		ServiceTracker<Runnable> later = new ServiceTracker<Runnable>(Runnable.class) {
+			@Override
+			protected void register(ServiceReference<Runnable> service) {
+				try {
+					Thread.sleep(200);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				seen.set(true);
+			}
+			
+			@Override
+			protected void deregister(ServiceReference<Runnable> service) {
+				// ignore
+			}
+		};
+		later.start(registry.getContext(), multiplexer);
+		
+		registry.register(Runnable.class, new Thread());
+		Assert.assertTrue(future.get(5, TimeUnit.SECONDS));
+		
+		later.stop();
+		multiplexer.close();
+	}
+	
+	/**
+	 * Test that the future is completed with <code>false</code> when the
+	 * timeout elapses
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		TestBundleContext registry = new TestBundleContext();
+		FrameworkCondition condition = new FrameworkCondition() {
+			@Override
+			public boolean evaluate() {
+				return false;
+			}
+		}.dependsOnService(Runnable.class);
+		
+		ListenableFuture<Boolean> future = condition.watch(registry.getContext(), null,
+				50, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(1, registry.getListenerCount());
+		Assert.assertFalse(future.get(5, TimeUnit.SECONDS));
+		
+		// the tracker stopped listening
+		Assert.assertEquals(0, registry.getListenerCount());
+	}
+
+}
@@ -0,0 +1,68 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LatencyHistogram}
+ */
+public class LatencyHistogramTest {
+	
+	/**
+	 * Test that every value lies within the bounds of its bucket and the
+	 * buckets are resolved with the expected relative error
+	 */
+	@Test
+	public void testBuckets() {
+		long[] values = { 0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE };
+		for (long value : values) {
+			int index = LatencyHistogram.bucketIndex(value);
+			long upper = LatencyHistogram.upperBound(index);
+			long lower = (index == 0) ? 0 : LatencyHistogram.upperBound(index - 1) + 1;
+			Assert.assertTrue("Value " + value + " above its bucket", value <= upper);
+			Assert.assertTrue("Value " + value + " below its bucket", value >= lower);
+			Assert.assertTrue("Bucket of " + value + " too wide", upper - lower <= lower / 16);
+		}
+	}
+	
+	/**
+	 * Test percentiles of uniformly distributed values
+	 */
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (long i = 1; i <= 10000; i++) {
+			histogram.record(i * 1000);
+		}
+		
+		Assert.assertEquals(10000, histogram.getCount());
+		Assert.assertEquals(10000000, histogram.getMax());
+		Assert.assertEquals(5000000, histogram.getValueAtPercentile(50), 5000000 / 16);
+		Assert.assertEquals(9900000, histogram.getValueAtPercentile(99), 9900000 / 16);
+		Assert.assertEquals(10000000, histogram.getValueAtPercentile(100));
+		
+		histogram.reset();
+		Assert.assertEquals(0, histogram.getCount());
+		Assert.assertEquals(0, histogram.getValueAtPercentile(50));
+	}
+
+}
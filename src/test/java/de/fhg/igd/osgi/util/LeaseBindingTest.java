@@ -0,0 +1,99 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link LeaseBinding} and {@link ServiceLease}
+ */
+public class LeaseBindingTest {
+	
+	/**
+	 * Test that retiring a binding without leases does not wait and no
+	 * leases can be acquired afterwards
+	 */
+	@Test
+	public void testRetireUnused() {
+		LeaseBinding<String> binding = createBinding();
+		
+		ServiceLease<String> lease = binding.acquire();
+		Assert.assertEquals("service", lease.get());
+		lease.close();
+		Assert.assertEquals(0, binding.getLeaseCount());
+		
+		Assert.assertTrue(binding.retire(0, TimeUnit.MILLISECONDS));
+		Assert.assertNull(binding.acquire());
+		Assert.assertEquals(0, binding.getLeaseCount());
+	}
+	
+	/**
+	 * Test that retiring waits for an open lease to be closed
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testRetireDrains() throws InterruptedException {
+		LeaseBinding<String> binding = createBinding();
+		final ServiceLease<String> lease = binding.acquire();
+		
+		Thread closer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					// close right away
+				}
+				lease.close();
+			}
+		});
+		closer.start();
+		
+		long start = System.nanoTime();
+		Assert.assertTrue(binding.retire(10, TimeUnit.SECONDS));
+		Assert.assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+		Assert.assertEquals(0, binding.getLeaseCount());
+		closer.join();
+	}
+	
+	/**
+	 * Test that retiring gives up when the drain timeout elapses
+	 */
+	@Test
+	public void testRetireTimeout() {
+		LeaseBinding<String> binding = createBinding();
+		ServiceLease<String> lease = binding.acquire();
+		
+		Assert.assertFalse(binding.retire(50, TimeUnit.MILLISECONDS));
+		Assert.assertEquals(1, binding.getLeaseCount());
+		
+		lease.close();
+		Assert.assertEquals(0, binding.getLeaseCount());
+	}
+	
+	private static LeaseBinding<String> createBinding() {
+		return new LeaseBinding<String>(new TestServiceReference<String>(String.class), "service");
+	}
+
+}
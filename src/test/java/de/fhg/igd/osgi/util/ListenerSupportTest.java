@@ -0,0 +1,242 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.fhg.igd.osgi.util.ListenerSupport.Notification;
+
+/**
+ * Tests for {@link ListenerSupport}
+ */
+public class ListenerSupportTest {
+	
+	/**
+	 * Listener recording the values it is notified of
+	 */
+	private static class Recorder {
+		
+		private final List<Object> values = Collections.synchronizedList(
+				new ArrayList<Object>());
+		
+		/**
+		 * Called on each notification
+		 * 
+		 * @param value the notified value
+		 */
+		protected void record(Object value) {
+			values.add(value);
+		}
+	
+	}
+	
+	/**
+	 * Executor running its tasks only when asked to
+	 */
+	private static class ManualExecutor implements Executor {
+		
+		private final Queue<Runnable> tasks = new LinkedList<Runnable>();
+		
+		@Override
+		public void execute(Runnable command) {
+			tasks.add(command);
+		}
+		
+		/**
+		 * Run the queued tasks
+		 */
+		public void runAll() {
+			Runnable task;
+			while ((task = tasks.poll()) != null) {
+				task.run();
+			}
+		}
+	
+	}
+	
+	/**
+	 * Create a notification of the given value
+	 * 
+	 * @param value the value
+	 * @return the notification
+	 */
+	private static Notification<Recorder> value(final Object value) {
+		return new Notification<Recorder>() {
+			
+			@Override
+			public void notify(Recorder listener) {
+				listener.record(value);
+			}
+		
+		};
+	}
+	
+	/**
+	 * Test that listeners added or removed during a dispatch are notified
+	 * starting with the next dispatch
+	 */
+	@Test
+	public void testChangeDuringDispatch() {
+		final ListenerSupport<Recorder> listeners = new ListenerSupport<Recorder>();
+		final Recorder b = new Recorder();
+		final Recorder c = new Recorder();
+		Recorder a = new Recorder() {
+			
+			@Override
+			protected void record(Object value) {
+				super.record(value);
+				listeners.remove(b);
+				listeners.add(c);
+			}
+		
+		};
+		listeners.add(a);
+		listeners.add(b);
+		listeners.add(b);
+		
+		listeners.dispatch(value(1));
+		listeners.dispatch(value(2));
+		Assert.assertEquals(Arrays.<Object>asList(1, 2), a.values);
+		Assert.assertEquals(Arrays.<Object>asList(1), b.values);
+		Assert.assertEquals(Arrays.<Object>asList(2), c.values);
+		
+		listeners.remove(a);
+		listeners.remove(c);
+		Assert.assertTrue(listeners.isEmpty());
+	}
+	
+	/**
+	 * Test that asynchronous notifications of each listener are delivered in
+	 * the order they were dispatched
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testAsyncOrder() throws InterruptedException {
+		final int count = 10000;
+		final CountDownLatch done = new CountDownLatch(4);
+		ListenerSupport<Recorder> listeners = new ListenerSupport<Recorder>();
+		List<Recorder> recorders = new ArrayList<Recorder>();
+		for (int i = 0; i < 4; i++) {
+			Recorder recorder = new Recorder() {
+				
+				@Override
+				protected void record(Object value) {
+					super.record(value);
+					if (value.equals(count - 1)) {
+						done.countDown();
+					}
+				}
+			
+			};
+			recorders.add(recorder);
+			listeners.add(recorder);
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			listeners.setExecutor(executor);
+			for (int i = 0; i < count; i++) {
+				listeners.dispatch(value(i));
+			}
+			Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+		} finally {
+			executor.shutdown();
+		}
+		
+		for (Recorder recorder : recorders) {
+			Assert.assertEquals(count, recorder.values.size());
+			for (int i = 0; i < count; i++) {
+				Assert.assertEquals(i, recorder.values.get(i));
+			}
+		}
+	}
+	
+	/**
+	 * Test that after switching to synchronous delivery, notifications do
+	 * not overtake those still queued
+	 */
+	@Test
+	public void testSwitchToSynchronous() {
+		ListenerSupport<Recorder> listeners = new ListenerSupport<Recorder>();
+		Recorder recorder = new Recorder();
+		listeners.add(recorder);
+		ManualExecutor executor = new ManualExecutor();
+		
+		listeners.setExecutor(executor);
+		listeners.dispatch(value(1));
+		listeners.dispatch(value(2));
+		listeners.setExecutor(null);
+		listeners.dispatch(value(3));
+		Assert.assertTrue(recorder.values.isEmpty());
+		
+		executor.runAll();
+		Assert.assertEquals(Arrays.<Object>asList(1, 2, 3), recorder.values);
+		
+		// nothing pending, delivered on the notifying thread
+		listeners.dispatch(value(4));
+		Assert.assertEquals(Arrays.<Object>asList(1, 2, 3, 4), recorder.values);
+	}
+	
+	/**
+	 * Test that a listener throwing an exception neither prevents other
+	 * listeners from being notified nor further notifications
+	 */
+	@Test
+	public void testListenerException() {
+		ListenerSupport<Recorder> listeners = new ListenerSupport<Recorder>();
+		Recorder failing = new Recorder() {
+			
+			@Override
+			protected void record(Object value) {
+				super.record(value);
+				throw new IllegalStateException("Test exception");
+			}
+		
+		};
+		Recorder recorder = new Recorder();
+		listeners.add(failing);
+		listeners.add(recorder);
+		
+		listeners.dispatch(value(1));
+		ManualExecutor executor = new ManualExecutor();
+		listeners.setExecutor(executor);
+		listeners.dispatch(value(2));
+		listeners.dispatch(value(3));
+		executor.runAll();
+		
+		Assert.assertEquals(Arrays.<Object>asList(1, 2, 3), failing.values);
+		Assert.assertEquals(Arrays.<Object>asList(1, 2, 3), recorder.values);
+	}
+
+}
@@ -0,0 +1,398 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link MultiServiceTracker}
+ */
+public class MultiServiceTrackerTest {
+	
+	/**
+	 * Listener recording the notifications
+	 */
+	private static class RecordingListener implements MultiServiceBatchListener<Object> {
+		
+		private final List<String> events = new ArrayList<String>();
+		
+		@Override
+		public synchronized void serviceRemoved(Object service) {
+			events.add("-" + service);
+		}
+		
+		@Override
+		public synchronized void serviceAdded(Object service) {
+			events.add("+" + service);
+		}
+		
+		@Override
+		public synchronized void servicesChanged(Collection<Object> added,
+				Collection<Object> removed) {
+			events.add("+" + added + "-" + removed);
+		}
+		
+		public synchronized List<String> getEvents() {
+			return new ArrayList<String>(events);
+		}
+	
+	}
+	
+	private TestBundleContext registry;
+	
+	/**
+	 * Create an empty service registry
+	 */
+	@Before
+	public void setUp() {
+		registry = new TestBundleContext();
+	}
+	
+	/**
+	 * Test that changes within the coalescing window are applied together
+	 * when coalescing is disabled, before changes that follow
+	 */
+	@Test
+	public void testCoalescing() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		RecordingListener listener = new RecordingListener();
+		tracker.addListener(listener);
+		
+		tracker.setCoalescingWindow(1, TimeUnit.HOURS);
+		TestServiceReference<Object> a = registry.register(Object.class, "a");
+		registry.register(Object.class, "b");
+		TestServiceReference<Object> c = registry.register(Object.class, "c");
+		registry.unregister(c);
+		Assert.assertTrue(tracker.getServices().isEmpty());
+		Assert.assertTrue(listener.getEvents().isEmpty());
+		Assert.assertEquals(0, registry.getUseCount(c));
+		
+		tracker.setCoalescingWindow(0, TimeUnit.MILLISECONDS);
+		Assert.assertEquals(2, tracker.getServices().size());
+		registry.unregister(a);
+		Assert.assertEquals(1, tracker.getServices().size());
+		Assert.assertEquals("[+[a, b]-[], -a]", listener.getEvents().toString());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that a service unregistered within the coalescing window is
+	 * removed and released right away, only the notification is coalesced
+	 */
+	@Test
+	public void testRemoveWhileCoalescing() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		RecordingListener listener = new RecordingListener();
+		tracker.addListener(listener);
+		TestServiceReference<Object> a = registry.register(Object.class, "a");
+		registry.register(Object.class, "b");
+		Assert.assertEquals(1, registry.getUseCount(a));
+		
+		tracker.setCoalescingWindow(1, TimeUnit.HOURS);
+		registry.unregister(a);
+		Assert.assertEquals(Collections.<Object>singletonList("b"),
+				new ArrayList<Object>(tracker.getServices()));
+		Assert.assertEquals(0, registry.getUseCount(a));
+		Assert.assertEquals("[+a, +b]", listener.getEvents().toString());
+		
+		tracker.setCoalescingWindow(0, TimeUnit.MILLISECONDS);
+		Assert.assertEquals("[+a, +b, +[]-[a]]", listener.getEvents().toString());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that modifications re-order the snapshot and update the property
+	 * indexes without obtaining the service again, and a service no longer
+	 * matching the filter is removed
+	 * 
+	 * @throws InvalidSyntaxException if the filter is invalid
+	 */
+	@Test
+	public void testModified() throws InvalidSyntaxException {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class,
+				FrameworkUtil.createFilter("(kind=worker)"));
+		tracker.addIndex("lang");
+		tracker.start(registry.getContext());
+		RecordingListener listener = new RecordingListener();
+		tracker.addListener(listener);
+		
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("kind", "worker"), "a");
+		TestServiceReference<Object> b = new TestServiceReference<Object>(Object.class)
+				.setProperty("kind", "worker")
+				.setProperty(Constants.SERVICE_RANKING, -1);
+		registry.register(b, "b");
+		Assert.assertEquals(Arrays.<Object>asList("a", "b"),
+				new ArrayList<Object>(tracker.getServices()));
+		
+		registry.modify(b, Constants.SERVICE_RANKING, 10);
+		Assert.assertEquals(Arrays.<Object>asList("b", "a"),
+				new ArrayList<Object>(tracker.getServices()));
+		Assert.assertEquals(1, registry.getUseCount(b));
+		
+		registry.modify(b, "lang", "de");
+		Assert.assertEquals("b", tracker.getService("lang", "de"));
+		Assert.assertEquals(1, registry.getUseCount(b));
+		
+		registry.modify(b, "kind", "other");
+		Assert.assertEquals(Collections.<Object>singletonList("a"),
+				new ArrayList<Object>(tracker.getServices()));
+		Assert.assertNull(tracker.getService("lang", "de"));
+		Assert.assertEquals(0, registry.getUseCount(b));
+		Assert.assertEquals("[+a, +b, -b]", listener.getEvents().toString());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that snapshots are ordered by ranking, immutable and unaffected
+	 * by later changes, and only rebuilt on changes
+	 */
+	@Test
+	public void testSnapshot() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		
+		registry.register(Object.class, "a");
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, 10), "b");
+		ServiceSnapshot<Object> snapshot = tracker.getServices();
+		Assert.assertSame(snapshot, tracker.getServices());
+		Assert.assertEquals(Arrays.<Object>asList("b", "a"), new ArrayList<Object>(snapshot));
+		
+		try {
+			snapshot.add("c");
+			Assert.fail("Expected an exception");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		try {
+			Iterator<Object> it = snapshot.iterator();
+			it.next();
+			it.remove();
+			Assert.fail("Expected an exception");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		
+		registry.register(Object.class, "c");
+		ServiceSnapshot<Object> next = tracker.getServices();
+		Assert.assertNotSame(snapshot, next);
+		Assert.assertTrue(next.getVersion() > snapshot.getVersion());
+		Assert.assertEquals(2, snapshot.size());
+		Assert.assertEquals(3, next.size());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that the size and the set operations of a lazy snapshot agree
+	 * with its iteration if a service is not available
+	 */
+	@Test
+	public void testLazyUnavailable() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class,
+				null, true);
+		tracker.start(registry.getContext());
+		
+		registry.register(Object.class, "a");
+		registry.register(Object.class, new PrototypeServiceFactory<Object>() {
+			
+			@Override
+			public Object getService(Bundle bundle, ServiceRegistration<Object> registration) {
+				// not available
+				return null;
+			}
+			
+			@Override
+			public void ungetService(Bundle bundle, ServiceRegistration<Object> registration,
+					Object service) {
+				// nothing to do
+			}
+		
+		});
+		
+		ServiceSnapshot<Object> snapshot = tracker.getServices();
+		Assert.assertEquals(2, snapshot.getReferenceCount());
+		Assert.assertEquals(1, snapshot.size());
+		Assert.assertFalse(snapshot.isEmpty());
+		Assert.assertTrue(snapshot.contains("a"));
+		Set<Object> expected = Collections.<Object>singleton("a");
+		Assert.assertEquals(expected, snapshot);
+		Assert.assertEquals(snapshot, expected);
+		Assert.assertEquals(expected.hashCode(), snapshot.hashCode());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that a lazy tracker only obtains services on first access and
+	 * releases services that were not accessed within the idle timeout
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testLazy() throws InterruptedException {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class,
+				null, true);
+		tracker.start(registry.getContext());
+		
+		TestServiceReference<Object> a = registry.register(Object.class, "a");
+		Assert.assertEquals(1, tracker.getServices().getReferenceCount());
+		Assert.assertEquals(0, registry.getUseCount(a));
+		
+		Assert.assertEquals("a", tracker.getServices().iterator().next());
+		Assert.assertEquals(1, registry.getUseCount(a));
+		Assert.assertEquals("a", tracker.getServices().iterator().next());
+		Assert.assertEquals(1, registry.getUseCount(a));
+		
+		tracker.setIdleTimeout(50, TimeUnit.MILLISECONDS);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (registry.getUseCount(a) > 0 && System.nanoTime() < end) {
+			Thread.sleep(20);
+		}
+		Assert.assertEquals(0, registry.getUseCount(a));
+		
+		// obtained anew on the next access
+		tracker.setIdleTimeout(0, TimeUnit.MILLISECONDS);
+		Assert.assertEquals("a", tracker.getServices().iterator().next());
+		Assert.assertEquals(1, registry.getUseCount(a));
+		
+		registry.unregister(a);
+		Assert.assertTrue(tracker.getServices().isEmpty());
+		Assert.assertEquals(0, registry.getUseCount(a));
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that indexed and unindexed lookups by property value find the
+	 * same services, including the values of multi-valued properties, and
+	 * that the index follows property modifications
+	 */
+	@Test
+	public void testPropertyIndex() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("lang", "de"), "a");
+		TestServiceReference<Object> b = new TestServiceReference<Object>(Object.class)
+				.setProperty("lang", new String[] { "de", "en" })
+				.setProperty(Constants.SERVICE_RANKING, 10);
+		registry.register(b, "b");
+		registry.register(Object.class, "c");
+		
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals(Arrays.<Object>asList("b", "a"),
+					new ArrayList<Object>(tracker.getServices("lang", "de")));
+			Assert.assertEquals(Collections.<Object>singletonList("b"),
+					new ArrayList<Object>(tracker.getServices("LANG", "en")));
+			Assert.assertTrue(tracker.getServices("lang", "fr").isEmpty());
+			Assert.assertEquals("b", tracker.getService("lang", "de"));
+			Assert.assertNull(tracker.getService("lang", "fr"));
+			
+			// the same results once indexed
+			tracker.addIndex("Lang");
+		}
+		
+		registry.modify(b, "lang", "fr");
+		Assert.assertEquals(Collections.<Object>singletonList("a"),
+				new ArrayList<Object>(tracker.getServices("lang", "de")));
+		Assert.assertTrue(tracker.getServices("lang", "en").isEmpty());
+		Assert.assertEquals("b", tracker.getService("lang", "fr"));
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that a quorum wait is completed by the registration that
+	 * fulfills the quorum, counting only the services matching its filter
+	 * 
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testQuorum() throws Exception {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		
+		Filter filter = FrameworkUtil.createFilter("(kind=worker)");
+		ListenableFuture<Set<Object>> future = tracker.asyncWaitForServices(2, filter, null);
+		ListenableFuture<Set<Object>> cancelled = tracker.asyncWaitForServices(1, null, null);
+		Assert.assertTrue(cancelled.cancel(false));
+		
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("kind", "worker"), "a");
+		registry.register(Object.class, "b");
+		Assert.assertFalse(future.isDone());
+		Assert.assertNull(tracker.waitForServices(2, filter, 50, TimeUnit.MILLISECONDS));
+		
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("kind", "worker"), "c");
+		Assert.assertTrue(future.isDone());
+		Assert.assertEquals(new HashSet<Object>(Arrays.asList("a", "c")), future.get());
+		Assert.assertTrue(cancelled.isCancelled());
+		
+		// fulfilled quorums complete directly
+		Assert.assertEquals(3, tracker.waitForServices(3, null, 0, TimeUnit.SECONDS).size());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that stopping the tracker cancels pending quorum waits
+	 */
+	@Test
+	public void testStopCancelsWaits() {
+		MultiServiceTracker<Object> tracker = new MultiServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		
+		ListenableFuture<Set<Object>> future = tracker.asyncWaitForServices(1, null, null);
+		tracker.stop();
+		Assert.assertTrue(future.isCancelled());
+		Assert.assertEquals(0, tracker.getPendingWaits());
+	}
+
+}
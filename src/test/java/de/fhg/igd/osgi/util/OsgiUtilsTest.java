@@ -0,0 +1,167 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.fhg.igd.osgi.util.OsgiUtils.Condition;
+
+/**
+ * Tests for the service waits of {@link OsgiUtils}, run against an
+ * {@link OsgiUtilsActivator} started on a {@link TestBundleContext}
+ */
+public class OsgiUtilsTest {
+	
+	private TestBundleContext registry;
+	
+	private OsgiUtilsActivator activator;
+	
+	/**
+	 * Start the activator on an empty service registry
+	 * 
+	 * @throws Exception if starting the activator fails
+	 */
+	@Before
+	public void setUp() throws Exception {
+		registry = new TestBundleContext();
+		activator = new OsgiUtilsActivator();
+		activator.start(registry.getContext());
+	}
+	
+	/**
+	 * Stop the activator if the test did not stop it
+	 * 
+	 * @throws Exception if stopping the activator fails
+	 */
+	@After
+	public void tearDown() throws Exception {
+		if (activator != null) {
+			activator.stop(registry.getContext());
+		}
+	}
+	
+	/**
+	 * Test that the all-of future is completed when the last service type
+	 * is registered
+	 * 
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testWaitForAllServices() throws Exception {
+		ListenableFuture<AvailableServices> future = OsgiUtils.asyncWaitForAllServices(
+				Runnable.class, CharSequence.class);
+		Assert.assertFalse(future.isDone());
+		
+		Runnable runnable = new Thread();
+		registry.register(Runnable.class, runnable);
+		Assert.assertFalse(future.isDone());
+		
+		registry.register(CharSequence.class, "text");
+		Assert.assertTrue(future.isDone());
+		AvailableServices services = future.get();
+		Assert.assertTrue(services.isComplete());
+		Assert.assertSame(runnable, services.getService(Runnable.class));
+		Assert.assertEquals("text", services.getService(CharSequence.class));
+	}
+	
+	/**
+	 * Test that the any-of future is completed by the first service type
+	 * registered and the other types are reported as missing
+	 * 
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testWaitForAnyService() throws Exception {
+		ListenableFuture<AvailableServices> future = OsgiUtils.asyncWaitForAnyService(
+				Runnable.class, CharSequence.class);
+		Assert.assertFalse(future.isDone());
+		
+		registry.register(CharSequence.class, "text");
+		Assert.assertTrue(future.isDone());
+		AvailableServices services = future.get();
+		Assert.assertFalse(services.isComplete());
+		Assert.assertEquals("text", services.getService(CharSequence.class));
+		Assert.assertTrue(services.getMissingTypes().contains(Runnable.class));
+	}
+	
+	/**
+	 * Test that a blocking all-of wait reports the missing service types
+	 * when the timeout elapses
+	 */
+	@Test
+	public void testWaitForAllServicesTimeout() {
+		registry.register(CharSequence.class, "text");
+		
+		AvailableServices services = OsgiUtils.waitForAllServices(50, TimeUnit.MILLISECONDS,
+				Runnable.class, CharSequence.class);
+		Assert.assertFalse(services.isComplete());
+		Assert.assertEquals("text", services.getService(CharSequence.class));
+		Assert.assertEquals(1, services.getMissingTypes().size());
+		Assert.assertTrue(services.getMissingTypes().contains(Runnable.class));
+	}
+	
+	/**
+	 * Test that a timed wait blocked when the activator is stopped returns
+	 * instead of waiting for the timeout the discarded timer would signal
+	 * 
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testStopWhileWaiting() throws Exception {
+		final CountDownLatch waiting = new CountDownLatch(1);
+		final AtomicReference<Boolean> result = new AtomicReference<Boolean>();
+		Thread waiter = new Thread() {
+			@Override
+			public void run() {
+				try {
+					result.set(OsgiUtils.waitUntil(new Condition() {
+						@Override
+						public boolean evaluate() {
+							waiting.countDown();
+							return false;
+						}
+					}, 1, TimeUnit.HOURS));
+				} catch (InterruptedException e) {
+					// result stays empty
+				}
+			}
+		};
+		waiter.start();
+		Assert.assertTrue(waiting.await(5, TimeUnit.SECONDS));
+		Thread.sleep(50);
+		
+		activator.stop(registry.getContext());
+		activator = null;
+		
+		waiter.join(5000);
+		Assert.assertFalse("Wait still blocked", waiter.isAlive());
+		Assert.assertEquals(Boolean.FALSE, result.get());
+	}
+
+}
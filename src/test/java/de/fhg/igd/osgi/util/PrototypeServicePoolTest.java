@@ -0,0 +1,182 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+/**
+ * Tests for {@link PrototypeServicePool}
+ */
+public class PrototypeServicePoolTest {
+	
+	/**
+	 * Factory creating numbered instances
+	 */
+	private static class CountingFactory implements PrototypeServiceFactory<Object> {
+		
+		private final AtomicInteger count = new AtomicInteger();
+		
+		@Override
+		public Object getService(Bundle bundle, ServiceRegistration<Object> registration) {
+			return "instance" + count.incrementAndGet();
+		}
+		
+		@Override
+		public void ungetService(Bundle bundle, ServiceRegistration<Object> registration,
+				Object service) {
+			// nothing to do
+		}
+	
+	}
+	
+	private TestBundleContext registry;
+	
+	private PrototypeServicePool<Object> pool;
+	
+	/**
+	 * Start a pool with two instances per service
+	 */
+	@Before
+	public void setUp() {
+		registry = new TestBundleContext();
+		pool = new PrototypeServicePool<Object>(Object.class, null, 2);
+		pool.start(registry.getContext());
+	}
+	
+	/**
+	 * Stop the pool
+	 */
+	@After
+	public void tearDown() {
+		pool.stop();
+	}
+	
+	/**
+	 * Test that returned instances are reused and the pool size is bounded
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testBorrowRelease() throws InterruptedException {
+		Assert.assertNull(pool.borrow());
+		registry.register(Object.class, new CountingFactory());
+		
+		Object first = pool.borrow();
+		Object second = pool.borrow();
+		Assert.assertEquals("instance1", first);
+		Assert.assertEquals("instance2", second);
+		Assert.assertEquals(2, pool.getBorrowedCount());
+		
+		// exhausted
+		Assert.assertNull(pool.borrow());
+		Assert.assertNull(pool.borrow(10, TimeUnit.MILLISECONDS));
+		
+		pool.release(first);
+		Assert.assertEquals(1, pool.getIdleCount());
+		Assert.assertSame(first, pool.borrow());
+		Assert.assertEquals(0, pool.getIdleCount());
+		
+		pool.release(second);
+		pool.release(first);
+		Assert.assertEquals(2, pool.getIdleCount());
+		
+		// the most recently returned instance is reused first
+		Assert.assertSame(first, pool.borrow());
+		Assert.assertSame(second, pool.borrow());
+		pool.release(first);
+		pool.release(second);
+	}
+	
+	/**
+	 * Test that releasing an instance that was not borrowed fails
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testReleaseUnknown() {
+		pool.release("unknown");
+	}
+	
+	/**
+	 * Test that a waiting thread gets an instance that is returned
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testBorrowWait() throws InterruptedException {
+		registry.register(Object.class, new CountingFactory());
+		final Object first = pool.borrow();
+		Object second = pool.borrow();
+		
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(50);
+				} catch (InterruptedException e) {
+					// release right away
+				}
+				pool.release(first);
+			}
+		}.start();
+		
+		Assert.assertSame(first, pool.borrow(5, TimeUnit.SECONDS));
+		pool.release(first);
+		pool.release(second);
+	}
+	
+	/**
+	 * Test that idle instances are released after the idle timeout and
+	 * instances of unregistered services when they are returned
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testIdleAndUnregister() throws InterruptedException {
+		TestServiceReference<Object> reference = registry.register(Object.class,
+				new CountingFactory());
+		Object first = pool.borrow();
+		Object second = pool.borrow();
+		pool.release(first);
+		
+		pool.setIdleTimeout(10, TimeUnit.MILLISECONDS);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (!registry.getReleasedInstances().contains(first) && System.nanoTime() < end) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(0, pool.getIdleCount());
+		Assert.assertTrue(registry.getReleasedInstances().contains(first));
+		
+		registry.unregister(reference);
+		Assert.assertFalse(registry.getReleasedInstances().contains(second));
+		pool.release(second);
+		Assert.assertTrue(registry.getReleasedInstances().contains(second));
+		Assert.assertEquals(0, registry.getUseCount(reference));
+		Assert.assertNull(pool.borrow());
+	}
+
+}
@@ -0,0 +1,86 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.TreeSet;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+/**
+ * Tests for {@link RankedReference}
+ */
+public class RankedReferenceTest {
+	
+	/**
+	 * Test that references are ordered by ranking, highest first, and for
+	 * equal rankings by service ID, lowest first
+	 */
+	@Test
+	public void testOrder() {
+		TestServiceReference<Object> plain = new TestServiceReference<Object>(Object.class);
+		TestServiceReference<Object> plainLater = new TestServiceReference<Object>(Object.class);
+		TestServiceReference<Object> high = new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, 10);
+		TestServiceReference<Object> low = new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, -5);
+		
+		TreeSet<RankedReference<Object>> ordered = new TreeSet<RankedReference<Object>>();
+		for (TestServiceReference<Object> reference : Arrays.asList(low, plainLater, high, plain)) {
+			ordered.add(new RankedReference<Object>(reference));
+		}
+		
+		Iterator<RankedReference<Object>> it = ordered.iterator();
+		Assert.assertSame(high, it.next().getReference());
+		Assert.assertSame(plain, it.next().getReference());
+		Assert.assertSame(plainLater, it.next().getReference());
+		Assert.assertSame(low, it.next().getReference());
+	}
+	
+	/**
+	 * Test that a ranking that is not an integer is treated as zero, like
+	 * the framework does
+	 */
+	@Test
+	public void testInvalidRanking() {
+		TestServiceReference<Object> reference = new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, 10L);
+		Assert.assertEquals(0, new RankedReference<Object>(reference).getRanking());
+	}
+	
+	/**
+	 * Test that the ranking is captured and changes are detected
+	 */
+	@Test
+	public void testRankingChanged() {
+		TestServiceReference<Object> reference = new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, 1);
+		RankedReference<Object> ranked = new RankedReference<Object>(reference);
+		Assert.assertFalse(ranked.isRankingChanged());
+		
+		reference.setProperty(Constants.SERVICE_RANKING, 2);
+		Assert.assertTrue(ranked.isRankingChanged());
+		Assert.assertEquals(1, ranked.getRanking());
+	}
+
+}
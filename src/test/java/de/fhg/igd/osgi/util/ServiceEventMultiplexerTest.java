@@ -0,0 +1,129 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Tests for {@link ServiceEventMultiplexer}
+ */
+public class ServiceEventMultiplexerTest {
+	
+	private TestBundleContext registry;
+	
+	private ServiceEventMultiplexer multiplexer;
+	
+	/**
+	 * Open a multiplexer on an empty service registry
+	 */
+	@Before
+	public void setUp() {
+		registry = new TestBundleContext();
+		multiplexer = new ServiceEventMultiplexer(registry.getContext());
+		multiplexer.open();
+	}
+	
+	/**
+	 * Close the multiplexer
+	 */
+	@After
+	public void tearDown() {
+		multiplexer.close();
+	}
+	
+	/**
+	 * Test that events are delivered to the trackers of the service type
+	 * that match the service, through a single service listener
+	 * 
+	 * @throws InvalidSyntaxException if the filter is invalid
+	 */
+	@Test
+	public void testDeliver() throws InvalidSyntaxException {
+		MultiServiceTracker<Object> all = new MultiServiceTracker<Object>(Object.class);
+		MultiServiceTracker<Object> filtered = new MultiServiceTracker<Object>(Object.class,
+				FrameworkUtil.createFilter("(name=a)"));
+		MultiServiceTracker<Runnable> other = new MultiServiceTracker<Runnable>(Runnable.class);
+		all.start(registry.getContext(), multiplexer);
+		filtered.start(registry.getContext(), multiplexer);
+		other.start(registry.getContext(), multiplexer);
+		Assert.assertEquals(1, registry.getListenerCount());
+		
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("name", "a"), "a");
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("name", "b"), "b");
+		Assert.assertEquals(new HashSet<Object>(Arrays.asList("a", "b")),
+				new HashSet<Object>(all.getServices()));
+		Assert.assertEquals(Collections.<Object>singletonList("a"),
+				new ArrayList<Object>(filtered.getServices()));
+		Assert.assertTrue(other.getServices().isEmpty());
+		
+		// stopped trackers no longer receive events
+		filtered.stop();
+		registry.register(new TestServiceReference<Object>(Object.class)
+				.setProperty("name", "a"), "c");
+		Assert.assertTrue(filtered.getServices().isEmpty());
+		Assert.assertEquals(3, all.getServices().size());
+		Assert.assertEquals(1, registry.getListenerCount());
+		
+		all.stop();
+		other.stop();
+	}
+	
+	/**
+	 * Test that modifications are reported as
+	 * {@link org.osgi.framework.ServiceEvent#MODIFIED_ENDMATCH} to trackers
+	 * whose filter no longer matches the service
+	 * 
+	 * @throws InvalidSyntaxException if the filter is invalid
+	 */
+	@Test
+	public void testModifiedEndMatch() throws InvalidSyntaxException {
+		MultiServiceTracker<Object> filtered = new MultiServiceTracker<Object>(Object.class,
+				FrameworkUtil.createFilter("(name=a)"));
+		filtered.start(registry.getContext(), multiplexer);
+		
+		TestServiceReference<Object> reference = new TestServiceReference<Object>(Object.class)
+				.setProperty("name", "a");
+		registry.register(reference, "a");
+		Assert.assertEquals(1, filtered.getServices().size());
+		
+		registry.modify(reference, "name", "b");
+		Assert.assertTrue(filtered.getServices().isEmpty());
+		Assert.assertEquals(0, registry.getUseCount(reference));
+		
+		// matching again is reported as modification and adds the service
+		registry.modify(reference, "name", "a");
+		Assert.assertEquals(1, filtered.getServices().size());
+		
+		filtered.stop();
+	}
+
+}
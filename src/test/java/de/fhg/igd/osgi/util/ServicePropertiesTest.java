@@ -0,0 +1,112 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+/**
+ * Tests for {@link ServiceProperties}
+ */
+public class ServicePropertiesTest {
+	
+	/**
+	 * Test that keys are case insensitive and the original keys are kept
+	 */
+	@Test
+	public void testKeys() {
+		ServiceProperties properties = new ServiceProperties(
+				new TestServiceReference<Object>(Object.class).setProperty("Name", "test"));
+		
+		Assert.assertEquals("test", properties.get("name"));
+		Assert.assertEquals("test", properties.getString("NAME"));
+		Assert.assertTrue(properties.containsKey("nAmE"));
+		Assert.assertTrue(properties.getKeys().contains("Name"));
+		Assert.assertTrue(properties.getKeys().contains(Constants.SERVICE_ID));
+		Assert.assertFalse(properties.containsKey("missing"));
+	}
+	
+	/**
+	 * Test the conversions of the typed accessors
+	 */
+	@Test
+	public void testTypedAccessors() {
+		ServiceProperties properties = new ServiceProperties(
+				new TestServiceReference<Object>(Object.class)
+					.setProperty("int", 42)
+					.setProperty("intString", " 17 ")
+					.setProperty("long", 5000000000L)
+					.setProperty("double", "1.5")
+					.setProperty("flag", "TRUE")
+					.setProperty("invalid", "x"));
+		
+		Assert.assertEquals(42, properties.getInt("int", 0));
+		Assert.assertEquals(17, properties.getInt("intString", 0));
+		Assert.assertEquals(42L, properties.getLong("int", 0));
+		Assert.assertEquals(5000000000L, properties.getLong("long", 0));
+		Assert.assertEquals(1.5, properties.getDouble("double", 0), 0);
+		Assert.assertTrue(properties.getBoolean("flag", false));
+		
+		Assert.assertEquals(-1, properties.getInt("invalid", -1));
+		Assert.assertEquals(-1, properties.getInt("missing", -1));
+		Assert.assertTrue(properties.getBoolean("invalid", true));
+		Assert.assertEquals("default", properties.getString("missing", "default"));
+	}
+	
+	/**
+	 * Test that multi-valued properties are converted to lists and the view
+	 * is not affected by changes to the original values
+	 */
+	@Test
+	public void testMultipleValues() {
+		String[] array = new String[] { "a", "b" };
+		TestServiceReference<Object> reference = new TestServiceReference<Object>(Object.class)
+				.setProperty("array", array)
+				.setProperty("collection", Arrays.asList(1, 2))
+				.setProperty("single", "c");
+		ServiceProperties properties = new ServiceProperties(reference);
+		
+		array[0] = "changed";
+		Assert.assertEquals(Arrays.asList("a", "b"), properties.getStrings("array"));
+		Assert.assertEquals(Arrays.asList("1", "2"), properties.getStrings("collection"));
+		Assert.assertEquals(Collections.singletonList("c"), properties.getStrings("single"));
+		Assert.assertTrue(properties.getStrings("missing").isEmpty());
+		
+		// converted values are cached
+		Assert.assertSame(properties.getStrings("array"), properties.getStrings("array"));
+		Assert.assertSame(properties.getStrings("single"), properties.getStrings("single"));
+		
+		// array values are immutable lists
+		Assert.assertEquals(Arrays.asList("a", "b"), properties.get("array"));
+		try {
+			((List<?>) properties.get("array")).clear();
+			Assert.fail("Expected an exception");
+		} catch (UnsupportedOperationException e) {
+			// expected
+		}
+		Assert.assertSame(properties.get("array"), properties.get("array"));
+	}
+
+}
@@ -0,0 +1,365 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+
+/**
+ * Tests for {@link ServiceProxy}
+ */
+public class ServiceProxyTest {
+	
+	/**
+	 * Service interface for the tests
+	 */
+	public interface Calculator {
+		
+		public String getName();
+		
+		public long add(int a, long b);
+		
+		public double scale(double value, float factor);
+		
+		public void check(boolean valid) throws IOException;
+	
+	}
+	
+	/**
+	 * Service interface covering further method kinds for the tests
+	 */
+	public interface Codec {
+		
+		public String getName();
+		
+		public byte[] encode(String value);
+		
+		public String[] split(String value, char separator);
+		
+		public boolean accept(byte b, short s, char c);
+		
+		public long sum(long a, double b, int c, float d);
+		
+		public Object[] echo(Object... values);
+		
+		public void reset();
+		
+		public void reject(String message);
+		
+		public default String describe() {
+			return "codec " + getName();
+		}
+	
+	}
+	
+	/**
+	 * Named codec implementation, counting {@link Codec#reset()} calls
+	 */
+	private static class NamedCodec implements Codec {
+		
+		private final String name;
+		
+		private int resets = 0;
+		
+		public NamedCodec(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public byte[] encode(String value) {
+			return value.getBytes(StandardCharsets.UTF_8);
+		}
+		
+		@Override
+		public String[] split(String value, char separator) {
+			return value.split(String.valueOf(separator));
+		}
+		
+		@Override
+		public boolean accept(byte b, short s, char c) {
+			return b + s == c;
+		}
+		
+		@Override
+		public long sum(long a, double b, int c, float d) {
+			return a + (long) b + c + (long) d;
+		}
+		
+		@Override
+		public Object[] echo(Object... values) {
+			return values;
+		}
+		
+		@Override
+		public void reset() {
+			resets++;
+		}
+		
+		@Override
+		public void reject(String message) {
+			throw new IllegalArgumentException(message);
+		}
+	
+	}
+	
+	/**
+	 * Named calculator implementation
+	 */
+	private static class NamedCalculator implements Calculator {
+		
+		private final String name;
+		
+		public NamedCalculator(String name) {
+			this.name = name;
+		}
+		
+		@Override
+		public String getName() {
+			return name;
+		}
+		
+		@Override
+		public long add(int a, long b) {
+			return a + b;
+		}
+		
+		@Override
+		public double scale(double value, float factor) {
+			return value * factor;
+		}
+		
+		@Override
+		public void check(boolean valid) throws IOException {
+			if (!valid) {
+				throw new IOException(name);
+			}
+		}
+	
+	}
+	
+	/**
+	 * Test that calls are delegated to the bound service, with primitive
+	 * arguments and return values, and exceptions are passed on unchanged
+	 * 
+	 * @throws IOException if the test fails
+	 */
+	@Test
+	public void testDelegate() throws IOException {
+		TestBundleContext registry = new TestBundleContext();
+		registry.register(Calculator.class, new NamedCalculator("a"));
+		SingleServiceTracker<Calculator> tracker = new SingleServiceTracker<Calculator>(
+				Calculator.class);
+		tracker.start(registry.getContext());
+		
+		Calculator proxy = ServiceProxy.create(Calculator.class, tracker).getProxy();
+		Assert.assertEquals("a", proxy.getName());
+		Assert.assertEquals(5L, proxy.add(2, 3L));
+		Assert.assertEquals(3.0, proxy.scale(1.5, 2f), 0.0);
+		proxy.check(true);
+		try {
+			proxy.check(false);
+			Assert.fail("Expected an exception");
+		} catch (IOException e) {
+			Assert.assertEquals("a", e.getMessage());
+		}
+		Assert.assertEquals(proxy, proxy);
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that calls are delegated with array, <code>void</code> and default
+	 * methods, arguments of each primitive type and unchecked exceptions
+	 */
+	@Test
+	public void testMethodKinds() {
+		TestBundleContext registry = new TestBundleContext();
+		NamedCodec a = new NamedCodec("a");
+		registry.register(Codec.class, a);
+		SingleServiceTracker<Codec> tracker = new SingleServiceTracker<Codec>(Codec.class);
+		tracker.start(registry.getContext());
+		
+		Codec proxy = ServiceProxy.create(Codec.class, tracker).getProxy();
+		Assert.assertArrayEquals(new byte[] { 'a', 'b' }, proxy.encode("ab"));
+		Assert.assertArrayEquals(new String[] { "x", "y" }, proxy.split("x;y", ';'));
+		Assert.assertTrue(proxy.accept((byte) 1, (short) 64, 'A'));
+		Assert.assertFalse(proxy.accept((byte) 1, (short) 1, 'A'));
+		Assert.assertEquals(10L, proxy.sum(1L, 2.0, 3, 4f));
+		Assert.assertArrayEquals(new Object[] { "x", 1 }, proxy.echo("x", 1));
+		proxy.reset();
+		proxy.reset();
+		Assert.assertEquals(2, a.resets);
+		Assert.assertEquals("codec a", proxy.describe());
+		try {
+			proxy.reject("invalid");
+			Assert.fail("Expected an exception");
+		} catch (IllegalArgumentException e) {
+			Assert.assertEquals("invalid", e.getMessage());
+		}
+		
+		// a service overriding the default method
+		TestServiceReference<Codec> b = new TestServiceReference<Codec>(Codec.class)
+				.setProperty(Constants.SERVICE_RANKING, 10);
+		registry.register(b, new NamedCodec("b") {
+			
+			@Override
+			public String describe() {
+				return "custom";
+			}
+		
+		});
+		Assert.assertEquals("custom", proxy.describe());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that a service change while the proxy is created is not
+	 * overwritten by the service retrieved before
+	 */
+	@Test
+	public void testChangeDuringCreate() {
+		final TestBundleContext registry = new TestBundleContext();
+		registry.register(Calculator.class, new NamedCalculator("a"));
+		SingleServiceTracker<Calculator> tracker = new SingleServiceTracker<Calculator>(
+				Calculator.class) {
+			
+			private boolean first = true;
+			
+			@Override
+			public Calculator getService() {
+				Calculator service = super.getService();
+				if (first) {
+					first = false;
+					registry.register(new TestServiceReference<Calculator>(Calculator.class)
+							.setProperty(Constants.SERVICE_RANKING, 10),
+							new NamedCalculator("b"));
+				}
+				return service;
+			}
+		
+		};
+		tracker.start(registry.getContext());
+		
+		Calculator proxy = ServiceProxy.create(Calculator.class, tracker).getProxy();
+		Assert.assertEquals("b", proxy.getName());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that the proxy is rebound to a higher ranked service and calling
+	 * it while no service is bound fails
+	 */
+	@Test
+	public void testRebind() {
+		TestBundleContext registry = new TestBundleContext();
+		TestServiceReference<Calculator> a = registry.register(Calculator.class,
+				new NamedCalculator("a"));
+		SingleServiceTracker<Calculator> tracker = new SingleServiceTracker<Calculator>(
+				Calculator.class);
+		tracker.start(registry.getContext());
+		Calculator proxy = ServiceProxy.create(Calculator.class, tracker).getProxy();
+		Assert.assertEquals("a", proxy.getName());
+		
+		TestServiceReference<Calculator> b = new TestServiceReference<Calculator>(
+				Calculator.class);
+		b.setProperty(Constants.SERVICE_RANKING, 10);
+		registry.register(b, new NamedCalculator("b"));
+		Assert.assertEquals("b", proxy.getName());
+		
+		registry.unregister(b);
+		Assert.assertEquals("a", proxy.getName());
+		
+		registry.unregister(a);
+		try {
+			proxy.getName();
+			Assert.fail("Expected an exception");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+		
+		registry.register(Calculator.class, new NamedCalculator("c"));
+		Assert.assertEquals("c", proxy.getName());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that the proxy stays usable while a higher ranked service
+	 * replaces the bound one
+	 */
+	@Test
+	public void testNoGapOnRebind() {
+		TestBundleContext registry = new TestBundleContext();
+		registry.register(Calculator.class, new NamedCalculator("a"));
+		SingleServiceTracker<Calculator> tracker = new SingleServiceTracker<Calculator>(
+				Calculator.class);
+		tracker.start(registry.getContext());
+		final Calculator proxy = ServiceProxy.create(Calculator.class, tracker).getProxy();
+		
+		final List<String> seen = new ArrayList<String>();
+		tracker.addListener(new SingleServiceListener<Calculator>() {
+			
+			@Override
+			public void beforeServiceRemove(Calculator service) {
+				seen.add(proxy.getName());
+			}
+			
+			@Override
+			public void afterServiceChange(Calculator service) {
+				if (service != null) {
+					seen.add(proxy.getName());
+				}
+			}
+		
+		});
+		
+		TestServiceReference<Calculator> b = new TestServiceReference<Calculator>(
+				Calculator.class);
+		b.setProperty(Constants.SERVICE_RANKING, 10);
+		registry.register(b, new NamedCalculator("b"));
+		
+		Assert.assertEquals("[a, b]", seen.toString());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that only interfaces can be proxied
+	 */
+	@Test(expected = IllegalArgumentException.class)
+	public void testNoInterface() {
+		ServiceProxy.create(NamedCalculator.class,
+				new SingleServiceTracker<NamedCalculator>(NamedCalculator.class));
+	}
+
+}
@@ -0,0 +1,195 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tests for the events delivered to a {@link ServiceTracker} while it scans
+ * the initial services on start
+ */
+public class ServiceTrackerStartTest {
+	
+	/**
+	 * Tracker recording the registered and deregistered services
+	 */
+	private static class RecordingTracker extends ServiceTracker<Object> {
+		
+		private final List<ServiceReference<Object>> registered = 
+				Collections.synchronizedList(new ArrayList<ServiceReference<Object>>());
+		
+		private final List<ServiceReference<Object>> deregistered = 
+				Collections.synchronizedList(new ArrayList<ServiceReference<Object>>());
+		
+		public RecordingTracker() {
+			super(Object.class);
+		}
+
+		@Override
+		protected void register(ServiceReference<Object> service) {
+			registered.add(service);
+		}
+
+		@Override
+		protected void deregister(ServiceReference<Object> service) {
+			deregistered.add(service);
+		}
+		
+	}
+	
+	/**
+	 * Test that a service unregistered while scanning is not added, even
+	 * though it is contained in the scan result
+	 */
+	@Test
+	public void testUnregisteredDuringScan() {
+		final RecordingTracker tracker = new RecordingTracker();
+		final ServiceReference<Object> a = new TestServiceReference<Object>(Object.class);
+		ServiceReference<Object> b = new TestServiceReference<Object>(Object.class);
+		
+		tracker.start(createContext(Arrays.asList(a, b), new Runnable() {
+			@Override
+			public void run() {
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, a));
+			}
+		}));
+		
+		Assert.assertEquals(Collections.singletonList(b), tracker.registered);
+		Assert.assertTrue(tracker.deregistered.isEmpty());
+		Assert.assertEquals(1, tracker.getTrackedCount());
+		Assert.assertTrue(tracker.isRunning());
+	}
+	
+	/**
+	 * Test that a service registered while scanning is added after the
+	 * scanned services, and a service reported both by an event and the
+	 * scan is added once
+	 */
+	@Test
+	public void testRegisteredDuringScan() {
+		final RecordingTracker tracker = new RecordingTracker();
+		final ServiceReference<Object> a = new TestServiceReference<Object>(Object.class);
+		final ServiceReference<Object> b = new TestServiceReference<Object>(Object.class);
+		
+		tracker.start(createContext(Arrays.asList(a), new Runnable() {
+			@Override
+			public void run() {
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, a));
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, b));
+			}
+		}));
+		
+		Assert.assertEquals(Arrays.asList(a, b), tracker.registered);
+		Assert.assertEquals(2, tracker.getTrackedCount());
+	}
+	
+	/**
+	 * Test that a scanned service whose properties stopped and started
+	 * matching again while scanning ends up tracked, the buffered events are
+	 * replayed in order
+	 */
+	@Test
+	public void testModifiedDuringScan() {
+		final RecordingTracker tracker = new RecordingTracker();
+		final ServiceReference<Object> a = new TestServiceReference<Object>(Object.class);
+		
+		tracker.start(createContext(Arrays.asList(a), new Runnable() {
+			@Override
+			public void run() {
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED_ENDMATCH, a));
+				tracker.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED, a));
+			}
+		}));
+		
+		Assert.assertEquals(1, tracker.getTrackedCount());
+		Assert.assertEquals(a, tracker.registered.get(tracker.registered.size() - 1));
+		Assert.assertEquals(1, tracker.registered.size() - tracker.deregistered.size());
+	}
+	
+	/**
+	 * Test that events after the start are handled right away and stopping
+	 * deregisters the remaining services
+	 */
+	@Test
+	public void testEventsAfterStart() {
+		RecordingTracker tracker = new RecordingTracker();
+		ServiceReference<Object> a = new TestServiceReference<Object>(Object.class);
+		ServiceReference<Object> b = new TestServiceReference<Object>(Object.class);
+		
+		tracker.start(createContext(Arrays.asList(a), null));
+		tracker.serviceChanged(new ServiceEvent(ServiceEvent.REGISTERED, b));
+		tracker.serviceChanged(new ServiceEvent(ServiceEvent.UNREGISTERING, a));
+		
+		Assert.assertEquals(Arrays.asList(a, b), tracker.registered);
+		Assert.assertEquals(Collections.singletonList(a), tracker.deregistered);
+		
+		tracker.stop();
+		Assert.assertEquals(Arrays.asList(a, b), tracker.deregistered);
+		Assert.assertEquals(0, tracker.getTrackedCount());
+	}
+	
+	/**
+	 * Create a bundle context that returns the given references when the
+	 * tracker scans for services
+	 * 
+	 * @param scanned the references returned by the scan
+	 * @param duringScan called when the tracker scans, before the references
+	 *   are returned, may be <code>null</code>
+	 * @return the bundle context
+	 */
+	private static BundleContext createContext(final Collection<?> scanned,
+			final Runnable duringScan) {
+		return (BundleContext) Proxy.newProxyInstance(
+				ServiceTrackerStartTest.class.getClassLoader(),
+				new Class<?>[] { BundleContext.class }, new InvocationHandler() {
+			
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				switch (method.getName()) {
+				case "addServiceListener":
+				case "removeServiceListener":
+					return null;
+				case "getServiceReferences":
+					if (duringScan != null) {
+						duringScan.run();
+					}
+					return new ArrayList<Object>(scanned);
+				default:
+					throw new UnsupportedOperationException(method.getName());
+				}
+			}
+			
+		});
+	}
+
+}
@@ -0,0 +1,176 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+
+/**
+ * Tests for {@link ServiceTrackers}
+ */
+public class ServiceTrackersTest {
+	
+	private TestBundleContext registry;
+	
+	private TrackerRegistry<SingleServiceTracker<?>> trackers;
+	
+	private TrackerRegistry<MultiServiceTracker<?>> multiTrackers;
+	
+	private ServiceTrackers bean;
+	
+	/**
+	 * Open the tracker registries on an empty service registry
+	 */
+	@Before
+	public void setUp() {
+		registry = new TestBundleContext();
+		trackers = new TrackerRegistry<SingleServiceTracker<?>>() {
+			
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			protected SingleServiceTracker<?> createTracker(Class<?> serviceType,
+					Filter filter) {
+				return new SingleServiceTracker(serviceType, filter);
+			}
+		
+		};
+		multiTrackers = new TrackerRegistry<MultiServiceTracker<?>>() {
+			
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			protected MultiServiceTracker<?> createTracker(Class<?> serviceType,
+					Filter filter) {
+				return new MultiServiceTracker(serviceType, filter);
+			}
+		
+		};
+		trackers.open(registry.getContext(), null);
+		multiTrackers.open(registry.getContext(), null);
+		bean = new ServiceTrackers(new ServiceInstrumentation(), trackers, multiTrackers);
+	}
+	
+	/**
+	 * Close the tracker registries and disable the metrics
+	 */
+	@After
+	public void tearDown() {
+		TrackerMetrics.setEnabled(false);
+		trackers.close();
+		multiTrackers.close();
+	}
+	
+	/**
+	 * Get the statistics of the tracker with the given kind
+	 * 
+	 * @param kind the tracker kind
+	 * @return the statistics
+	 */
+	private ServiceTrackerStatistics getStatistics(String kind) {
+		for (ServiceTrackerStatistics statistics : bean.getTrackerStatistics()) {
+			if (statistics.getKind().equals(kind)) {
+				return statistics;
+			}
+		}
+		Assert.fail("No statistics for " + kind + " tracker");
+		return null;
+	}
+	
+	/**
+	 * Test that lookups, events and listener notifications are reported per
+	 * tracker while enabled, and the statistics are reset
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testStatistics() {
+		bean.setEnabled(true);
+		Assert.assertTrue(bean.isEnabled());
+		
+		SingleServiceTracker<Runnable> single =
+				(SingleServiceTracker<Runnable>) trackers.get(Runnable.class, null);
+		MultiServiceTracker<Runnable> multi =
+				(MultiServiceTracker<Runnable>) multiTrackers.get(Runnable.class, null);
+		Assert.assertEquals(2, bean.getTrackerCount());
+		single.addListener(new SingleServiceListener<Runnable>() {
+			
+			@Override
+			public void beforeServiceRemove(Runnable service) {
+				// ignore
+			}
+			
+			@Override
+			public void afterServiceChange(Runnable service) {
+				// ignore
+			}
+		
+		});
+		
+		Assert.assertNull(single.getService());
+		registry.register(Runnable.class, new Thread());
+		Assert.assertNotNull(single.getService());
+		Assert.assertNotNull(single.getService());
+		multi.getServices();
+		
+		ServiceTrackerStatistics statistics = getStatistics("single");
+		Assert.assertEquals(Runnable.class.getName(), statistics.getServiceType());
+		Assert.assertNull(statistics.getFilter());
+		Assert.assertEquals(1, statistics.getTrackedServices());
+		Assert.assertEquals(2, statistics.getLookupHits());
+		Assert.assertEquals(1, statistics.getLookupMisses());
+		Assert.assertEquals(1, statistics.getEventsProcessed());
+		Assert.assertEquals(1, statistics.getListenerNotifications());
+		Assert.assertTrue(statistics.getMillisSinceLastRebind() >= 0);
+		Assert.assertEquals(0, statistics.getPendingWaits());
+		Assert.assertEquals(0, statistics.getCompletedWaits());
+		
+		statistics = getStatistics("multi");
+		Assert.assertEquals(1, statistics.getTrackedServices());
+		Assert.assertEquals(1, statistics.getLookupHits());
+		Assert.assertEquals(0, statistics.getLookupMisses());
+		Assert.assertEquals(1, statistics.getEventsProcessed());
+		
+		bean.resetStatistics();
+		statistics = getStatistics("single");
+		Assert.assertEquals(0, statistics.getLookupHits());
+		Assert.assertEquals(0, statistics.getLookupMisses());
+		Assert.assertEquals(0, statistics.getEventsProcessed());
+		Assert.assertEquals(0, statistics.getListenerNotifications());
+		Assert.assertEquals(0, statistics.getMaxListenerLatencyMicros(), 0.0);
+		Assert.assertEquals(0, getStatistics("multi").getLookupHits());
+		
+		// nothing is recorded while disabled
+		bean.setEnabled(false);
+		Assert.assertFalse(bean.isEnabled());
+		registry.register(new TestServiceReference<Runnable>(Runnable.class)
+				.setProperty(Constants.SERVICE_RANKING, 10), new Thread());
+		single.getService();
+		multi.getServices();
+		statistics = getStatistics("single");
+		Assert.assertEquals(2, statistics.getTrackedServices());
+		Assert.assertEquals(0, statistics.getLookupHits());
+		Assert.assertEquals(0, statistics.getEventsProcessed());
+		Assert.assertEquals(0, statistics.getListenerNotifications());
+		Assert.assertEquals(0, getStatistics("multi").getLookupHits());
+	}
+
+}
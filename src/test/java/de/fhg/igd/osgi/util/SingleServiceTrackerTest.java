@@ -0,0 +1,479 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceRegistration;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+/**
+ * Tests for {@link SingleServiceTracker}
+ */
+public class SingleServiceTrackerTest {
+	
+	/**
+	 * Test that listeners are notified without holding the tracker lock, so
+	 * another thread can register a service while a listener blocks
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testNotifyOutsideLock() throws InterruptedException {
+		final TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Runnable> tracker = new SingleServiceTracker<Runnable>(
+				Runnable.class);
+		tracker.start(registry.getContext());
+		
+		final AtomicBoolean registered = new AtomicBoolean();
+		tracker.addListener(new SingleServiceListener<Runnable>() {
+			
+			@Override
+			public void beforeServiceRemove(Runnable service) {
+				// ignore
+			}
+			
+			@Override
+			public void afterServiceChange(Runnable service) {
+				if (registered.getAndSet(true)) {
+					return;
+				}
+				
+				// register another service from another thread and wait for it
+				final CountDownLatch done = new CountDownLatch(1);
+				new Thread() {
+					@Override
+					public void run() {
+						TestServiceReference<Runnable> other = new TestServiceReference<Runnable>(
+								Runnable.class);
+						other.setProperty(Constants.SERVICE_RANKING, -1);
+						registry.register(other, new Thread());
+						done.countDown();
+					}
+				}.start();
+				try {
+					Assert.assertTrue("Registration blocked by listener",
+							done.await(5, TimeUnit.SECONDS));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		
+		});
+		
+		Runnable service = new Thread();
+		TestServiceReference<Runnable> first = registry.register(Runnable.class, service);
+		Assert.assertTrue(registered.get());
+		Assert.assertSame(service, tracker.getService());
+		
+		// the other service was registered as candidate
+		registry.unregister(first);
+		Assert.assertNotNull(tracker.getService());
+		Assert.assertNotSame(service, tracker.getService());
+		
+		tracker.stop();
+	}
+
+	/**
+	 * Test that the per-thread instance of a replaced service is only
+	 * released when its thread asks for an instance again
+	 */
+	@Test
+	public void testRetireThreadInstances() {
+		TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Object> tracker = new SingleServiceTracker<Object>(Object.class);
+		tracker.setPerThreadInstances(4);
+		tracker.start(registry.getContext());
+		
+		registry.register(Object.class, new NamingFactory("a"));
+		Object first = tracker.getThreadInstance();
+		Assert.assertTrue(first.toString().startsWith("a"));
+		Assert.assertNotSame(tracker.getService(), first);
+		Assert.assertSame(first, tracker.getThreadInstance());
+		
+		TestServiceReference<Object> b = new TestServiceReference<Object>(Object.class);
+		b.setProperty(Constants.SERVICE_RANKING, 10);
+		registry.register(b, new NamingFactory("b"));
+		
+		// the thread may still be using its instance
+		Assert.assertFalse(registry.getReleasedInstances().contains(first));
+		
+		Object second = tracker.getThreadInstance();
+		Assert.assertTrue(second.toString().startsWith("b"));
+		Assert.assertTrue(registry.getReleasedInstances().contains(first));
+		
+		tracker.stop();
+		Assert.assertTrue(registry.getReleasedInstances().contains(second));
+	}
+	
+	/**
+	 * Test that a waiting thread is woken up by the registration of a
+	 * service and that a wait without service times out
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testWaitForService() throws InterruptedException {
+		final TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Runnable> tracker = new SingleServiceTracker<Runnable>(
+				Runnable.class);
+		tracker.start(registry.getContext());
+		
+		Assert.assertNull(tracker.waitForService(0, TimeUnit.SECONDS));
+		Assert.assertNull(tracker.waitForService(50, TimeUnit.MILLISECONDS));
+		
+		final Runnable service = new Thread();
+		new Thread() {
+			@Override
+			public void run() {
+				try {
+					Thread.sleep(100);
+				} catch (InterruptedException e) {
+					return;
+				}
+				registry.register(Runnable.class, service);
+			}
+		}.start();
+		
+		// woken up by the registration rather than the timeout
+		long start = System.nanoTime();
+		Assert.assertSame(service, tracker.waitForService(30, TimeUnit.SECONDS));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+		
+		// returns immediately while a service is bound
+		Assert.assertSame(service, tracker.waitForService(0, TimeUnit.SECONDS));
+		Assert.assertSame(service, tracker.waitForService());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that futures are completed by the service event that binds a
+	 * service, cancelled futures are not completed and futures created while
+	 * a service is bound are completed directly
+	 * 
+	 * @throws Exception if the test fails
+	 */
+	@Test
+	public void testAsyncWaitForService() throws Exception {
+		TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Runnable> tracker = new SingleServiceTracker<Runnable>(
+				Runnable.class);
+		tracker.start(registry.getContext());
+		
+		ListenableFuture<Runnable> future = tracker.asyncWaitForService(null);
+		ListenableFuture<Runnable> cancelled = tracker.asyncWaitForService(null);
+		final List<Runnable> executed = new ArrayList<Runnable>();
+		ListenableFuture<Runnable> withExecutor = tracker.asyncWaitForService(new Executor() {
+			@Override
+			public void execute(Runnable command) {
+				executed.add(command);
+			}
+		});
+		Assert.assertFalse(future.isDone());
+		Assert.assertTrue(cancelled.cancel(false));
+		
+		// completed on the thread delivering the event
+		Runnable service = new Thread();
+		registry.register(Runnable.class, service);
+		Assert.assertTrue(future.isDone());
+		Assert.assertSame(service, future.get());
+		Assert.assertTrue(cancelled.isCancelled());
+		
+		// completed by the executor
+		Assert.assertFalse(withExecutor.isDone());
+		Assert.assertEquals(1, executed.size());
+		executed.get(0).run();
+		Assert.assertSame(service, withExecutor.get());
+		
+		ListenableFuture<Runnable> bound = tracker.asyncWaitForService(null);
+		Assert.assertTrue(bound.isDone());
+		Assert.assertSame(service, bound.get());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that stopping the tracker cancels the pending futures
+	 */
+	@Test
+	public void testStopCancelsWaits() {
+		TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Runnable> tracker = new SingleServiceTracker<Runnable>(
+				Runnable.class);
+		tracker.start(registry.getContext());
+		
+		ListenableFuture<Runnable> future = tracker.asyncWaitForService(null);
+		tracker.stop();
+		Assert.assertTrue(future.isCancelled());
+		Assert.assertEquals(0, tracker.getPendingWaits());
+	}
+	
+	/**
+	 * Test that each wait for the service is recorded once, and waits that
+	 * did not have to wait or timed out are not recorded
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testWaitMetrics() throws InterruptedException {
+		TrackerMetrics.setEnabled(true);
+		try {
+			TestBundleContext registry = new TestBundleContext();
+			SingleServiceTracker<Runnable> tracker = new SingleServiceTracker<Runnable>(
+					Runnable.class);
+			tracker.start(registry.getContext());
+			TrackerMetrics metrics = tracker.getMetrics();
+			
+			Assert.assertNull(tracker.waitForService(10, TimeUnit.MILLISECONDS));
+			Assert.assertEquals(0, metrics.getWaits());
+			
+			ListenableFuture<Runnable> first = tracker.asyncWaitForService(null);
+			ListenableFuture<Runnable> second = tracker.asyncWaitForService(null);
+			registry.register(Runnable.class, new Thread());
+			Assert.assertTrue(first.isDone());
+			Assert.assertTrue(second.isDone());
+			Assert.assertEquals(2, metrics.getWaits());
+			
+			tracker.asyncWaitForService(null);
+			tracker.waitForService(10, TimeUnit.MILLISECONDS);
+			Assert.assertEquals(2, metrics.getWaits());
+			
+			tracker.stop();
+		} finally {
+			TrackerMetrics.setEnabled(false);
+		}
+	}
+	
+	/**
+	 * Test that a ranking change re-ranks the candidates in place, the bound
+	 * service is only replaced if another candidate now ranks first, and
+	 * other property changes keep the binding
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testModifiedRanking() throws InterruptedException {
+		TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Object> tracker = new SingleServiceTracker<Object>(Object.class);
+		tracker.start(registry.getContext());
+		final List<Object> changes = new ArrayList<Object>();
+		tracker.addListener(new SingleServiceListener<Object>() {
+			
+			@Override
+			public void beforeServiceRemove(Object service) {
+				// ignore
+			}
+			
+			@Override
+			public void afterServiceChange(Object service) {
+				changes.add(service);
+			}
+		
+		});
+		
+		TestServiceReference<Object> a = registry.register(Object.class, "a");
+		TestServiceReference<Object> b = new TestServiceReference<Object>(Object.class)
+				.setProperty(Constants.SERVICE_RANKING, -1);
+		registry.register(b, "b");
+		Assert.assertEquals("a", tracker.getService());
+		Assert.assertEquals(0, registry.getUseCount(b));
+		
+		// other properties do not affect the binding
+		registry.modify(a, "name", "x");
+		Assert.assertEquals("a", tracker.getService());
+		Assert.assertEquals(1, registry.getUseCount(a));
+		
+		// the second candidate now ranks first
+		registry.modify(b, Constants.SERVICE_RANKING, 10);
+		Assert.assertEquals("b", tracker.getService());
+		awaitUseCount(registry, a, 0);
+		Assert.assertEquals(1, registry.getUseCount(b));
+		
+		// still ranked first, the service is not obtained again
+		registry.modify(b, Constants.SERVICE_RANKING, 5);
+		Assert.assertEquals("b", tracker.getService());
+		Assert.assertEquals(1, registry.getUseCount(b));
+		
+		// re-ranked below the other candidate
+		registry.modify(b, Constants.SERVICE_RANKING, -5);
+		Assert.assertEquals("a", tracker.getService());
+		awaitUseCount(registry, b, 0);
+		Assert.assertEquals(Arrays.<Object>asList("a", "b", "a"), changes);
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Test that a replaced service is released by the thread unregistering
+	 * it, even if another thread replaced the binding
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testReleaseOnUnregister() throws InterruptedException {
+		final TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Object> tracker = new SingleServiceTracker<Object>(Object.class);
+		tracker.setLeaseDrainTimeout(10, TimeUnit.SECONDS);
+		tracker.start(registry.getContext());
+		final TestServiceReference<Object> a = registry.register(Object.class, "a");
+		ServiceLease<Object> lease = tracker.leaseService();
+		
+		// the thread binding the replacement is held up notifying listeners
+		final CountDownLatch notified = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		tracker.addListener(new SingleServiceListener<Object>() {
+			
+			@Override
+			public void beforeServiceRemove(Object service) {
+				// ignore
+			}
+			
+			@Override
+			public void afterServiceChange(Object service) {
+				notified.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		
+		});
+		Thread binder = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				registry.register(new TestServiceReference<Object>(Object.class)
+						.setProperty(Constants.SERVICE_RANKING, 10), "b");
+			}
+		});
+		binder.start();
+		Assert.assertTrue(notified.await(5, TimeUnit.SECONDS));
+		
+		Thread unregister = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				registry.unregister(a);
+			}
+		});
+		unregister.start();
+		proceed.countDown();
+		binder.join(5000);
+		
+		// the unregistering thread waits for the lease to be closed
+		unregister.join(200);
+		Assert.assertTrue(unregister.isAlive());
+		Assert.assertEquals(1, registry.getUseCount(a));
+		lease.close();
+		unregister.join(5000);
+		Assert.assertFalse(unregister.isAlive());
+		Assert.assertEquals(0, registry.getUseCount(a));
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Wait for the use count of a service to reach the given value, replaced
+	 * services are released in the background
+	 * 
+	 * @param registry the service registry
+	 * @param reference the service reference
+	 * @param count the expected use count
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private static void awaitUseCount(TestBundleContext registry,
+			TestServiceReference<?> reference, int count) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (registry.getUseCount(reference) != count && System.nanoTime() < end) {
+			Thread.sleep(10);
+		}
+		Assert.assertEquals(count, registry.getUseCount(reference));
+	}
+	
+	/**
+	 * Test that a service no longer matching the filter after a modification
+	 * is unbound, and bound again when it matches again
+	 * 
+	 * @throws InvalidSyntaxException if the filter is invalid
+	 */
+	@Test
+	public void testModifiedEndMatch() throws InvalidSyntaxException {
+		TestBundleContext registry = new TestBundleContext();
+		SingleServiceTracker<Object> tracker = new SingleServiceTracker<Object>(Object.class,
+				FrameworkUtil.createFilter("(name=a)"));
+		tracker.start(registry.getContext());
+		
+		TestServiceReference<Object> a = new TestServiceReference<Object>(Object.class)
+				.setProperty("name", "a");
+		registry.register(a, "a");
+		Assert.assertEquals("a", tracker.getService());
+		
+		registry.modify(a, "name", "b");
+		Assert.assertNull(tracker.getService());
+		Assert.assertEquals(0, registry.getUseCount(a));
+		
+		registry.modify(a, "name", "a");
+		Assert.assertEquals("a", tracker.getService());
+		
+		tracker.stop();
+	}
+	
+	/**
+	 * Factory creating instances named by a prefix and a counter
+	 */
+	private static class NamingFactory implements PrototypeServiceFactory<Object> {
+		
+		private final String prefix;
+		
+		private int count = 0;
+		
+		public NamingFactory(String prefix) {
+			this.prefix = prefix;
+		}
+		
+		@Override
+		public synchronized Object getService(Bundle bundle,
+				ServiceRegistration<Object> registration) {
+			return prefix + (++count);
+		}
+		
+		@Override
+		public void ungetService(Bundle bundle, ServiceRegistration<Object> registration,
+				Object service) {
+			// nothing to do
+		}
+	
+	}
+
+}
@@ -0,0 +1,78 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link StripedCounter}
+ */
+public class StripedCounterTest {
+	
+	/**
+	 * Test that no updates are lost when many threads update the counter
+	 * concurrently
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testConcurrentUpdates() throws InterruptedException {
+		final StripedCounter counter = new StripedCounter();
+		final int threads = 8;
+		final int updates = 100000;
+		final CountDownLatch start = new CountDownLatch(1);
+		
+		List<Thread> workers = new ArrayList<Thread>();
+		for (int i = 0; i < threads; i++) {
+			Thread worker = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int j = 0; j < updates; j++) {
+						counter.increment();
+						counter.add(2);
+					}
+				}
+			});
+			worker.start();
+			workers.add(worker);
+		}
+		
+		start.countDown();
+		for (Thread worker : workers) {
+			worker.join();
+		}
+		
+		Assert.assertEquals(3L * threads * updates, counter.sum());
+		
+		counter.reset();
+		Assert.assertEquals(0, counter.sum());
+	}
+
+}
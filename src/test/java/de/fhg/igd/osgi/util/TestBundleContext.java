@@ -0,0 +1,363 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.Constants;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.PrototypeServiceFactory;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * In-memory service registry for tests, providing a {@link BundleContext}
+ * that supports service lookups and service listeners. Services registered
+ * as {@link PrototypeServiceFactory} have prototype scope.
+ */
+public class TestBundleContext {
+	
+	/**
+	 * A registered service listener
+	 */
+	private static class Listener {
+		
+		private final ServiceListener listener;
+		
+		private final Filter filter;
+		
+		public Listener(ServiceListener listener, Filter filter) {
+			this.listener = listener;
+			this.filter = filter;
+		}
+		
+		public boolean matches(ServiceReference<?> reference) {
+			return filter == null || filter.match(reference);
+		}
+	
+	}
+	
+	private final Map<ServiceReference<?>, Object> services =
+			new LinkedHashMap<ServiceReference<?>, Object>();
+	
+	private final Map<ServiceReference<?>, Integer> useCounts =
+			new HashMap<ServiceReference<?>, Integer>();
+	
+	/**
+	 * The instances of bundle scope factory services
+	 */
+	private final Map<ServiceReference<?>, Object> factoryInstances =
+			new HashMap<ServiceReference<?>, Object>();
+	
+	private final List<Object> releasedInstances = new ArrayList<Object>();
+	
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+	
+	private final Map<String, String> properties = new HashMap<String, String>();
+	
+	private final BundleContext context = (BundleContext) Proxy.newProxyInstance(
+			TestBundleContext.class.getClassLoader(), new Class<?>[] { BundleContext.class },
+			new InvocationHandler() {
+				
+				@Override
+				public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+					return handle(method, args);
+				}
+			
+			});
+	
+	/**
+	 * @return the bundle context
+	 */
+	public BundleContext getContext() {
+		return context;
+	}
+	
+	/**
+	 * Set a framework property
+	 * 
+	 * @param key the property key
+	 * @param value the property value
+	 */
+	public synchronized void setProperty(String key, String value) {
+		properties.put(key, value);
+	}
+	
+	/**
+	 * Register a service and notify the listeners
+	 * 
+	 * @param <T> the service type
+	 * @param type the service type
+	 * @param service the service or a {@link PrototypeServiceFactory}
+	 * @return the service reference
+	 */
+	public <T> TestServiceReference<T> register(Class<T> type, Object service) {
+		TestServiceReference<T> reference = new TestServiceReference<T>(type);
+		register(reference, service);
+		return reference;
+	}
+	
+	/**
+	 * Register a service with the given reference and notify the listeners
+	 * 
+	 * @param reference the service reference
+	 * @param service the service or a {@link PrototypeServiceFactory}
+	 */
+	public void register(TestServiceReference<?> reference, Object service) {
+		if (service instanceof PrototypeServiceFactory) {
+			reference.setProperty(Constants.SERVICE_SCOPE, Constants.SCOPE_PROTOTYPE);
+		}
+		synchronized (this) {
+			services.put(reference, service);
+		}
+		fire(new ServiceEvent(ServiceEvent.REGISTERED, reference));
+	}
+	
+	/**
+	 * Unregister a service, the listeners are notified before it is removed
+	 * 
+	 * @param reference the service reference
+	 */
+	public void unregister(ServiceReference<?> reference) {
+		fire(new ServiceEvent(ServiceEvent.UNREGISTERING, reference));
+		synchronized (this) {
+			services.remove(reference);
+			factoryInstances.remove(reference);
+		}
+	}
+	
+	/**
+	 * Modify a service property and notify the listeners, listeners whose
+	 * filter no longer matches receive {@link ServiceEvent#MODIFIED_ENDMATCH}
+	 * 
+	 * @param reference the service reference
+	 * @param key the property key
+	 * @param value the property value, <code>null</code> to remove it
+	 */
+	public void modify(TestServiceReference<?> reference, String key, Object value) {
+		Map<Listener, Boolean> matched = new HashMap<Listener, Boolean>();
+		for (Listener listener : listeners) {
+			matched.put(listener, listener.matches(reference));
+		}
+		
+		reference.setProperty(key, value);
+		
+		for (Listener listener : listeners) {
+			if (listener.matches(reference)) {
+				listener.listener.serviceChanged(new ServiceEvent(ServiceEvent.MODIFIED, reference));
+			}
+			else if (Boolean.TRUE.equals(matched.get(listener))) {
+				listener.listener.serviceChanged(new ServiceEvent(
+						ServiceEvent.MODIFIED_ENDMATCH, reference));
+			}
+		}
+	}
+	
+	/**
+	 * Get the number of times a service was obtained and not released
+	 * 
+	 * @param reference the service reference
+	 * @return the use count
+	 */
+	public synchronized int getUseCount(ServiceReference<?> reference) {
+		Integer count = useCounts.get(reference);
+		return (count == null) ? 0 : count;
+	}
+	
+	/**
+	 * @return the prototype instances that were released, in the order they
+	 *   were released
+	 */
+	public synchronized List<Object> getReleasedInstances() {
+		return new ArrayList<Object>(releasedInstances);
+	}
+	
+	/**
+	 * @return the number of registered service listeners
+	 */
+	public int getListenerCount() {
+		return listeners.size();
+	}
+	
+	private void fire(ServiceEvent event) {
+		for (Listener listener : listeners) {
+			if (listener.matches(event.getServiceReference())) {
+				listener.listener.serviceChanged(event);
+			}
+		}
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private Object handle(Method method, Object[] args) throws InvalidSyntaxException {
+		switch (method.getName()) {
+		case "addServiceListener":
+			Filter filter = (args.length > 1 && args[1] != null)
+					? FrameworkUtil.createFilter((String) args[1]) : null;
+			listeners.add(new Listener((ServiceListener) args[0], filter));
+			return null;
+		case "removeServiceListener":
+			for (Listener listener : listeners) {
+				if (listener.listener == args[0]) {
+					listeners.remove(listener);
+				}
+			}
+			return null;
+		case "getServiceReferences":
+			List<ServiceReference<?>> result = findReferences(
+					(args[0] instanceof Class) ? ((Class<?>) args[0]).getName() : (String) args[0],
+					(String) args[1]);
+			if (method.getReturnType().isArray()) {
+				return result.isEmpty() ? null : result.toArray(new ServiceReference[result.size()]);
+			}
+			return result;
+		case "getService":
+			return getService((ServiceReference<?>) args[0]);
+		case "ungetService":
+			return releaseService((ServiceReference<?>) args[0]);
+		case "getServiceObjects":
+			return getServiceObjects((ServiceReference<?>) args[0]);
+		case "getProperty":
+			synchronized (this) {
+				return properties.get(args[0]);
+			}
+		case "getBundles":
+			return new Bundle[0];
+		case "getBundle":
+			return null;
+		case "addBundleListener":
+		case "removeBundleListener":
+		case "addFrameworkListener":
+		case "removeFrameworkListener":
+			return null;
+		case "hashCode":
+			return System.identityHashCode(this);
+		case "equals":
+			return context == args[0];
+		case "toString":
+			return "TestBundleContext";
+		default:
+			throw new UnsupportedOperationException(method.getName());
+		}
+	}
+	
+	private synchronized List<ServiceReference<?>> findReferences(String className,
+			String filter) throws InvalidSyntaxException {
+		Filter parsed = (filter == null) ? null : FrameworkUtil.createFilter(filter);
+		List<ServiceReference<?>> result = new ArrayList<ServiceReference<?>>();
+		for (ServiceReference<?> reference : services.keySet()) {
+			String[] classes = (String[]) reference.getProperty(Constants.OBJECTCLASS);
+			boolean typeMatch = className == null;
+			for (String name : classes) {
+				typeMatch |= name.equals(className);
+			}
+			if (typeMatch && (parsed == null || parsed.match(reference))) {
+				result.add(reference);
+			}
+		}
+		return result;
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private synchronized Object getService(ServiceReference<?> reference) {
+		Object service = services.get(reference);
+		if (service == null) {
+			return null;
+		}
+		if (service instanceof PrototypeServiceFactory) {
+			Object instance = factoryInstances.get(reference);
+			if (instance == null) {
+				instance = createInstance(reference);
+				factoryInstances.put(reference, instance);
+			}
+			service = instance;
+		}
+		useCounts.put(reference, getUseCount(reference) + 1);
+		return service;
+	}
+	
+	private synchronized boolean releaseService(ServiceReference<?> reference) {
+		int count = getUseCount(reference);
+		if (count == 0) {
+			return false;
+		}
+		useCounts.put(reference, count - 1);
+		return true;
+	}
+	
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	private synchronized Object createInstance(ServiceReference<?> reference) {
+		Object service = services.get(reference);
+		if (!(service instanceof PrototypeServiceFactory)) {
+			return service;
+		}
+		return ((PrototypeServiceFactory) service).getService(null, null);
+	}
+	
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private ServiceObjects<?> getServiceObjects(final ServiceReference<?> reference) {
+		synchronized (this) {
+			if (!services.containsKey(reference)) {
+				return null;
+			}
+		}
+		return new ServiceObjects() {
+			
+			@Override
+			public Object getService() {
+				synchronized (TestBundleContext.this) {
+					Object instance = createInstance(reference);
+					if (instance != null) {
+						useCounts.put(reference, getUseCount(reference) + 1);
+					}
+					return instance;
+				}
+			}
+			
+			@Override
+			public void ungetService(Object service) {
+				synchronized (TestBundleContext.this) {
+					releasedInstances.add(service);
+					releaseService(reference);
+				}
+			}
+			
+			@Override
+			public ServiceReference getServiceReference() {
+				return reference;
+			}
+		
+		};
+	}
+
+}
@@ -0,0 +1,114 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.Constants;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Service reference with modifiable properties for tests, property keys
+ * are case insensitive like for framework references
+ * 
+ * @param <T> the service type
+ */
+public class TestServiceReference<T> implements ServiceReference<T> {
+	
+	private static final AtomicLong nextId = new AtomicLong(1);
+	
+	private final Map<String, Object> properties = new LinkedHashMap<String, Object>();
+	
+	/**
+	 * Create a reference with a new service ID
+	 * 
+	 * @param objectClass the service type
+	 */
+	public TestServiceReference(Class<?> objectClass) {
+		properties.put(Constants.SERVICE_ID, nextId.getAndIncrement());
+		properties.put(Constants.OBJECTCLASS, new String[] { objectClass.getName() });
+	}
+	
+	/**
+	 * Set a property
+	 * 
+	 * @param key the property key
+	 * @param value the property value, <code>null</code> to remove it
+	 * @return this reference
+	 */
+	public synchronized TestServiceReference<T> setProperty(String key, Object value) {
+		String existing = findKey(key);
+		if (existing != null) {
+			properties.remove(existing);
+		}
+		if (value != null) {
+			properties.put(key, value);
+		}
+		return this;
+	}
+
+	@Override
+	public synchronized Object getProperty(String key) {
+		String existing = findKey(key);
+		return (existing == null) ? null : properties.get(existing);
+	}
+
+	@Override
+	public synchronized String[] getPropertyKeys() {
+		return properties.keySet().toArray(new String[properties.size()]);
+	}
+
+	@Override
+	public Bundle getBundle() {
+		return null;
+	}
+
+	@Override
+	public Bundle[] getUsingBundles() {
+		return null;
+	}
+
+	@Override
+	public boolean isAssignableTo(Bundle bundle, String className) {
+		return true;
+	}
+
+	@SuppressWarnings("unchecked")
+	@Override
+	public int compareTo(Object reference) {
+		RankedReference<T> self = new RankedReference<T>(this);
+		RankedReference<?> other = new RankedReference<Object>((ServiceReference<Object>) reference);
+		// the highest ranked reference compares greatest
+		return other.compareTo(self);
+	}
+	
+	private String findKey(String key) {
+		for (String existing : properties.keySet()) {
+			if (existing.equalsIgnoreCase(key)) {
+				return existing;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,225 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.osgi.framework.ServiceObjects;
+import org.osgi.framework.ServiceReference;
+
+/**
+ * Tests for {@link ThreadInstances}
+ */
+public class ThreadInstancesTest {
+	
+	/**
+	 * Service objects creating a new instance on each call, recording the
+	 * released instances
+	 */
+	private static class TestServiceObjects implements ServiceObjects<Object> {
+		
+		private final ServiceReference<Object> reference = 
+				new TestServiceReference<Object>(Object.class);
+		
+		private final List<Object> released = new ArrayList<Object>();
+
+		@Override
+		public Object getService() {
+			return new Object();
+		}
+
+		@Override
+		public synchronized void ungetService(Object service) {
+			released.add(service);
+		}
+
+		@Override
+		public ServiceReference<Object> getServiceReference() {
+			return reference;
+		}
+		
+		public synchronized List<Object> getReleased() {
+			return new ArrayList<Object>(released);
+		}
+		
+	}
+	
+	/**
+	 * Test that the instances of dead threads are released by a purge, while
+	 * those of live threads are kept
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testPurge() throws InterruptedException {
+		TestServiceObjects objects = new TestServiceObjects();
+		ThreadInstances<Object> instances = new ThreadInstances<Object>(
+				objects.getServiceReference(), objects, 4);
+		
+		ThreadInstances.ThreadInstance<Object> own = instances.create();
+		Assert.assertNotNull(own);
+		
+		ThreadInstances.ThreadInstance<Object> other = createOnOtherThread(instances);
+		Assert.assertNotNull(other);
+		Assert.assertEquals(2, instances.size());
+		
+		instances.purge();
+		Assert.assertEquals(1, instances.size());
+		Assert.assertEquals(Collections.singletonList(other.getInstance()), objects.getReleased());
+		
+		instances.release();
+		Assert.assertEquals(0, instances.size());
+		Assert.assertTrue(objects.getReleased().contains(own.getInstance()));
+		Assert.assertNull(instances.create());
+	}
+	
+	/**
+	 * Test that no more instances than the maximum are created and dead
+	 * threads make room for new instances
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testMaxInstances() throws InterruptedException {
+		TestServiceObjects objects = new TestServiceObjects();
+		ThreadInstances<Object> instances = new ThreadInstances<Object>(
+				objects.getServiceReference(), objects, 1);
+		
+		Assert.assertNotNull(createOnOtherThread(instances));
+		Assert.assertEquals(1, instances.size());
+		
+		// the instance of the dead thread is released to make room
+		Assert.assertNotNull(instances.create());
+		Assert.assertEquals(1, instances.size());
+		Assert.assertEquals(1, objects.getReleased().size());
+		
+		// the current thread is alive, so there is no room for another one
+		Assert.assertNull(createOnOtherThread(instances));
+	}
+	
+	/**
+	 * Test that retired instances are kept until released individually or
+	 * all at once, and no new instances are created
+	 */
+	@Test
+	public void testRetire() {
+		TestServiceObjects objects = new TestServiceObjects();
+		ThreadInstances<Object> instances = new ThreadInstances<Object>(
+				objects.getServiceReference(), objects, 4);
+		
+		ThreadInstances.ThreadInstance<Object> own = instances.create();
+		Assert.assertFalse(instances.isRetiredFor(0));
+		instances.retire();
+		Assert.assertTrue(instances.isRetiredFor(0));
+		Assert.assertFalse(instances.isRetiredFor(Long.MAX_VALUE));
+		Assert.assertNull(instances.create());
+		
+		// still usable by its thread
+		Assert.assertEquals(1, instances.size());
+		Assert.assertTrue(objects.getReleased().isEmpty());
+		
+		instances.release(own);
+		Assert.assertEquals(0, instances.size());
+		Assert.assertEquals(Collections.singletonList(own.getInstance()), objects.getReleased());
+		
+		// released only once
+		instances.release(own);
+		instances.release();
+		Assert.assertEquals(1, objects.getReleased().size());
+	}
+	
+	/**
+	 * Create an instance on a thread that has terminated when the method
+	 * returns
+	 * 
+	 * @param instances the thread instances
+	 * @return the created instance or <code>null</code>
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	private static ThreadInstances.ThreadInstance<Object> createOnOtherThread(
+			final ThreadInstances<Object> instances) throws InterruptedException {
+		final List<ThreadInstances.ThreadInstance<Object>> result = 
+				new ArrayList<ThreadInstances.ThreadInstance<Object>>();
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result.add(instances.create());
+			}
+		});
+		thread.start();
+		thread.join();
+		return result.get(0);
+	}
+	
+	/**
+	 * Test that obtaining an instance does not hold the lock, and an instance
+	 * obtained while the instances are released is released right away
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testReleaseWhileObtaining() throws InterruptedException {
+		final CountDownLatch obtaining = new CountDownLatch(1);
+		final CountDownLatch proceed = new CountDownLatch(1);
+		TestServiceObjects objects = new TestServiceObjects() {
+			
+			@Override
+			public Object getService() {
+				obtaining.countDown();
+				try {
+					proceed.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+				return super.getService();
+			}
+		
+		};
+		final ThreadInstances<Object> instances = new ThreadInstances<Object>(
+				objects.getServiceReference(), objects, 1);
+		
+		final List<Object> result = Collections.synchronizedList(new ArrayList<Object>());
+		Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				result.add(String.valueOf(instances.create()));
+			}
+		});
+		thread.start();
+		Assert.assertTrue(obtaining.await(5, TimeUnit.SECONDS));
+		
+		// the instance being obtained counts towards the maximum
+		Assert.assertNull(instances.create());
+		instances.release();
+		Assert.assertEquals(0, instances.size());
+		
+		proceed.countDown();
+		thread.join(5000);
+		Assert.assertEquals(Collections.singletonList("null"), result);
+		Assert.assertEquals(1, objects.getReleased().size());
+	}
+
+}
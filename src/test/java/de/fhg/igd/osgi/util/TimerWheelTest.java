@@ -0,0 +1,87 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Tests for {@link TimerWheel}
+ */
+public class TimerWheelTest {
+	
+	/**
+	 * Determines if a timer thread is running
+	 * 
+	 * @return if a thread of the default timer wheel is alive
+	 */
+	private static boolean isTimerThreadAlive() {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (thread.isAlive() && "osgi-util-timer".equals(thread.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Test that scheduled tasks are executed, and discarded when the
+	 * default timer wheel is shut down, which terminates its thread
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testShutdown() throws InterruptedException {
+		final CountDownLatch executed = new CountDownLatch(1);
+		TimerWheel wheel = TimerWheel.getDefault();
+		wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				executed.countDown();
+			}
+		}, 10, TimeUnit.MILLISECONDS);
+		Assert.assertTrue(executed.await(5, TimeUnit.SECONDS));
+		
+		final CountDownLatch discarded = new CountDownLatch(1);
+		TimerWheel.Timeout timeout = wheel.schedule(new Runnable() {
+			@Override
+			public void run() {
+				discarded.countDown();
+			}
+		}, 50, TimeUnit.MILLISECONDS);
+		
+		TimerWheel.shutdownDefault();
+		Assert.assertFalse(timeout.cancel());
+		Assert.assertFalse(discarded.await(200, TimeUnit.MILLISECONDS));
+		
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (isTimerThreadAlive() && System.nanoTime() < end) {
+			Thread.sleep(10);
+		}
+		Assert.assertFalse(isTimerThreadAlive());
+		
+		// created again on demand
+		Assert.assertNotSame(wheel, TimerWheel.getDefault());
+	}
+
+}
@@ -0,0 +1,190 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.osgi.framework.Filter;
+import org.osgi.framework.FrameworkUtil;
+import org.osgi.framework.InvalidSyntaxException;
+
+/**
+ * Tests for {@link TrackerRegistry}
+ */
+public class TrackerRegistryTest {
+	
+	private TestBundleContext registry;
+	
+	private TrackerRegistry<SingleServiceTracker<?>> trackers;
+	
+	/**
+	 * Open a tracker registry on an empty service registry
+	 */
+	@Before
+	public void setUp() {
+		registry = new TestBundleContext();
+		trackers = new TrackerRegistry<SingleServiceTracker<?>>() {
+			
+			@SuppressWarnings({ "unchecked", "rawtypes" })
+			@Override
+			protected SingleServiceTracker<?> createTracker(Class<?> serviceType,
+					Filter filter) {
+				return new SingleServiceTracker(serviceType, filter);
+			}
+		
+		};
+		trackers.open(registry.getContext(), null);
+	}
+	
+	/**
+	 * Close the tracker registry
+	 */
+	@After
+	public void tearDown() {
+		trackers.close();
+	}
+	
+	/**
+	 * Wait until the given tracker was stopped
+	 * 
+	 * @param tracker the tracker
+	 * @return if the tracker was stopped within some seconds
+	 * @throws InterruptedException if the thread is interrupted
+	 */
+	private static boolean awaitStopped(ServiceTracker<?> tracker) throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (tracker.isRunning() && System.nanoTime() < end) {
+			Thread.sleep(20);
+		}
+		return !tracker.isRunning();
+	}
+	
+	/**
+	 * Test that trackers are shared per service type and equal filter, and
+	 * stopped when the registry is closed
+	 * 
+	 * @throws InvalidSyntaxException if a filter is invalid
+	 */
+	@Test
+	public void testGet() throws InvalidSyntaxException {
+		SingleServiceTracker<?> tracker = trackers.get(Runnable.class, null);
+		Assert.assertTrue(tracker.isRunning());
+		Assert.assertSame(tracker, trackers.get(Runnable.class, null));
+		Assert.assertSame(tracker, trackers.peek(Runnable.class, null));
+		Assert.assertNull(trackers.peek(Object.class, null));
+		
+		SingleServiceTracker<?> filtered = trackers.get(Runnable.class,
+				FrameworkUtil.createFilter("(name=a)"));
+		Assert.assertNotSame(tracker, filtered);
+		Assert.assertSame(filtered, trackers.get(Runnable.class,
+				FrameworkUtil.createFilter("(name=a)")));
+		Assert.assertNotSame(filtered, trackers.get(Runnable.class,
+				FrameworkUtil.createFilter("(name=b)")));
+		Assert.assertEquals(3, trackers.getTrackers().size());
+		
+		Runnable service = new Thread();
+		registry.register(Runnable.class, service);
+		Assert.assertSame(service, tracker.getService());
+		Assert.assertNull(filtered.getService());
+		
+		trackers.close();
+		Assert.assertFalse(tracker.isRunning());
+		Assert.assertFalse(filtered.isRunning());
+		Assert.assertNull(trackers.get(Object.class, null));
+	}
+	
+	/**
+	 * Test that idle trackers are evicted unless they are in use, and the
+	 * least recently used trackers are evicted when exceeding the maximum
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testEvict() throws InterruptedException {
+		@SuppressWarnings("unchecked")
+		SingleServiceTracker<Runnable> used = (SingleServiceTracker<Runnable>) trackers.get(
+				Runnable.class, null);
+		SingleServiceListener<Runnable> listener = new SingleServiceListener<Runnable>() {
+			
+			@Override
+			public void beforeServiceRemove(Runnable service) {
+				// ignore
+			}
+			
+			@Override
+			public void afterServiceChange(Runnable service) {
+				// ignore
+			}
+		
+		};
+		used.addListener(listener);
+		SingleServiceTracker<?> idle = trackers.get(Object.class, null);
+		
+		trackers.setEviction(1, TimeUnit.MILLISECONDS, 0);
+		Assert.assertTrue(awaitStopped(idle));
+		Assert.assertNull(trackers.peek(Object.class, null));
+		Assert.assertTrue(used.isRunning());
+		
+		used.removeListener(listener);
+		Assert.assertTrue(awaitStopped(used));
+		
+		// only the most recently used tracker is kept
+		trackers.setEviction(0, TimeUnit.MILLISECONDS, 1);
+		SingleServiceTracker<?> first = trackers.get(Runnable.class, null);
+		Thread.sleep(200);
+		SingleServiceTracker<?> second = trackers.get(Object.class, null);
+		Assert.assertTrue(awaitStopped(first));
+		Assert.assertTrue(second.isRunning());
+		Assert.assertSame(second, trackers.peek(Object.class, null));
+	}
+	
+	/**
+	 * Test that a pinned tracker is not evicted while idle, but after it
+	 * was unpinned
+	 * 
+	 * @throws InterruptedException if the test is interrupted
+	 */
+	@Test
+	public void testPin() throws InterruptedException {
+		SingleServiceTracker<?> tracker = trackers.pin(Runnable.class, null);
+		Assert.assertNotNull(tracker);
+		Assert.assertTrue(tracker.isRunning());
+		
+		trackers.setEviction(1, TimeUnit.MILLISECONDS, 0);
+		Thread.sleep(500);
+		Assert.assertTrue(tracker.isRunning());
+		Assert.assertSame(tracker, trackers.peek(Runnable.class, null));
+		
+		trackers.unpin(Runnable.class, null, tracker);
+		Assert.assertTrue(awaitStopped(tracker));
+		Assert.assertNull(trackers.peek(Runnable.class, null));
+		
+		// a new tracker is created on the next access
+		SingleServiceTracker<?> next = trackers.pin(Runnable.class, null);
+		Assert.assertNotSame(tracker, next);
+		Assert.assertTrue(next.isRunning());
+		trackers.unpin(Runnable.class, null, next);
+	}
+
+}
@@ -0,0 +1,159 @@
+// Fraunhofer Institute for Computer Graphics Research (IGD)
+// Department Spatial Information Management (GEO)
+//
+// Copyright (c) 2008-2014 Fraunhofer IGD
+//
+// This file is part of osgi-util.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package de.fhg.igd.osgi.util;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.fhg.igd.osgi.util.OsgiUtils.Condition;
+
+/**
+ * Tests for {@link OsgiUtils#waitUntil(Condition, long, TimeUnit)} and
+ * {@link OsgiUtils#asyncWaitUntil(Condition, long, TimeUnit)}
+ */
+public class WaitUntilTest {
+	
+	/**
+	 * Condition that becomes true after a number of evaluations
+	 */
+	private static class CountingCondition implements Condition {
+		
+		private final AtomicInteger evaluations = new AtomicInteger();
+		
+		private final int trueAfter;
+		
+		public CountingCondition(int trueAfter) {
+			this.trueAfter = trueAfter;
+		}
+
+		@Override
+		public boolean evaluate() {
+			return evaluations.incrementAndGet() > trueAfter;
+		}
+		
+	}
+	
+	/**
+	 * Test that a condition becoming true is detected well before the
+	 * maximum evaluation interval
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testConditionMet() throws Exception {
+		long start = System.nanoTime();
+		Assert.assertTrue(OsgiUtils.waitUntil(new CountingCondition(3), 10, TimeUnit.SECONDS));
+		Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+	}
+	
+	/**
+	 * Test that the timeout is honoured
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testTimeout() throws Exception {
+		long start = System.nanoTime();
+		Assert.assertFalse(OsgiUtils.waitUntil(new CountingCondition(Integer.MAX_VALUE),
+				200, TimeUnit.MILLISECONDS));
+		long elapsed = System.nanoTime() - start;
+		Assert.assertTrue(elapsed >= TimeUnit.MILLISECONDS.toNanos(200));
+		Assert.assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(900));
+	}
+	
+	/**
+	 * Test that an interrupt ends the wait
+	 */
+	@Test
+	public void testInterrupt() {
+		Thread.currentThread().interrupt();
+		try {
+			OsgiUtils.waitUntil(new CountingCondition(Integer.MAX_VALUE), 10, TimeUnit.SECONDS);
+			Assert.fail("Expected InterruptedException");
+		} catch (InterruptedException e) {
+			// expected
+		}
+	}
+	
+	/**
+	 * Test that a cancelled wait is no longer evaluated
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testCancel() throws Exception {
+		CountingCondition condition = new CountingCondition(Integer.MAX_VALUE);
+		ListenableFuture<Boolean> future = OsgiUtils.asyncWaitUntil(condition, -1, TimeUnit.SECONDS);
+		Thread.sleep(100);
+		Assert.assertTrue(future.cancel(false));
+		int evaluations = condition.evaluations.get();
+		Thread.sleep(300);
+		Assert.assertTrue(condition.evaluations.get() <= evaluations + 1);
+	}
+
+	
+	/**
+	 * Test that a blocking condition does not delay the evaluation of other
+	 * conditions
+	 * 
+	 * @throws Exception if an error occurs
+	 */
+	@Test
+	public void testBlockingCondition() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicInteger evaluations = new AtomicInteger();
+		ListenableFuture<Boolean> blocking = OsgiUtils.asyncWaitUntil(new Condition() {
+			
+			@Override
+			public boolean evaluate() {
+				if (evaluations.incrementAndGet() > 1) {
+					// block on the second evaluation, which is scheduled
+					try {
+						release.await(5, TimeUnit.SECONDS);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					return true;
+				}
+				return false;
+			}
+			
+		}, -1, TimeUnit.SECONDS);
+		
+		try {
+			Thread.sleep(100);
+			Assert.assertEquals(2, evaluations.get());
+			
+			long start = System.nanoTime();
+			Assert.assertTrue(OsgiUtils.waitUntil(new CountingCondition(3), 10, TimeUnit.SECONDS));
+			Assert.assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(900));
+		} finally {
+			release.countDown();
+		}
+		Assert.assertTrue(blocking.get(1, TimeUnit.SECONDS));
+	}
+
+}